@@ -16,9 +16,10 @@ fi
 
 JAR="target/mydb-1.0-SNAPSHOT.jar"
 DB="${1:-arquivo.bd}"
+shift || true
 
 if [ ! -f "$JAR" ]; then
     mvn -q -DskipTests package
 fi
 
-exec java -jar "$JAR" "$DB"
+exec java -jar "$JAR" "$DB" "$@"
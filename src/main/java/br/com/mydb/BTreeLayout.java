@@ -0,0 +1,130 @@
+package br.com.mydb;
+
+/**
+ * Capacidade dos nós da B+ tree. Arquivos na versão 1 do formato usam o grau mínimo fixo 3;
+ * a partir da versão 2 o número de chaves de folhas e nós internos é calculado pelo tamanho da página.
+ *
+ * As folhas clustered têm células de tamanho variável e são medidas em bytes: nenhuma célula passa de
+ * um quarto da área útil da página, uma folha está cheia quando não cabe mais uma célula desse tamanho,
+ * pode ceder células enquanto tiver metade da área ocupada e precisa de reforço com um quarto ou menos.
+ * Assim duas folhas que não podem ceder sempre cabem em uma só.
+ */
+public final class BTreeLayout {
+
+    public static final BTreeLayout LEGACY = new BTreeLayout(Table.BTREE_MIN_DEGREE, Table.BTREE_MIN_DEGREE, 0);
+
+    private final int leafMinDegree;
+    private final int internalMinDegree;
+    private final int cellAreaSize;
+
+    private BTreeLayout(int leafMinDegree, int internalMinDegree, int cellAreaSize) {
+        this.leafMinDegree = leafMinDegree;
+        this.internalMinDegree = internalMinDegree;
+        this.cellAreaSize = cellAreaSize;
+    }
+
+    public static BTreeLayout forFormat(int formatVersion, int pageSize) {
+        if (formatVersion < Database.PAGE_SIZED_NODES_FORMAT_VERSION) {
+            return LEGACY;
+        }
+        return forPageSize(pageSize);
+    }
+
+    public static BTreeLayout forPageSize(int pageSize) {
+        int leafCapacity = (pageSize - Page.HEADER_SIZE) / BTreeNode.LEAF_CELL_SIZE;
+        int internalCapacity = (pageSize - Page.HEADER_SIZE - BTreeNode.CHILD_POINTER_SIZE)
+                / BTreeNode.INTERNAL_CELL_SIZE;
+
+        // Com grau mínimo t um nó guarda até 2t - 1 chaves, então t = (capacidade + 1) / 2.
+        return new BTreeLayout((leafCapacity + 1) / 2, (internalCapacity + 1) / 2, pageSize - Page.HEADER_SIZE);
+    }
+
+    public boolean supportsClusteredLeaves() {
+        return this.cellAreaSize > 0;
+    }
+
+    public int getMaxKeys(BTreeNode node) {
+        return 2 * minDegree(node) - 1;
+    }
+
+    public int getMinKeys(BTreeNode node) {
+        return minDegree(node) - 1;
+    }
+
+    public boolean isFull(BTreeNode node) {
+        if (node.isClustered()) {
+            return node.getAvailableCellSpace() < getMaxCellSize();
+        }
+        return node.getKeyCount() >= getMaxKeys(node);
+    }
+
+    /**
+     * Se o nó está no mínimo e precisa receber uma chave antes que a exclusão desça por ele.
+     */
+    public boolean isAtMinimum(BTreeNode node) {
+        if (node.isClustered()) {
+            return usedCellSpace(node) <= this.cellAreaSize / 4;
+        }
+        return node.getKeyCount() <= getMinKeys(node);
+    }
+
+    /**
+     * Se o nó pode emprestar uma chave a um irmão sem ficar abaixo do mínimo.
+     */
+    public boolean canLend(BTreeNode node) {
+        if (node.isClustered()) {
+            return usedCellSpace(node) >= this.cellAreaSize / 2;
+        }
+        return node.getKeyCount() > getMinKeys(node);
+    }
+
+    /**
+     * Posição da primeira chave que vai para o novo nó da direita quando a folha se divide. Folhas
+     * clustered são divididas pela metade dos bytes, não das chaves.
+     */
+    public int getSplitIndex(BTreeNode leaf) {
+        if (!leaf.isClustered()) {
+            return getMinKeys(leaf);
+        }
+        int half = usedCellSpace(leaf) / 2;
+        int keyCount = leaf.getKeyCount();
+        int bytes = 0;
+        int index = 0;
+        while (index < keyCount - 1 && bytes < half) {
+            bytes += leaf.getCellSize(index) + Page.SLOT_SIZE;
+            index++;
+        }
+        return Math.max(index, 1);
+    }
+
+    /**
+     * Maior célula de folha clustered, contando o slot. Linhas que passariam disso vão para overflow.
+     */
+    public int getMaxCellSize() {
+        return this.cellAreaSize / 4;
+    }
+
+    public int getMaxInlineRowSize() {
+        return getMaxCellSize() - Page.SLOT_SIZE - BTreeNode.CELL_HEADER_SIZE;
+    }
+
+    private int usedCellSpace(BTreeNode node) {
+        return this.cellAreaSize - node.getAvailableCellSpace();
+    }
+
+    public int getMaxLeafKeys() {
+        return 2 * leafMinDegree - 1;
+    }
+
+    public int getMinLeafKeys() {
+        return leafMinDegree - 1;
+    }
+
+    public int getMaxInternalKeys() {
+        return 2 * internalMinDegree - 1;
+    }
+
+    private int minDegree(BTreeNode node) {
+        return node.isLeaf() ? leafMinDegree : internalMinDegree;
+    }
+}
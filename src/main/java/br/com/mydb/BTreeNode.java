@@ -2,32 +2,72 @@ package br.com.mydb;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Visão de uma página como nó da B+ tree. O nó não copia nada: lê e grava direto no buffer da página,
+ * e o tipo da página é lido uma única vez, em wrap. Um mesmo objeto pode ser reaproveitado com wrap
+ * para descer a árvore sem criar um nó por nível.
+ *
+ * As folhas de tabelas clustered guardam a linha junto da chave: um vetor de slots (offset, tamanho)
+ * em ordem de chave, como nas páginas de dados, aponta para células [chave][tipo][linha] gravadas do
+ * fim da página para o começo. Se a linha não cabe na folha, a célula guarda [tamanho][primeira página]
+ * de uma cadeia de overflow no lugar dela.
+ */
 public class BTreeNode {
 
-    private final Page page;
+    private Page page;
+    private ByteBuffer buffer;
+    private boolean leaf;
+    private boolean clustered;
     private final int order;
 
     public static final int NULL_POINTER = -1;
 
-    private static final int KEY_SIZE = 4;
-    private static final int POINTER_SIZE = 8;
-    private static final int CHILD_POINTER_SIZE = 4;
+    public static final int KEY_SIZE = 4;
+    public static final int POINTER_SIZE = 8;
+    public static final int CHILD_POINTER_SIZE = 4;
 
-    public BTreeNode(Page pager, int order) {
-        this.page = pager;
+    public static final int LEAF_CELL_SIZE = KEY_SIZE + POINTER_SIZE;
+    public static final int INTERNAL_CELL_SIZE = CHILD_POINTER_SIZE + KEY_SIZE;
+
+    public static final byte INLINE_ROW = 0;
+    public static final byte OVERFLOW_ROW = 1;
+    public static final int CELL_HEADER_SIZE = KEY_SIZE + 1;
+    public static final int OVERFLOW_CELL_SIZE = CELL_HEADER_SIZE + 4 + 4; // + tamanho da linha + primeira página
+
+    // Bytes de células removidas que ainda ocupam a área de células de uma folha clustered.
+    public static final int FRAGMENTED_BYTES_OFFSET = Page.NEXT_DATA_PAGE_POINTER_OFFSET;
+
+    public BTreeNode(int order) {
         this.order = order;
     }
 
+    public BTreeNode(Page pager, int order) {
+        this(order);
+        wrap(pager);
+    }
+
+    /**
+     * Aponta o nó para outra página.
+     */
+    public BTreeNode wrap(Page page) {
+        this.page = page;
+        this.buffer = page.getBuffer();
+        byte pageType = page.getPageType();
+        this.clustered = pageType == PageType.CLUSTERED_LEAF_NODE.value;
+        this.leaf = this.clustered || pageType == PageType.BTREE_LEAF_NODE.value;
+        return this;
+    }
+
     public boolean isLeaf() {
-        return this.page.getPageType() == PageType.BTREE_LEAF_NODE.value;
+        return this.leaf;
     }
 
-    private int getLeafCellSize() {
-        return KEY_SIZE + POINTER_SIZE;
+    public boolean isClustered() {
+        return this.clustered;
     }
 
     private int getLeafCellOffset(int index) {
-        return Page.HEADER_SIZE + (index * getLeafCellSize());
+        return Page.HEADER_SIZE + (index * LEAF_CELL_SIZE);
     }
 
     private int getLeafKeyOffset(int index) {
@@ -39,7 +79,7 @@ public class BTreeNode {
     }
 
     private int getInternalChildPointerOffset(int index) {
-        return Page.HEADER_SIZE + (index * (KEY_SIZE + CHILD_POINTER_SIZE));
+        return Page.HEADER_SIZE + (index * INTERNAL_CELL_SIZE);
     }
 
     private int getInternalKeyOffset(int index) {
@@ -47,64 +87,335 @@ public class BTreeNode {
     }
 
     public int getKey(int index) {
-        int offset = isLeaf() ? getLeafKeyOffset(index) : getInternalKeyOffset(index);
-        return ByteBuffer.wrap(this.page.getBytes()).getInt(offset);
+        if (this.clustered) {
+            return this.buffer.getInt(getCellOffset(index));
+        }
+        int offset = this.leaf ? getLeafKeyOffset(index) : getInternalKeyOffset(index);
+        return this.buffer.getInt(offset);
     }
 
     public void setKey(int index, int key) {
-        int offset = isLeaf() ? getLeafKeyOffset(index) : getInternalKeyOffset(index);
-        ByteBuffer.wrap(this.page.getBytes()).putInt(offset, key);
+        if (this.clustered) {
+            throw new IllegalStateException("A chave de uma folha clustered faz parte da célula.");
+        }
+        int offset = this.leaf ? getLeafKeyOffset(index) : getInternalKeyOffset(index);
+        this.buffer.putInt(offset, key);
         this.page.markAsDirty();
     }
 
     public long getDataPointer(int index) {
-        if (!isLeaf()) {
+        if (!this.leaf) {
             throw new IllegalStateException("Não se pode obter um ponteiro de dados de um nó interno.");
         }
+        if (this.clustered) {
+            throw new IllegalStateException("Folhas clustered guardam a linha, não um ponteiro de dados.");
+        }
         int offset = getLeafDataPointerOffset(index);
-        return ByteBuffer.wrap(this.page.getBytes()).getLong(offset);
+        return this.buffer.getLong(offset);
     }
 
     public void setDataPointer(int index, long pointer) {
-        if (!isLeaf()) {
+        if (!this.leaf) {
             throw new IllegalStateException("Não se pode definir um ponteiro de dados em um nó interno.");
         }
+        if (this.clustered) {
+            throw new IllegalStateException("Folhas clustered guardam a linha, não um ponteiro de dados.");
+        }
         int offset = getLeafDataPointerOffset(index);
-        ByteBuffer.wrap(this.page.getBytes()).putLong(offset, pointer);
+        this.buffer.putLong(offset, pointer);
         this.page.markAsDirty();
     }
 
     public int getChildPointer(int index) {
-        if (isLeaf()) {
+        if (this.leaf) {
             throw new IllegalStateException("Não se pode obter um filho de um nó folha.");
         }
         int offset = getInternalChildPointerOffset(index);
-        return ByteBuffer.wrap(this.page.getBytes()).getInt(offset);
+        return this.buffer.getInt(offset);
     }
 
     public void setChildPointer(int index, int pageNumber) {
-        if (isLeaf()) {
+        if (this.leaf) {
             throw new IllegalStateException("Não se pode definir um filho em um nó folha.");
         }
         int offset = getInternalChildPointerOffset(index);
-        ByteBuffer.wrap(this.page.getBytes()).putInt(offset, pageNumber);
+        this.buffer.putInt(offset, pageNumber);
         page.markAsDirty();
     }
 
+    /**
+     * Índice do filho de um nó interno que cobre key: a quantidade de chaves menores ou iguais a key.
+     */
+    public int findChildIndex(int key) {
+        int left = 0;
+        int right = getKeyCount();
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (this.buffer.getInt(getInternalKeyOffset(mid)) <= key) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Índice da primeira chave maior ou igual a key, ou a quantidade de chaves se não houver.
+     */
+    public int lowerBound(int key) {
+        int left = 0;
+        int right = getKeyCount();
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            if (getKey(mid) < key) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Grava a célula na posição index da folha, deslocando as células seguintes de uma só vez.
+     */
+    public void insertLeafCell(int index, int key, long dataPointer) {
+        int keyCount = getKeyCount();
+        moveBytes(getLeafCellOffset(index), getLeafCellOffset(index + 1), (keyCount - index) * LEAF_CELL_SIZE);
+        this.buffer.putInt(getLeafKeyOffset(index), key);
+        this.buffer.putLong(getLeafDataPointerOffset(index), dataPointer);
+        setKeyCount(keyCount + 1);
+        this.page.markAsDirty();
+    }
+
+    public void removeLeafCell(int index) {
+        int keyCount = getKeyCount();
+        moveBytes(getLeafCellOffset(index + 1), getLeafCellOffset(index), (keyCount - index - 1) * LEAF_CELL_SIZE);
+        setKeyCount(keyCount - 1);
+        this.page.markAsDirty();
+    }
+
+    /**
+     * Insere a chave na posição index de um nó interno com o filho da direita em index + 1. Cada chave
+     * fica colada ao seu filho da direita, então o deslocamento é uma única cópia.
+     */
+    public void insertInternalCell(int index, int key, int rightChildPageNumber) {
+        int keyCount = getKeyCount();
+        moveBytes(getInternalKeyOffset(index), getInternalKeyOffset(index + 1), (keyCount - index) * INTERNAL_CELL_SIZE);
+        this.buffer.putInt(getInternalKeyOffset(index), key);
+        this.buffer.putInt(getInternalChildPointerOffset(index + 1), rightChildPageNumber);
+        setKeyCount(keyCount + 1);
+        this.page.markAsDirty();
+    }
+
+    /**
+     * Remove a chave da posição index de um nó interno junto com o seu filho da direita.
+     */
+    public void removeInternalCell(int index) {
+        int keyCount = getKeyCount();
+        moveBytes(getInternalKeyOffset(index + 1), getInternalKeyOffset(index), (keyCount - index - 1) * INTERNAL_CELL_SIZE);
+        setKeyCount(keyCount - 1);
+        this.page.markAsDirty();
+    }
+
+    /**
+     * Copia count células da folha, a partir de from, para a posição to da folha target.
+     */
+    public void copyLeafCellsTo(BTreeNode target, int from, int to, int count) {
+        if (count <= 0) {
+            return;
+        }
+        target.buffer.put(target.getLeafCellOffset(to), this.buffer, getLeafCellOffset(from), count * LEAF_CELL_SIZE);
+        target.page.markAsDirty();
+    }
+
+    /**
+     * Copia as chaves from até from + count - 1 de um nó interno, com os filhos from até from + count,
+     * para a posição to do nó target.
+     */
+    public void copyInternalCellsTo(BTreeNode target, int from, int to, int count) {
+        target.buffer.put(target.getInternalChildPointerOffset(to), this.buffer, getInternalChildPointerOffset(from),
+                count * INTERNAL_CELL_SIZE + CHILD_POINTER_SIZE);
+        target.page.markAsDirty();
+    }
+
+    private int getCellSlotOffset(int index) {
+        return Page.HEADER_SIZE + (index * Page.SLOT_SIZE);
+    }
+
+    private int getCellOffset(int index) {
+        return this.buffer.getShort(getCellSlotOffset(index) + Page.SLOT_OFFSET_FIELD);
+    }
+
+    /**
+     * Tamanho da célula de uma folha clustered, sem contar o slot.
+     */
+    public int getCellSize(int index) {
+        return this.buffer.getShort(getCellSlotOffset(index) + Page.SLOT_LENGTH_FIELD);
+    }
+
+    public byte[] getCell(int index) {
+        byte[] cell = new byte[getCellSize(index)];
+        this.buffer.get(getCellOffset(index), cell);
+        return cell;
+    }
+
+    public boolean isOverflowCell(int index) {
+        return this.buffer.get(getCellOffset(index) + KEY_SIZE) == OVERFLOW_ROW;
+    }
+
+    public byte[] getInlineRow(int index) {
+        byte[] row = new byte[getCellSize(index) - CELL_HEADER_SIZE];
+        this.buffer.get(getCellOffset(index) + CELL_HEADER_SIZE, row);
+        return row;
+    }
+
+    public RecordView viewInlineRow(int index, RecordView view) {
+        return view.wrap(this.buffer, getCellOffset(index) + CELL_HEADER_SIZE, getCellSize(index) - CELL_HEADER_SIZE);
+    }
+
+    public int getOverflowRowLength(int index) {
+        return this.buffer.getInt(getCellOffset(index) + CELL_HEADER_SIZE);
+    }
+
+    public int getOverflowPageNumber(int index) {
+        return this.buffer.getInt(getCellOffset(index) + CELL_HEADER_SIZE + 4);
+    }
+
+    /**
+     * Espaço que a folha clustered ainda pode dar a células novas, contando os bytes de células
+     * removidas, que voltam a ser usados quando a folha é compactada.
+     */
+    public int getAvailableCellSpace() {
+        int endOfSlotArray = getCellSlotOffset(getKeyCount());
+        return this.page.getFreeSpacePointer() - endOfSlotArray + this.buffer.getInt(FRAGMENTED_BYTES_OFFSET);
+    }
+
+    /**
+     * Grava a célula na posição index da folha clustered, compactando a área de células se o espaço
+     * contíguo não bastar.
+     */
+    public void insertCell(int index, byte[] cell) {
+        int keyCount = getKeyCount();
+        if (getAvailableCellSpace() < cell.length + Page.SLOT_SIZE) {
+            throw new IllegalStateException("Não há espaço suficiente na folha " + getPageNumber() + " para a célula.");
+        }
+        if (this.page.getFreeSpacePointer() - getCellSlotOffset(keyCount) < cell.length + Page.SLOT_SIZE) {
+            compactCells();
+        }
+
+        int cellOffset = this.page.getFreeSpacePointer() - cell.length;
+        this.buffer.put(cellOffset, cell);
+        this.page.setFreeSpacePointer(cellOffset);
+
+        moveBytes(getCellSlotOffset(index), getCellSlotOffset(index + 1), (keyCount - index) * Page.SLOT_SIZE);
+        this.buffer.putShort(getCellSlotOffset(index) + Page.SLOT_OFFSET_FIELD, (short) cellOffset);
+        this.buffer.putShort(getCellSlotOffset(index) + Page.SLOT_LENGTH_FIELD, (short) cell.length);
+        setKeyCount(keyCount + 1);
+    }
+
+    public void removeCell(int index) {
+        removeCells(index, 1);
+    }
+
+    /**
+     * Remove count células a partir de index. Os bytes delas só são recuperados na próxima compactação.
+     */
+    public void removeCells(int index, int count) {
+        int keyCount = getKeyCount();
+        int removedBytes = 0;
+        for (int i = index; i < index + count; i++) {
+            removedBytes += getCellSize(i);
+        }
+        this.buffer.putInt(FRAGMENTED_BYTES_OFFSET, this.buffer.getInt(FRAGMENTED_BYTES_OFFSET) + removedBytes);
+
+        moveBytes(getCellSlotOffset(index + count), getCellSlotOffset(index), (keyCount - index - count) * Page.SLOT_SIZE);
+        setKeyCount(keyCount - count);
+    }
+
+    /**
+     * Troca a célula da posição index, no mesmo lugar se a nova não for maior. Retorna false, sem
+     * alterar a folha, se a nova célula não couber.
+     */
+    public boolean replaceCell(int index, byte[] cell) {
+        int oldSize = getCellSize(index);
+        if (cell.length <= oldSize) {
+            this.buffer.put(getCellOffset(index), cell);
+            this.buffer.putShort(getCellSlotOffset(index) + Page.SLOT_LENGTH_FIELD, (short) cell.length);
+            this.buffer.putInt(FRAGMENTED_BYTES_OFFSET, this.buffer.getInt(FRAGMENTED_BYTES_OFFSET) + oldSize - cell.length);
+            this.page.markAsDirty();
+            return true;
+        }
+        if (getAvailableCellSpace() + oldSize < cell.length) {
+            return false;
+        }
+        removeCell(index);
+        insertCell(index, cell);
+        return true;
+    }
+
+    /**
+     * Copia count células da folha clustered, a partir de from, para a posição to da folha target.
+     */
+    public void copyCellsTo(BTreeNode target, int from, int to, int count) {
+        for (int i = 0; i < count; i++) {
+            target.insertCell(to + i, getCell(from + i));
+        }
+    }
+
+    /**
+     * Junta as células no fim da página, na ordem das chaves, eliminando os bytes fragmentados.
+     */
+    public void compactCells() {
+        int keyCount = getKeyCount();
+        byte[][] cells = new byte[keyCount][];
+        for (int i = 0; i < keyCount; i++) {
+            cells[i] = getCell(i);
+        }
+
+        int freeSpacePointer = this.page.getSize();
+        for (int i = 0; i < keyCount; i++) {
+            freeSpacePointer -= cells[i].length;
+            this.buffer.put(freeSpacePointer, cells[i]);
+            this.buffer.putShort(getCellSlotOffset(i) + Page.SLOT_OFFSET_FIELD, (short) freeSpacePointer);
+        }
+        this.buffer.putInt(FRAGMENTED_BYTES_OFFSET, 0);
+        this.page.setFreeSpacePointer(freeSpacePointer);
+    }
+
+    public int getFragmentedBytes() {
+        return this.buffer.getInt(FRAGMENTED_BYTES_OFFSET);
+    }
+
+    private void moveBytes(int from, int to, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (this.buffer.hasArray()) {
+            byte[] array = this.buffer.array();
+            int base = this.buffer.arrayOffset();
+            System.arraycopy(array, base + from, array, base + to, length);
+        } else {
+            // Páginas mapeadas não expõem o array; a cópia intermediária evita depender da sobreposição.
+            byte[] bytes = new byte[length];
+            this.buffer.get(from, bytes);
+            this.buffer.put(to, bytes);
+        }
+    }
+
     public int getNextSiblingPointer() {
-        if (!isLeaf()) {
+        if (!this.leaf) {
             throw new IllegalStateException("Apenas nós folha possuem ponteiros para irmãos.");
         }
-        ByteBuffer buffer = ByteBuffer.wrap(this.page.getBytes());
-        return buffer.getInt(Page.NEXT_SIBLING_POINTER_OFFSET);
+        return this.buffer.getInt(Page.NEXT_SIBLING_POINTER_OFFSET);
     }
 
     public void setNextSiblingPointer(int pageNumber) {
-        if (!isLeaf()) {
+        if (!this.leaf) {
             throw new IllegalStateException("Apenas nós folha possuem ponteiros para irmãos.");
         }
-        ByteBuffer buffer = ByteBuffer.wrap(this.page.getBytes());
-        buffer.putInt(Page.NEXT_SIBLING_POINTER_OFFSET, pageNumber);
+        this.buffer.putInt(Page.NEXT_SIBLING_POINTER_OFFSET, pageNumber);
         page.markAsDirty();
     }
 
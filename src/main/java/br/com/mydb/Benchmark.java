@@ -0,0 +1,1109 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Medições de desempenho executadas fora do console, sobre bancos temporários:
+ * java -cp mydb.jar br.com.mydb.Benchmark <cenário> [linhas]
+ */
+public class Benchmark {
+
+    private static final List<Column> SCHEMA = List.of(
+            new Column("id", DataType.INTEGER, 1),
+            new Column("nome", DataType.VARCHAR, 2),
+            new Column("idade", DataType.INTEGER, 3));
+
+    private static final List<Column> SCHEMA_LARGO = List.of(
+            new Column("id", DataType.INTEGER, 1),
+            new Column("nome", DataType.VARCHAR, 2),
+            new Column("email", DataType.VARCHAR, 3),
+            new Column("cidade", DataType.VARCHAR, 4),
+            new Column("idade", DataType.INTEGER, 5),
+            new Column("saldo", DataType.INTEGER, 6),
+            new Column("pontos", DataType.INTEGER, 7),
+            new Column("visitas", DataType.INTEGER, 8),
+            new Column("descricao", DataType.VARCHAR, 9),
+            new Column("categoria", DataType.INTEGER, 10));
+
+    private static final String[] STATUS = {"ativo", "inativo", "pendente", "bloqueado"};
+    private static final String[] PAISES = {"Brasil", "Argentina", "Portugal", "Chile", "Uruguai", "Paraguai",
+            "Colômbia", "Peru"};
+    private static final String[] CATEGORIAS = {"eletrônicos", "vestuário", "alimentos", "livros", "brinquedos",
+            "ferramentas"};
+
+    public static void main(String[] args) throws IOException {
+        String cenario = args.length > 0 ? args[0] : "bulkload";
+        int linhas = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        switch (cenario) {
+            case "bulkload":
+                bulkLoad(linhas);
+                break;
+            case "lookup":
+                lookup(linhas);
+                break;
+            case "pointwrites":
+                pointWrites(linhas);
+                break;
+            case "clustered":
+                clustered(linhas, false);
+                clustered(linhas, true);
+                break;
+            case "scan":
+                scan(linhas);
+                break;
+            case "serializer":
+                serializer(linhas);
+                break;
+            case "colunas":
+                colunas(linhas, false);
+                colunas(linhas, true);
+                break;
+            case "dicionario":
+                dicionario(linhas, false, false);
+                dicionario(linhas, true, false);
+                dicionario(linhas, true, true);
+                break;
+            case "compressao":
+                compressao(linhas, false);
+                compressao(linhas, true);
+                break;
+            case "paralela":
+                paralela(linhas);
+                break;
+            case "leituraantecipada":
+                leituraAntecipada(linhas);
+                break;
+            case "concorrencia":
+                concorrencia(linhas);
+                break;
+            default:
+                System.out.println("Cenário desconhecido: " + cenario);
+                break;
+        }
+    }
+
+    private static void bulkLoad(int linhas) throws IOException {
+        List<Integer> chavesEmbaralhadas = new ArrayList<>();
+        for (int i = 0; i < linhas; i++) {
+            chavesEmbaralhadas.add(i);
+        }
+        Collections.shuffle(chavesEmbaralhadas, new Random(42));
+
+        medir("insert linha a linha (chaves aleatórias)", linhas, table -> {
+            for (int key : chavesEmbaralhadas) {
+                table.insert(key, linha(key));
+            }
+        });
+
+        medir("carga em massa (entrada ordenada)", linhas, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linha(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+        });
+
+        medir("carga em massa (ordenação externa, via Row)", linhas, table -> {
+            try (ExternalSorter sorter = new ExternalSorter(SCHEMA, Math.max(1, linhas / 8))) {
+                for (int key : chavesEmbaralhadas) {
+                    sorter.add(key, linha(key));
+                }
+                table.bulkLoad(sorter.sorted());
+            }
+        });
+
+        medir("carga em massa (ordenação externa)", linhas, table -> {
+            try (ExternalSorter sorter = new ExternalSorter(SCHEMA, Math.max(1, linhas / 8))) {
+                for (int key : chavesEmbaralhadas) {
+                    sorter.add(key, linha(key));
+                }
+                table.bulkLoad(sorter);
+            }
+        });
+    }
+
+    /**
+     * Buscas aleatórias pela chave primária, medindo só a descida na árvore (findDataOffset) e os bytes
+     * alocados pela thread por busca.
+     */
+    private static void lookup(int linhas) throws IOException {
+        medir("carga + buscas pela chave primária", linhas, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linha(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            int buscas = Math.max(1_000_000, linhas * 10);
+            buscar(table, buscas, linhas);
+
+            long bytesAntes = bytesAlocados();
+            long inicio = System.nanoTime();
+            long encontradas = buscar(table, buscas, linhas);
+            long ns = System.nanoTime() - inicio;
+            long bytes = bytesAlocados() - bytesAntes;
+
+            System.out.printf("%-45s %8d buscas %8.0f ns/busca %8.1f bytes/busca%n", "findDataOffset",
+                    encontradas, (double) ns / buscas, (double) bytes / buscas);
+        });
+    }
+
+    /**
+     * Escritas pontuais em ordem aleatória: inserção, atualização e upsert de chaves existentes.
+     */
+    private static void pointWrites(int linhas) throws IOException {
+        List<Integer> chavesEmbaralhadas = new ArrayList<>();
+        for (int i = 0; i < linhas; i++) {
+            chavesEmbaralhadas.add(i);
+        }
+        Collections.shuffle(chavesEmbaralhadas, new Random(42));
+
+        medir("insert + update + upsert (chaves aleatórias)", linhas, table -> {
+            PrintStream saida = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long[] ms = new long[3];
+            try {
+                long inicio = System.nanoTime();
+                for (int key : chavesEmbaralhadas) {
+                    table.insert(key, linha(key));
+                }
+                ms[0] = (System.nanoTime() - inicio) / 1_000_000;
+
+                inicio = System.nanoTime();
+                for (int key : chavesEmbaralhadas) {
+                    table.update(key, linha(key + 1));
+                }
+                ms[1] = (System.nanoTime() - inicio) / 1_000_000;
+
+                inicio = System.nanoTime();
+                for (int key : chavesEmbaralhadas) {
+                    table.upsert(key, linha(key + 2));
+                }
+                ms[2] = (System.nanoTime() - inicio) / 1_000_000;
+            } finally {
+                System.setOut(saida);
+            }
+            System.out.printf("%-45s %8d ms%n%-45s %8d ms%n%-45s %8d ms%n", "insert", ms[0], "update", ms[1],
+                    "upsert (chave existente)", ms[2]);
+        });
+    }
+
+    /**
+     * Buscas aleatórias com find e uma varredura completa em ordem de chave, com um buffer pool pequeno
+     * para que as páginas lidas do arquivo apareçam: a tabela comum lê a folha e a página de dados, a
+     * clustered só a folha.
+     */
+    private static void clustered(int linhas, boolean clustered) throws IOException {
+        String nome = clustered ? "tabela clustered" : "tabela com páginas de dados";
+        medir(nome, linhas, clustered, BufferPool.MIN_CAPACITY_IN_PAGES * 4, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linha(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            Pager pager = table.getPager();
+            int buscas = linhas;
+            Random random = new Random(7);
+            long lidasAntes = pager.getPagesRead();
+            long inicio = System.nanoTime();
+            for (int i = 0; i < buscas; i++) {
+                table.find(random.nextInt(linhas));
+            }
+            long ns = System.nanoTime() - inicio;
+            System.out.printf("%-45s %8d buscas %8.0f ns/busca %8.2f páginas lidas/busca%n", "find (" + nome + ")",
+                    buscas, (double) ns / buscas, (double) (pager.getPagesRead() - lidasAntes) / buscas);
+
+            lidasAntes = pager.getPagesRead();
+            inicio = System.nanoTime();
+            long linhasLidas = 0;
+            try (Cursor cursor = table.start()) {
+                while (!cursor.isEndOfTable()) {
+                    cursor.getRecord();
+                    linhasLidas++;
+                    cursor.advance();
+                }
+            }
+            System.out.printf("%-45s %8d linhas %8d ms %8d páginas lidas%n", "varredura (" + nome + ")", linhasLidas,
+                    (System.nanoTime() - inicio) / 1_000_000, pager.getPagesRead() - lidasAntes);
+        });
+    }
+
+    /**
+     * Varredura completa filtrando por uma coluna INTEGER, lendo cada linha pelo nome (Row), pela
+     * posição no esquema (CompactRow) e direto da página (RecordView).
+     */
+    private static void scan(int linhas) throws IOException {
+        medir("carga + varreduras completas", linhas, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linha(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            int idade = table.getSchema().indexOf(SCHEMA.get(2));
+            for (int rodada = 0; rodada < 3; rodada++) {
+                varrer(table, "Row.get(nome)", row -> (Integer) row.getRecord().get("idade") < 50);
+                varrer(table, "CompactRow.getInt(posição)", row -> row.getCompactRecord().getInt(idade) < 50);
+                varrer(table, "RecordView.getInt(posição)", row -> row.getRecordView().getInt(idade) < 50);
+            }
+        });
+    }
+
+    /**
+     * Gravação de linhas em páginas de dados em memória, sem o Pager: serializar em um byte[] e copiar
+     * para a página (serialize + addRecord) contra gravar direto no espaço reservado da página
+     * (RowCodec.write + allocateRecord). Depois, a leitura de volta pelos dois caminhos. Os dois lados
+     * usam o mesmo formato de registro, medido no formato antigo e no atual; no antigo entra também o
+     * RowSerializer escrito à mão, que era o caminho das tabelas antes do RowCodec.
+     */
+    private static void serializer(int linhas) throws IOException {
+        List<CompactRow> rows = new ArrayList<>(linhas);
+        for (int key = 0; key < linhas; key++) {
+            rows.add(CompactRow.of(linha(key), SCHEMA));
+        }
+        Page page = new Page(1, new byte[4096]).initializeAsDataPage();
+        int[] slots = new int[linhas];
+
+        for (int rodada = 0; rodada < 10; rodada++) {
+            for (int formato : new int[] {Database.LEGACY_FORMAT_VERSION, Database.CURRENT_FORMAT_VERSION}) {
+                RowCodec codec = RowCodec.forFormat(formato, SCHEMA);
+                String sufixo = " (formato " + formato + ")";
+
+                if (formato == Database.LEGACY_FORMAT_VERSION) {
+                    medirEmMemoria("RowSerializer.serialize + addRecord" + sufixo, linhas, () -> {
+                        for (int i = 0; i < linhas; i++) {
+                            slots[i] = adicionar(page, RowSerializer.serialize(rows.get(i)));
+                        }
+                    });
+                }
+                medirEmMemoria("RowCodec.serialize + addRecord" + sufixo, linhas, () -> {
+                    for (int i = 0; i < linhas; i++) {
+                        slots[i] = adicionar(page, codec.serialize(rows.get(i)));
+                    }
+                });
+                medirEmMemoria("RowCodec.write na página" + sufixo, linhas, () -> {
+                    for (int i = 0; i < linhas; i++) {
+                        CompactRow row = rows.get(i);
+                        int size = codec.sizeOf(row);
+                        if (page.getFreeSpace() < size + Page.SLOT_SIZE) {
+                            page.initializeAsDataPage();
+                        }
+                        int slotId = page.allocateRecord(size);
+                        codec.write(row, page.getBuffer(), page.getRecordOffset(slotId));
+                        slots[i] = slotId;
+                    }
+                });
+                // A página tem os registros do RowCodec.write, no formato medido.
+                medirEmMemoria("getRecord + RowCodec.deserialize" + sufixo, linhas, () -> {
+                    for (int i = 0; i < linhas; i++) {
+                        codec.deserialize(page.getRecord(i % page.getRowCount()));
+                    }
+                });
+                medirEmMemoria("RowCodec.read da página" + sufixo, linhas, () -> {
+                    for (int i = 0; i < linhas; i++) {
+                        int slotId = i % page.getRowCount();
+                        codec.read(page.getBuffer(), page.getRecordOffset(slotId), page.getRecordLength(slotId));
+                    }
+                });
+            }
+        }
+    }
+
+    private static int adicionar(Page page, byte[] record) {
+        if (page.getFreeSpace() < record.length + Page.SLOT_SIZE) {
+            page.initializeAsDataPage();
+        }
+        return page.addRecord(record);
+    }
+
+    /**
+     * Varreduras analíticas sobre uma tabela larga, lendo uma ou duas colunas: pelo cursor, que decodifica
+     * a linha inteira, e por scanColumns, que nas páginas PAX lê só as minipáginas das colunas pedidas.
+     */
+    private static void colunas(int linhas, boolean colunar) throws IOException {
+        String nome = colunar ? "tabela colunar (PAX)" : "tabela com páginas de dados";
+        Criacao criacao = database -> {
+            if (colunar) {
+                database.createColumnarTable("bench", SCHEMA_LARGO);
+            } else {
+                database.createTable("bench", SCHEMA_LARGO);
+            }
+        };
+        medir(nome, linhas, BufferPool.DEFAULT_CAPACITY_IN_PAGES, criacao, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linhaLarga(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            int saldo = table.getSchema().indexOf(SCHEMA_LARGO.get(5));
+            for (int rodada = 0; rodada < 3; rodada++) {
+                somar(table, "cursor: soma de saldo", () -> {
+                    long soma = 0;
+                    try (Cursor cursor = table.start()) {
+                        while (!cursor.isEndOfTable()) {
+                            soma += cursor.getCompactRecord().getInt(saldo);
+                            cursor.advance();
+                        }
+                    }
+                    return soma;
+                });
+                somar(table, "scanColumns: soma de saldo", () -> {
+                    long soma = 0;
+                    try (ColumnScan scan = table.scanColumns("saldo")) {
+                        while (scan.next()) {
+                            soma += scan.getInt(0);
+                        }
+                    }
+                    return soma;
+                });
+                somar(table, "scanColumns: saldo onde idade < 30", () -> {
+                    long soma = 0;
+                    try (ColumnScan scan = table.scanColumns("idade", "saldo")) {
+                        while (scan.next()) {
+                            if (scan.getInt(0) < 30) {
+                                soma += scan.getInt(1);
+                            }
+                        }
+                    }
+                    return soma;
+                });
+            }
+        });
+    }
+
+    /**
+     * Tabela de cadastro com três VARCHAR de poucos valores distintos, guardadas por extenso ou como
+     * códigos de dicionário: tamanho da tabela e varreduras com filtro de igualdade nessas colunas.
+     */
+    private static void dicionario(int linhas, boolean dicionario, boolean colunar) throws IOException {
+        String nome = !dicionario ? "valores por extenso" : colunar ? "dicionário, tabela colunar" : "dicionário";
+        List<Column> schema = List.of(
+                new Column("id", DataType.INTEGER, 1),
+                new Column("nome", DataType.VARCHAR, 2),
+                new Column("status", DataType.VARCHAR, 3, dicionario),
+                new Column("pais", DataType.VARCHAR, 4, dicionario),
+                new Column("categoria", DataType.VARCHAR, 5, dicionario),
+                new Column("idade", DataType.INTEGER, 6));
+        Criacao criacao = database -> {
+            if (colunar) {
+                database.createColumnarTable("bench", schema);
+            } else {
+                database.createTable("bench", schema);
+            }
+        };
+        medir(nome, linhas, BufferPool.DEFAULT_CAPACITY_IN_PAGES, criacao, table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linhaCadastro(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            int status = table.getSchema().indexOf(schema.get(2));
+            for (int rodada = 0; rodada < 3; rodada++) {
+                somar(table, "cursor: status = 'pendente'", () -> {
+                    long aceitas = 0;
+                    try (Cursor cursor = table.start()) {
+                        while (!cursor.isEndOfTable()) {
+                            if (cursor.getRecordView().equalsString(status, "pendente")) {
+                                aceitas++;
+                            }
+                            cursor.advance();
+                        }
+                    }
+                    return aceitas;
+                });
+                somar(table, "scanColumns: pais = 'Portugal'", () -> {
+                    long aceitas = 0;
+                    try (ColumnScan scan = table.scanColumns("pais")) {
+                        while (scan.next()) {
+                            if (scan.equalsString(0, "Portugal")) {
+                                aceitas++;
+                            }
+                        }
+                    }
+                    return aceitas;
+                });
+            }
+        });
+    }
+
+    /**
+     * Tabela larga com páginas de dados comuns ou comprimidas: espaço ocupado pelas páginas depois da
+     * carga e uma varredura a frio, com o banco reaberto e um cache pequeno, contando os bytes lidos.
+     */
+    private static void compressao(int linhas, boolean comprimida) throws IOException {
+        String nome = comprimida ? "páginas de dados comprimidas" : "páginas de dados comuns";
+        Path dir = Files.createTempDirectory("mydb-bench-");
+        Path arquivo = dir.resolve("bench.bd");
+        try {
+            Database database = new Database(arquivo.toString());
+            if (comprimida) {
+                database.createCompressedTable("bench", SCHEMA_LARGO);
+            } else {
+                database.createTable("bench", SCHEMA_LARGO);
+            }
+            Table table = database.openTable("bench");
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linhaLarga(key)));
+            }
+            long inicio = System.nanoTime();
+            table.bulkLoad(ordenadas.iterator());
+            long ms = (System.nanoTime() - inicio) / 1_000_000;
+            fechar(database, table);
+
+            database = new Database(arquivo.toString(), BufferPool.MIN_CAPACITY_IN_PAGES * 4);
+            table = database.openTable("bench");
+            Pager pager = table.getPager();
+            long ocupados = (long) (pager.getNumPages() - pager.getCompressedPageCount()) * pager.getPageSize()
+                    + pager.getCompressedBytes();
+            System.out.printf("%-45s %8d linhas %8d ms %10d KB em páginas%n", nome, linhas, ms, ocupados / 1024);
+
+            int saldo = table.getSchema().indexOf(SCHEMA_LARGO.get(5));
+            long lidasAntes = pager.getPagesRead();
+            long bytesAntes = pager.getBytesRead();
+            inicio = System.nanoTime();
+            long soma = 0;
+            try (Cursor cursor = table.start()) {
+                while (!cursor.isEndOfTable()) {
+                    soma += cursor.getRecordView().getInt(saldo);
+                    cursor.advance();
+                }
+            }
+            ms = (System.nanoTime() - inicio) / 1_000_000;
+            System.out.printf("%-45s %12d soma %8d ms %8d páginas lidas %8d KB lidos%n", "varredura a frio", soma,
+                    ms, pager.getPagesRead() - lidasAntes, (pager.getBytesRead() - bytesAntes) / 1024);
+            fechar(database, table);
+        } finally {
+            try (var arquivos = Files.list(dir)) {
+                for (Path p : arquivos.toList()) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Varreduras a frio de uma tabela carregada em ordem aleatória, cujas páginas de dados ficam fora da
+     * ordem das folhas: com o banco reaberto e um cache pequeno, sem e com a leitura antecipada.
+     */
+    private static void leituraAntecipada(int linhas) throws IOException {
+        Path dir = Files.createTempDirectory("mydb-bench-");
+        Path arquivo = dir.resolve("bench.bd");
+        try {
+            List<Integer> chavesEmbaralhadas = new ArrayList<>();
+            for (int i = 0; i < linhas; i++) {
+                chavesEmbaralhadas.add(i);
+            }
+            Collections.shuffle(chavesEmbaralhadas, new Random(42));
+
+            Database database = new Database(arquivo.toString());
+            database.createTable("bench", SCHEMA_LARGO);
+            Table table = database.openTable("bench");
+            for (int key : chavesEmbaralhadas) {
+                table.insert(key, linhaLarga(key));
+            }
+            fechar(database, table);
+
+            int saldo = SCHEMA_LARGO.indexOf(SCHEMA_LARGO.get(5));
+            for (int rodada = 0; rodada < 2; rodada++) {
+                for (boolean antecipada : new boolean[]{false, true}) {
+                    Database reaberto = new Database(arquivo.toString(), BufferPool.DEFAULT_CAPACITY_IN_PAGES);
+                    Table fria = reaberto.openTable("bench");
+                    fria.getPager().setReadAheadEnabled(antecipada);
+                    somar(fria, antecipada ? "varredura a frio com leitura antecipada" : "varredura a frio", () -> {
+                        long soma = 0;
+                        try (Cursor cursor = fria.start()) {
+                            while (!cursor.isEndOfTable()) {
+                                soma += cursor.getRecordView().getInt(saldo);
+                                cursor.advance();
+                            }
+                        }
+                        return soma;
+                    });
+                    fechar(reaberto, fria);
+                }
+            }
+        } finally {
+            try (var arquivos = Files.list(dir)) {
+                for (Path p : arquivos.toList()) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Soma e contagem com filtro sobre uma tabela larga: pelo cursor único, que segue as folhas uma a
+     * uma, e pela ParallelScan, que divide as chaves em faixas lidas por todas as threads do pool comum.
+     */
+    private static void paralela(int linhas) throws IOException {
+        System.out.println("threads do pool comum: " + ForkJoinPool.commonPool().getParallelism());
+        medir("tabela com páginas de dados", linhas, BufferPool.DEFAULT_CAPACITY_IN_PAGES,
+                database -> database.createTable("bench", SCHEMA_LARGO), table -> {
+            List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+            for (int key = 0; key < linhas; key++) {
+                ordenadas.add(new KeyedRow(key, linhaLarga(key)));
+            }
+            table.bulkLoad(ordenadas.iterator());
+
+            int idade = table.getSchema().indexOf(SCHEMA_LARGO.get(4));
+            int saldo = table.getSchema().indexOf(SCHEMA_LARGO.get(5));
+            int cidade = table.getSchema().indexOf(SCHEMA_LARGO.get(3));
+            System.out.println("faixas: " + table.parallelScan().getRanges().size());
+            for (int rodada = 0; rodada < 3; rodada++) {
+                somar(table, "cursor: saldo onde idade < 30", () -> {
+                    long soma = 0;
+                    try (Cursor cursor = table.start()) {
+                        while (!cursor.isEndOfTable()) {
+                            RecordView row = cursor.getRecordView();
+                            if (row.getInt(idade) < 30) {
+                                soma += row.getInt(saldo);
+                            }
+                            cursor.advance();
+                        }
+                    }
+                    return soma;
+                });
+                somar(table, "paralela: saldo onde idade < 30", () -> table.parallelScan().aggregate(
+                        () -> new long[1], (soma, row) -> {
+                            if (row.getInt(idade) < 30) {
+                                soma[0] += row.getInt(saldo);
+                            }
+                        }, (a, b) -> {
+                            a[0] += b[0];
+                            return a;
+                        })[0]);
+                somar(table, "cursor: contagem de cidade", () -> {
+                    long contagem = 0;
+                    try (Cursor cursor = table.start()) {
+                        while (!cursor.isEndOfTable()) {
+                            if (cursor.getRecordView().getString(cidade).startsWith("cidade_1")) {
+                                contagem++;
+                            }
+                            cursor.advance();
+                        }
+                    }
+                    return contagem;
+                });
+                somar(table, "paralela: contagem de cidade",
+                        () -> table.parallelScan().count(row -> row.getString(cidade).startsWith("cidade_1")));
+            }
+        });
+    }
+
+    /**
+     * Leitores, escritores e VACUUM ao mesmo tempo em duas tabelas com índice na idade, e um cache pequeno
+     * para que as threads disputem o buffer pool e leiam páginas do disco juntas. As linhas carregadas
+     * (chaves abaixo de linhas, idade = chave % 100) nunca mudam de conteúdo: os leitores conferem contra
+     * elas buscas, faixas, a varredura paralela e o índice. Cada escritor tem a sua faixa de chaves nas
+     * duas tabelas, onde insere, apaga e regrava linhas com idade a partir de 100, fora das consultas do
+     * índice, e guarda o conteúdo esperado em mapas próprios. As exclusões esvaziam e juntam folhas,
+     * devolvendo páginas à lista de páginas livres que as inserções reaproveitam. No fim, e de novo com o
+     * banco reaberto, as tabelas são comparadas com as linhas carregadas somadas aos mapas dos escritores.
+     */
+    private static void concorrencia(int linhas) throws IOException {
+        String[] nomes = {"bench", "bench2"};
+        int escritoresMax = 2;
+        Path dir = Files.createTempDirectory("mydb-bench-");
+        Path arquivo = dir.resolve("bench.bd");
+        PrintStream saida = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Database database = new Database(arquivo.toString(), 128);
+            List<Table> tabelas = new ArrayList<>();
+            for (String nome : nomes) {
+                database.createTable(nome, SCHEMA);
+                database.createIndex(nome + "_idade", nome, "idade");
+                Table table = database.openTable(nome);
+                List<KeyedRow> ordenadas = new ArrayList<>(linhas);
+                for (int key = 0; key < linhas; key++) {
+                    ordenadas.add(new KeyedRow(key, linha(key)));
+                }
+                table.bulkLoad(ordenadas.iterator());
+                tabelas.add(table);
+            }
+
+            // Linhas de cada escritor por tabela: chave -> idade.
+            List<List<TreeMap<Integer, Integer>>> proprias = new ArrayList<>();
+            int[][] proximas = new int[escritoresMax][nomes.length];
+            for (int e = 0; e < escritoresMax; e++) {
+                proprias.add(new ArrayList<>());
+                for (int t = 0; t < nomes.length; t++) {
+                    proprias.get(e).add(new TreeMap<>());
+                }
+            }
+            // Inserções em sequência dividem as folhas ao meio: a faixa de cada escritor começa com folhas
+            // perto do mínimo, e as exclusões logo passam a juntá-las em vez de pedir chaves emprestadas.
+            for (int e = 0; e < escritoresMax; e++) {
+                for (int t = 0; t < nomes.length; t++) {
+                    for (int i = 0; i < linhas / 10; i++) {
+                        int key = linhas + e * 1_000_000 + proximas[e][t]++;
+                        tabelas.get(t).insert(key, linha(key, 100 + i % 50));
+                        proprias.get(e).get(t).put(key, 100 + i % 50);
+                    }
+                }
+            }
+
+            for (int escritores : new int[]{0, escritoresMax}) {
+                for (int leitores : new int[]{1, 2, 4, 8}) {
+                    String resultado = concorrer(database, nomes, tabelas, linhas, leitores, escritores, proprias,
+                            proximas);
+                    saida.println(resultado);
+                }
+            }
+
+            int livres = database.getFreePageCount();
+            for (int t = 0; t < nomes.length; t++) {
+                conferirTabela(tabelas.get(t), linhas, proprias, t);
+            }
+            Map<String, Table> abertas = new HashMap<>();
+            for (int t = 0; t < nomes.length; t++) {
+                abertas.put(nomes[t], tabelas.get(t));
+            }
+            database.close(abertas);
+
+            Database reaberto = new Database(arquivo.toString(), 128);
+            abertas.clear();
+            int linhasFinais = 0;
+            for (int t = 0; t < nomes.length; t++) {
+                Table table = reaberto.openTable(nomes[t]);
+                linhasFinais += conferirTabela(table, linhas, proprias, t);
+                abertas.put(nomes[t], table);
+            }
+            reaberto.close(abertas);
+            saida.printf("%-45s %10d linhas %10d páginas livres%n", "conferência final (também reaberto)",
+                    linhasFinais, livres);
+        } finally {
+            System.setOut(saida);
+            try (var arquivos = Files.list(dir)) {
+                for (Path p : arquivos.toList()) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static String concorrer(Database database, String[] nomes, List<Table> tabelas, int linhas, int leitores,
+                                    int escritores, List<List<TreeMap<Integer, Integer>>> proprias,
+                                    int[][] proximas) throws IOException {
+        long duracaoMs = 1_000;
+        long fim = System.nanoTime() + duracaoMs * 1_000_000;
+        AtomicReference<Throwable> falha = new AtomicReference<>();
+        long[] leituras = new long[leitores];
+        long[] escritas = new long[escritores];
+        AtomicInteger vacuums = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < leitores; t++) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    while (System.nanoTime() < fim && falha.get() == null) {
+                        Table table = tabelas.get(random.nextInt(tabelas.size()));
+                        int operacao = random.nextInt(64);
+                        if (operacao == 0) {
+                            long contagem = table.parallelScan().count(row -> row.getInt(0) < linhas);
+                            if (contagem != linhas) {
+                                throw new IllegalStateException("Varredura paralela contou " + contagem
+                                        + " linhas carregadas; esperadas " + linhas + ".");
+                            }
+                        } else if (operacao < 8) {
+                            conferirFaixa(table, random.nextInt(linhas), linhas);
+                        } else if (operacao < 16) {
+                            conferirIndice(table, random.nextInt(100), linhas);
+                        } else {
+                            conferirBusca(table, random.nextInt(linhas));
+                        }
+                        leituras[id]++;
+                    }
+                } catch (Throwable e) {
+                    falha.compareAndSet(null, e);
+                }
+            }, "leitor-" + t));
+        }
+        for (int e = 0; e < escritores; e++) {
+            int id = e;
+            threads.add(new Thread(() -> {
+                Random random = new Random(100 + id);
+                try {
+                    while (System.nanoTime() < fim && falha.get() == null) {
+                        int t = random.nextInt(tabelas.size());
+                        escrever(tabelas.get(t), linhas + id * 1_000_000, random, linhas, proprias.get(id).get(t),
+                                proximas[id], t);
+                        escritas[id]++;
+                    }
+                } catch (Throwable ex) {
+                    falha.compareAndSet(null, ex);
+                }
+            }, "escritor-" + e));
+        }
+        if (escritores > 0) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < fim && falha.get() == null) {
+                        Thread.sleep(200);
+                        database.vacuum(nomes[vacuums.getAndIncrement() % nomes.length]);
+                    }
+                } catch (Throwable ex) {
+                    falha.compareAndSet(null, ex);
+                }
+            }, "vacuum"));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrompido esperando as threads do cenário.", e);
+            }
+        }
+        if (falha.get() != null) {
+            throw new IllegalStateException("Falha com " + leitores + " leitor(es) e " + escritores + " escritor(es).",
+                    falha.get());
+        }
+
+        long totalLeituras = 0;
+        for (long n : leituras) {
+            totalLeituras += n;
+        }
+        long totalEscritas = 0;
+        for (long n : escritas) {
+            totalEscritas += n;
+        }
+        return String.format("%-45s %10.0f leituras/s %10.0f escritas/s %4d vacuum(s)",
+                leitores + " leitor(es), " + escritores + " escritor(es)",
+                totalLeituras * 1000.0 / duracaoMs, totalEscritas * 1000.0 / duracaoMs, vacuums.get());
+    }
+
+    /**
+     * Uma escrita na faixa do escritor que começa em base: insere a próxima chave, apaga ou regrava uma das
+     * suas, ou regrava uma linha carregada com o mesmo conteúdo. Inserções e exclusões têm o mesmo peso e
+     * metade das exclusões leva a chave mais antiga, então as folhas do começo da faixa se esvaziam e
+     * juntam-se às vizinhas.
+     */
+    private static void escrever(Table table, int base, Random random, int linhas, TreeMap<Integer, Integer> proprias,
+                                 int[] proximas, int tabela) throws IOException {
+        int operacao = random.nextInt(10);
+        if (operacao < 4 || (operacao < 9 && proprias.isEmpty())) {
+            int key = base + proximas[tabela]++;
+            int idade = 100 + random.nextInt(50);
+            table.insert(key, linha(key, idade));
+            proprias.put(key, idade);
+        } else if (operacao < 8) {
+            int key = random.nextBoolean() ? proprias.firstKey() : sortear(proprias, base, random, proximas[tabela]);
+            table.delete(key);
+            proprias.remove(key);
+        } else if (operacao < 9) {
+            int key = sortear(proprias, base, random, proximas[tabela]);
+            int idade = 100 + random.nextInt(50);
+            table.upsert(key, linha(key, idade));
+            proprias.put(key, idade);
+        } else {
+            int key = random.nextInt(linhas);
+            table.upsert(key, linha(key));
+        }
+    }
+
+    private static int sortear(TreeMap<Integer, Integer> proprias, int base, Random random, int proxima) {
+        Integer key = proprias.ceilingKey(base + random.nextInt(proxima));
+        return key != null ? key : proprias.firstKey();
+    }
+
+    /**
+     * Compara a tabela com as linhas carregadas e as dos escritores, pela varredura em ordem de chave, por
+     * busca e pelo índice de idade. Retorna o número de linhas.
+     */
+    private static int conferirTabela(Table table, int linhas, List<List<TreeMap<Integer, Integer>>> proprias, int tabela)
+            throws IOException {
+        Map<Integer, Integer> esperadas = new TreeMap<>();
+        for (int key = 0; key < linhas; key++) {
+            esperadas.put(key, key % 100);
+        }
+        for (List<TreeMap<Integer, Integer>> doEscritor : proprias) {
+            esperadas.putAll(doEscritor.get(tabela));
+        }
+
+        var iterador = esperadas.entrySet().iterator();
+        try (Cursor cursor = table.start()) {
+            while (!cursor.isEndOfTable()) {
+                Row row = cursor.getRecord();
+                Map.Entry<Integer, Integer> esperada = iterador.hasNext() ? iterador.next() : null;
+                if (esperada == null || cursor.getKey() != esperada.getKey() || !conferir(row, esperada)) {
+                    throw new IllegalStateException("Varredura final leu " + row + " na chave " + cursor.getKey()
+                            + "; esperada " + esperada + ".");
+                }
+                cursor.advance();
+            }
+        }
+        if (iterador.hasNext()) {
+            throw new IllegalStateException("Varredura final terminou antes da chave " + iterador.next().getKey() + ".");
+        }
+
+        int noIndice = 0;
+        try (Cursor cursor = table.getIndex("idade").scanRange(Integer.MIN_VALUE, Integer.MAX_VALUE, true, true)) {
+            while (!cursor.isEndOfTable()) {
+                Row row = cursor.getRecord();
+                Integer idade = esperadas.get((Integer) row.get("id"));
+                if (idade == null || !idade.equals(row.get("idade"))) {
+                    throw new IllegalStateException("Índice de idade leu " + row + "; esperada idade " + idade + ".");
+                }
+                noIndice++;
+                cursor.advance();
+            }
+        }
+        if (noIndice != esperadas.size()) {
+            throw new IllegalStateException("Índice de idade com " + noIndice + " linhas; esperadas " + esperadas.size() + ".");
+        }
+
+        for (Map.Entry<Integer, Integer> esperada : esperadas.entrySet()) {
+            Row row = table.find(esperada.getKey());
+            if (row == null || !conferir(row, esperada)) {
+                throw new IllegalStateException("Busca final pela chave " + esperada.getKey() + " devolveu " + row + ".");
+            }
+        }
+        return esperadas.size();
+    }
+
+    private static boolean conferir(Row row, Map.Entry<Integer, Integer> esperada) {
+        return ("usuario_" + esperada.getKey()).equals(row.get("nome")) && esperada.getValue().equals(row.get("idade"));
+    }
+
+    private static void conferirBusca(Table table, int key) throws IOException {
+        Row row = table.find(key);
+        if (row == null || !("usuario_" + key).equals(row.get("nome")) || !Integer.valueOf(key % 100).equals(row.get("idade"))) {
+            throw new IllegalStateException("Busca pela chave " + key + " devolveu " + row + ".");
+        }
+    }
+
+    /**
+     * Faixa de até 1.000 chaves entre as carregadas, que nunca são removidas: todas precisam aparecer, em ordem.
+     */
+    private static void conferirFaixa(Table table, int inicio, int linhas) throws IOException {
+        int ultima = Math.min(linhas - 1, inicio + 999);
+        int esperada = inicio;
+        try (Cursor cursor = table.scanRange(inicio, ultima, true, true)) {
+            while (!cursor.isEndOfTable()) {
+                if (cursor.getKey() != esperada) {
+                    throw new IllegalStateException("Faixa a partir de " + inicio + " leu a chave " + cursor.getKey()
+                            + "; esperada " + esperada + ".");
+                }
+                esperada++;
+                cursor.advance();
+            }
+        }
+        if (esperada != ultima + 1) {
+            throw new IllegalStateException("Faixa de " + inicio + " a " + ultima + " terminou na chave " + (esperada - 1) + ".");
+        }
+    }
+
+    /**
+     * Linhas com a idade dada pelo índice: só as carregadas têm idade abaixo de 100, então são exatamente as
+     * chaves abaixo de linhas com esse resto.
+     */
+    private static void conferirIndice(Table table, int idade, int linhas) throws IOException {
+        int encontradas = 0;
+        try (Cursor cursor = table.getIndex("idade").scanRange(idade, idade, true, true)) {
+            while (!cursor.isEndOfTable()) {
+                Row row = cursor.getRecord();
+                int key = (Integer) row.get("id");
+                if (key >= linhas || key % 100 != idade || !Integer.valueOf(idade).equals(row.get("idade"))) {
+                    throw new IllegalStateException("Índice de idade " + idade + " leu " + row + ".");
+                }
+                encontradas++;
+                cursor.advance();
+            }
+        }
+        int esperadas = linhas / 100 + (idade < linhas % 100 ? 1 : 0);
+        if (encontradas != esperadas) {
+            throw new IllegalStateException("Índice de idade " + idade + " com " + encontradas + " linhas; esperadas "
+                    + esperadas + ".");
+        }
+    }
+
+    private static void fechar(Database database, Table table) throws IOException {
+        Map<String, Table> openTables = new HashMap<>();
+        openTables.put("bench", table);
+        database.close(openTables);
+    }
+
+    private static void somar(Table table, String nome, Soma soma) throws IOException {
+        Pager pager = table.getPager();
+        long lidasAntes = pager.getPagesRead();
+        long inicio = System.nanoTime();
+        long total = soma.executar();
+        long ns = System.nanoTime() - inicio;
+        System.out.printf("%-45s %12d soma %8d ms %8d páginas lidas%n", nome, total, ns / 1_000_000,
+                pager.getPagesRead() - lidasAntes);
+    }
+
+    private static void medirEmMemoria(String nome, int linhas, Trabalho trabalho) throws IOException {
+        long bytesAntes = bytesAlocados();
+        long inicio = System.nanoTime();
+        trabalho.executar();
+        long ns = System.nanoTime() - inicio;
+        long bytes = bytesAlocados() - bytesAntes;
+        System.out.printf("%-45s %8d linhas %8.1f ns/linha %8.1f bytes/linha%n", nome, linhas,
+                (double) ns / linhas, (double) bytes / linhas);
+    }
+
+    private static void varrer(Table table, String nome, Filtro filtro) throws IOException {
+        long bytesAntes = bytesAlocados();
+        long inicio = System.nanoTime();
+        long lidas = 0;
+        long aceitas = 0;
+        try (Cursor cursor = table.start()) {
+            while (!cursor.isEndOfTable()) {
+                if (filtro.aceita(cursor)) {
+                    aceitas++;
+                }
+                lidas++;
+                cursor.advance();
+            }
+        }
+        long ns = System.nanoTime() - inicio;
+        long bytes = bytesAlocados() - bytesAntes;
+        System.out.printf("%-45s %8d aceitas %8.0f ns/linha %8.1f bytes/linha%n", nome, aceitas,
+                (double) ns / lidas, (double) bytes / lidas);
+    }
+
+    private static long buscar(Table table, int buscas, int linhas) throws IOException {
+        Random random = new Random(7);
+        long encontradas = 0;
+        for (int i = 0; i < buscas; i++) {
+            if (table.findDataOffset(random.nextInt(linhas)) != -1L) {
+                encontradas++;
+            }
+        }
+        return encontradas;
+    }
+
+    private static long bytesAlocados() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static Row linha(int key) {
+        return linha(key, key % 100);
+    }
+
+    private static Row linha(int key, int idade) {
+        Row row = new Row();
+        row.put("id", key);
+        row.put("nome", "usuario_" + key);
+        row.put("idade", idade);
+        return row;
+    }
+
+    private static Row linhaLarga(int key) {
+        Row row = new Row();
+        row.put("id", key);
+        row.put("nome", "usuario_" + key);
+        row.put("email", "usuario_" + key + "@exemplo.com.br");
+        row.put("cidade", "cidade_" + (key % 500));
+        row.put("idade", key % 100);
+        row.put("saldo", (key * 37) % 10_000);
+        row.put("pontos", key % 1_000);
+        row.put("visitas", key % 50);
+        row.put("descricao", "cliente cadastrado pelo lote " + (key / 1_000) + " na campanha " + (key % 7));
+        row.put("categoria", key % 5);
+        return row;
+    }
+
+    private static Row linhaCadastro(int key) {
+        Row row = new Row();
+        row.put("id", key);
+        row.put("nome", "usuario_" + key);
+        row.put("status", STATUS[key % STATUS.length]);
+        row.put("pais", PAISES[(key / 3) % PAISES.length]);
+        row.put("categoria", CATEGORIAS[(key / 7) % CATEGORIAS.length]);
+        row.put("idade", key % 100);
+        return row;
+    }
+
+    private static void medir(String nome, int linhas, Carga carga) throws IOException {
+        medir(nome, linhas, false, BufferPool.DEFAULT_CAPACITY_IN_PAGES, carga);
+    }
+
+    private static void medir(String nome, int linhas, boolean clustered, int paginasEmCache, Carga carga)
+            throws IOException {
+        medir(nome, linhas, paginasEmCache, database -> database.createTable("bench", SCHEMA, clustered), carga);
+    }
+
+    private static void medir(String nome, int linhas, int paginasEmCache, Criacao criacao, Carga carga)
+            throws IOException {
+        Path dir = Files.createTempDirectory("mydb-bench-");
+        Path arquivo = dir.resolve("bench.bd");
+        try {
+            Database database = new Database(arquivo.toString(), paginasEmCache);
+            criacao.criar(database);
+            Table table = database.openTable("bench");
+
+            long inicio = System.nanoTime();
+            carga.executar(table);
+            long ms = (System.nanoTime() - inicio) / 1_000_000;
+            int paginas = table.getNumPages();
+            fechar(database, table);
+
+            System.out.printf("%-45s %8d linhas %8d ms %10.0f linhas/s %6d páginas%n", nome, linhas, ms,
+                    linhas * 1000.0 / Math.max(1, ms), paginas);
+        } finally {
+            try (var arquivos = Files.list(dir)) {
+                for (Path p : arquivos.toList()) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Criacao {
+        void criar(Database database) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Soma {
+        long executar() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Carga {
+        void executar(Table table) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Trabalho {
+        void executar() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Filtro {
+        boolean aceita(Cursor cursor) throws IOException;
+    }
+}
@@ -0,0 +1,185 @@
+package br.com.mydb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BufferPool {
+
+    public static final int DEFAULT_CAPACITY_IN_PAGES = 1024;
+    public static final int MIN_CAPACITY_IN_PAGES = 16;
+
+    private final int capacity;
+    private final List<Frame> frames;
+    // Frames indexados pelo número da página em uma tabela de endereçamento aberto, para que a busca
+    // de uma página não precise criar um Integer a cada acesso.
+    private Frame[] framesByPageNumber;
+    private int clockHand;
+
+    public BufferPool(int capacityInPages) {
+        if (capacityInPages < MIN_CAPACITY_IN_PAGES) {
+            throw new IllegalArgumentException("O buffer pool precisa de pelo menos " + MIN_CAPACITY_IN_PAGES + " páginas.");
+        }
+        this.capacity = capacityInPages;
+        this.frames = new ArrayList<>(capacityInPages);
+        this.framesByPageNumber = new Frame[Integer.highestOneBit(capacityInPages) * 4];
+        this.clockHand = 0;
+    }
+
+    public static int pagesForBytes(long bytes, int pageSize) {
+        return (int) Math.max(MIN_CAPACITY_IN_PAGES, bytes / pageSize);
+    }
+
+    public Page get(int pageNumber) {
+        Frame frame = findFrame(pageNumber);
+        if (frame == null) {
+            return null;
+        }
+        frame.referenced = true;
+        return frame.page;
+    }
+
+    public boolean contains(int pageNumber) {
+        return findFrame(pageNumber) != null;
+    }
+
+    public void add(Page page) {
+        Frame frame = new Frame(page, frames.size());
+        frames.add(frame);
+        putFrame(frame);
+    }
+
+    public boolean isFull() {
+        return frames.size() >= capacity;
+    }
+
+    /**
+     * Algoritmo CLOCK: percorre os frames limpando o bit de referência e escolhe o primeiro
+     * frame não referenciado e não fixado. Retorna null se todas as páginas estiverem fixadas.
+     */
+    public Page findVictim() {
+        int framesToVisit = frames.size() * 2;
+        for (int i = 0; i < framesToVisit; i++) {
+            if (clockHand >= frames.size()) {
+                clockHand = 0;
+            }
+            Frame frame = frames.get(clockHand);
+
+            if (frame.page.isPinned()) {
+                clockHand++;
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                clockHand++;
+                continue;
+            }
+            return frame.page;
+        }
+        return null;
+    }
+
+    public void remove(Page page) {
+        Frame frame = removeFrame(page.getPageNumber());
+        if (frame == null) {
+            return;
+        }
+        Frame last = frames.remove(frames.size() - 1);
+        if (last != frame) {
+            last.index = frame.index;
+            frames.set(frame.index, last);
+        }
+    }
+
+    private int homeSlot(int pageNumber) {
+        int hash = pageNumber * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (framesByPageNumber.length - 1);
+    }
+
+    private Frame findFrame(int pageNumber) {
+        int mask = framesByPageNumber.length - 1;
+        for (int slot = homeSlot(pageNumber); ; slot = (slot + 1) & mask) {
+            Frame frame = framesByPageNumber[slot];
+            if (frame == null || frame.page.getPageNumber() == pageNumber) {
+                return frame;
+            }
+        }
+    }
+
+    private void putFrame(Frame frame) {
+        // O pool pode passar da capacidade quando todas as páginas estão fixadas, então a tabela cresce.
+        if (frames.size() * 2 > framesByPageNumber.length) {
+            Frame[] oldTable = framesByPageNumber;
+            framesByPageNumber = new Frame[oldTable.length * 2];
+            for (Frame oldFrame : oldTable) {
+                if (oldFrame != null) {
+                    insertIntoTable(oldFrame);
+                }
+            }
+        }
+        insertIntoTable(frame);
+    }
+
+    private void insertIntoTable(Frame frame) {
+        int mask = framesByPageNumber.length - 1;
+        int slot = homeSlot(frame.page.getPageNumber());
+        while (framesByPageNumber[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        framesByPageNumber[slot] = frame;
+    }
+
+    /**
+     * Remove o frame da tabela puxando para trás os frames seguintes da mesma sequência de sondagem,
+     * para não deixar buracos que interromperiam buscas futuras.
+     */
+    private Frame removeFrame(int pageNumber) {
+        int mask = framesByPageNumber.length - 1;
+        int hole = homeSlot(pageNumber);
+        while (framesByPageNumber[hole] != null && framesByPageNumber[hole].page.getPageNumber() != pageNumber) {
+            hole = (hole + 1) & mask;
+        }
+        Frame removed = framesByPageNumber[hole];
+        if (removed == null) {
+            return null;
+        }
+
+        for (int slot = (hole + 1) & mask; framesByPageNumber[slot] != null; slot = (slot + 1) & mask) {
+            int home = homeSlot(framesByPageNumber[slot].page.getPageNumber());
+            boolean homeBetweenHoleAndSlot = hole < slot ? (home > hole && home <= slot) : (home > hole || home <= slot);
+            if (!homeBetweenHoleAndSlot) {
+                framesByPageNumber[hole] = framesByPageNumber[slot];
+                hole = slot;
+            }
+        }
+        framesByPageNumber[hole] = null;
+        return removed;
+    }
+
+    public List<Page> getPages() {
+        List<Page> pages = new ArrayList<>(frames.size());
+        for (Frame frame : frames) {
+            pages.add(frame.page);
+        }
+        return pages;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static class Frame {
+        private final Page page;
+        private int index;
+        private boolean referenced;
+
+        private Frame(Page page, int index) {
+            this.page = page;
+            this.index = index;
+            this.referenced = true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+/**
+ * Thread de fundo que grava no arquivo principal as páginas já confirmadas no WAL e depois
+ * esvazia o log, sempre que ele passa do limite configurado.
+ */
+public class Checkpointer implements Runnable {
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+
+    private final Pager pager;
+    private final long thresholdInBytes;
+    private final long intervalMs;
+    private final Thread thread;
+    private boolean running;
+    private boolean requested;
+
+    public Checkpointer(Pager pager, long thresholdInBytes, long intervalMs) {
+        this.pager = pager;
+        this.thresholdInBytes = thresholdInBytes;
+        this.intervalMs = intervalMs;
+        this.thread = new Thread(this, "mydb-checkpointer");
+        this.thread.setDaemon(true);
+    }
+
+    public synchronized void start() {
+        running = true;
+        thread.start();
+    }
+
+    public synchronized void request() {
+        requested = true;
+        notifyAll();
+    }
+
+    public void stop() throws IOException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido ao parar o checkpointer.", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (waitForWork()) {
+            try {
+                if (pager.getLogSize() >= thresholdInBytes) {
+                    pager.checkpoint();
+                }
+            } catch (IOException e) {
+                System.err.println("Erro no checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized boolean waitForWork() {
+        try {
+            if (running && !requested) {
+                wait(intervalMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        requested = false;
+        return running;
+    }
+}
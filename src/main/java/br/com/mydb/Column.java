@@ -1,3 +1,12 @@
 package br.com.mydb;
 
-public record Column(String name, DataType type, int ordinalPosition) {}
+/**
+ * Coluna do esquema. Uma coluna VARCHAR com dictionary guarda nos registros só o código do valor no
+ * dicionário da coluna.
+ */
+public record Column(String name, DataType type, int ordinalPosition, boolean dictionary) {
+
+    public Column(String name, DataType type, int ordinalPosition) {
+        this(name, type, ordinalPosition, false);
+    }
+}
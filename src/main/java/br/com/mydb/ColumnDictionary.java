@@ -0,0 +1,158 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dicionário de uma coluna VARCHAR declarada com dictionary: cada valor distinto ganha um código, na
+ * ordem em que aparece, e os registros guardam só o código em varint. Os valores ficam em uma cadeia
+ * de páginas DICTIONARY_PAGE, com o número da próxima no campo de irmão do cabeçalho, o número de
+ * valores em rowCount e, a partir do cabeçalho, cada valor como tamanho (short) e bytes UTF-8. A cadeia
+ * só cresce, e é lida inteira para a memória quando a tabela é aberta.
+ */
+public final class ColumnDictionary {
+
+    // Valores maiores não fazem sentido em uma coluna de poucos valores distintos e sairiam do registro.
+    public static final int MAX_VALUE_SIZE = RowCodec.MAX_INLINE_VARCHAR_SIZE;
+
+    private static final int NEXT_PAGE_OFFSET = Page.NEXT_SIBLING_POINTER_OFFSET;
+    private static final int LENGTH_SIZE = 2;
+
+    private final Pager pager;
+    private final int firstPageNumber;
+    private int lastPageNumber;
+    private final List<String> values = new ArrayList<>();
+    private final List<byte[]> utf8Values = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private ColumnDictionary(Pager pager, int firstPageNumber) {
+        this.pager = pager;
+        this.firstPageNumber = firstPageNumber;
+        this.lastPageNumber = firstPageNumber;
+    }
+
+    /**
+     * Cria um dicionário vazio, com a primeira página da cadeia.
+     */
+    public static ColumnDictionary create(Pager pager) throws IOException {
+        return new ColumnDictionary(pager, newPage(pager).getPageNumber());
+    }
+
+    public static ColumnDictionary load(Pager pager, int firstPageNumber) throws IOException {
+        ColumnDictionary dictionary = new ColumnDictionary(pager, firstPageNumber);
+        int pageNumber = firstPageNumber;
+        while (pageNumber != BTreeNode.NULL_POINTER) {
+            Page page = pager.getPage(pageNumber);
+            ByteBuffer buffer = page.getBuffer();
+            int position = Page.HEADER_SIZE;
+            for (int i = 0; i < page.getRowCount(); i++) {
+                byte[] bytes = new byte[buffer.getShort(position)];
+                buffer.get(position + LENGTH_SIZE, bytes);
+                position += LENGTH_SIZE + bytes.length;
+                dictionary.addValue(bytes);
+            }
+            dictionary.lastPageNumber = pageNumber;
+            pageNumber = buffer.getInt(NEXT_PAGE_OFFSET);
+        }
+        return dictionary;
+    }
+
+    public int getFirstPageNumber() {
+        return firstPageNumber;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Código do valor, ou -1 se ele não está no dicionário. Nenhuma linha da coluna tem um valor fora
+     * dele, então -1 já responde a uma igualdade.
+     */
+    public int codeOf(String value) {
+        Integer code = codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Código que encode daria ao valor, sem gravá-lo: o atual ou o próximo livre.
+     */
+    public int codeFor(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Valor de " + bytes.length + " bytes passa do limite de "
+                    + MAX_VALUE_SIZE + " bytes de uma coluna com dicionário.");
+        }
+        // Surrogates soltos viram '?' no UTF-8, então o valor guardado é o decodificado.
+        code = codes.get(new String(bytes, StandardCharsets.UTF_8));
+        return code == null ? values.size() : code;
+    }
+
+    /**
+     * Código do valor, acrescentando-o ao fim da cadeia se ele ainda não estiver no dicionário.
+     */
+    public int encode(String value) throws IOException {
+        int code = codeFor(value);
+        if (code < values.size()) {
+            return code;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Page page = pager.getPage(lastPageNumber);
+        int position = page.getFreeSpacePointer();
+        if (position + LENGTH_SIZE + bytes.length > page.getSize()) {
+            Page next = newPage(pager);
+            page.getBuffer().putInt(NEXT_PAGE_OFFSET, next.getPageNumber());
+            pager.flushPage(page);
+            page = next;
+            lastPageNumber = next.getPageNumber();
+            position = page.getFreeSpacePointer();
+        }
+        page.getBuffer().putShort(position, (short) bytes.length);
+        page.getBuffer().put(position + LENGTH_SIZE, bytes);
+        page.setFreeSpacePointer(position + LENGTH_SIZE + bytes.length);
+        page.setRowCount(page.getRowCount() + 1);
+        pager.flushPage(page);
+
+        addValue(bytes);
+        codes.putIfAbsent(value, code);
+        return code;
+    }
+
+    public String valueOf(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * Bytes UTF-8 do valor, para comparações sem codificar a String de novo. Não devem ser alterados.
+     */
+    byte[] utf8ValueOf(int code) {
+        return utf8Values.get(code);
+    }
+
+    private void addValue(byte[] bytes) {
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        codes.put(value, values.size());
+        values.add(value);
+        utf8Values.add(bytes);
+    }
+
+    private static Page newPage(Pager pager) throws IOException {
+        Page page = pager.newPage();
+        page.setPageType(PageType.DICTIONARY_PAGE.value);
+        page.setRowCount(0);
+        page.setFreeSpacePointer(Page.HEADER_SIZE);
+        page.getBuffer().putInt(NEXT_PAGE_OFFSET, BTreeNode.NULL_POINTER);
+        pager.flushPage(page);
+        return page;
+    }
+}
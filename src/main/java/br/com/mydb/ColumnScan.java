@@ -0,0 +1,164 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+/**
+ * Varredura completa que lê só as colunas pedidas. Nas tabelas colunares ela segue a cadeia de páginas
+ * PAX e lê cada coluna direto da sua minipágina, sem remontar o registro nem passar pelas outras colunas;
+ * a ordem é a das páginas de dados, não a da chave. Nas demais tabelas ela segue o cursor da chave
+ * primária e lê as colunas com a RecordView do cursor.
+ *
+ * Os valores são pedidos pela posição da coluna na projeção. A página atual fica fixada até o próximo
+ * next ou o close, e o lock de leitura da tabela fica com a varredura até o fim dela ou o close.
+ */
+public class ColumnScan implements AutoCloseable {
+
+    private final Table table;
+    private final int[] columns;
+    private final Cursor cursor;
+    private RecordView view;
+    private boolean started;
+    private Page page;
+    private PaxPage paxPage;
+    private final int[] columnOffsets;
+    private int slotId;
+    private boolean locked;
+
+    ColumnScan(Table table, int[] columns) throws IOException {
+        this.table = table;
+        this.columns = columns;
+        this.columnOffsets = new int[columns.length];
+        table.lockForRead();
+        this.locked = true;
+        try {
+            if (table.isColumnar()) {
+                this.cursor = null;
+                moveToPage(table.getFirstDataPageNumber());
+            } else {
+                this.cursor = table.start();
+            }
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Avança para a próxima linha. Retorna false no fim da tabela.
+     */
+    public boolean next() throws IOException {
+        if (this.cursor != null) {
+            if (this.started) {
+                this.cursor.advance();
+            }
+            this.started = true;
+            if (this.cursor.isEndOfTable()) {
+                unlock();
+                return false;
+            }
+            this.view = this.cursor.getRecordView();
+            return true;
+        }
+
+        while (this.page != null) {
+            int slotCount = this.paxPage.getSlotCount();
+            while (++this.slotId < slotCount) {
+                if (this.paxPage.isLive(this.slotId)) {
+                    return true;
+                }
+            }
+            moveToPage(this.page.getNextDataPagePointer());
+        }
+        return false;
+    }
+
+    public boolean isNull(int column) {
+        if (this.cursor != null) {
+            return this.view.isNull(this.columns[column]);
+        }
+        return this.paxPage.isNull(this.slotId, this.columns[column]);
+    }
+
+    /**
+     * Valor da coluna INTEGER; uma coluna nula lê 0.
+     */
+    public int getInt(int column) {
+        if (this.cursor != null) {
+            return this.view.getInt(this.columns[column]);
+        }
+        return this.page.getBuffer().getInt(this.columnOffsets[column] + this.slotId * PaxPage.COLUMN_ENTRY_SIZE);
+    }
+
+    public String getString(int column) throws IOException {
+        if (this.cursor != null) {
+            return this.view.getString(this.columns[column]);
+        }
+        return this.paxPage.getString(this.slotId, this.columns[column], this.table.getCodec());
+    }
+
+    /**
+     * Igualdade da coluna VARCHAR com value; uma coluna nula não é igual a nada. Nas colunas com
+     * dicionário só os códigos são comparados.
+     */
+    public boolean equalsString(int column, String value) throws IOException {
+        if (isNull(column)) {
+            return false;
+        }
+        if (this.cursor != null) {
+            return this.view.equalsString(this.columns[column], value);
+        }
+        if (this.paxPage.isCoded(this.columns[column])) {
+            return getInt(column) == this.table.getCodec().getDictionary(this.columns[column]).codeOf(value);
+        }
+        return value.equals(getString(column));
+    }
+
+    public Object get(int column) throws IOException {
+        if (isNull(column)) {
+            return null;
+        }
+        if (this.table.getSchema().get(this.columns[column]).type() == DataType.INTEGER) {
+            return getInt(column);
+        }
+        return getString(column);
+    }
+
+    private void moveToPage(int pageNumber) throws IOException {
+        unpinPage();
+        if (pageNumber == BTreeNode.NULL_POINTER) {
+            unlock();
+            return;
+        }
+        this.page = this.table.getPage(pageNumber);
+        this.page.pin();
+        this.paxPage = new PaxPage(this.page);
+        for (int i = 0; i < this.columns.length; i++) {
+            this.columnOffsets[i] = this.paxPage.getColumnOffset(this.columns[i]);
+        }
+        this.slotId = -1;
+    }
+
+    private void unpinPage() {
+        if (this.page != null) {
+            this.page.unpin();
+            this.page = null;
+            this.paxPage = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.cursor != null) {
+            this.cursor.close();
+        }
+        unpinPage();
+        unlock();
+    }
+
+    private void unlock() {
+        if (this.locked) {
+            this.locked = false;
+            this.table.unlockForRead();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package br.com.mydb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Linha presa a um esquema: os valores ficam em arrays indexados pela posição da coluna no esquema,
+ * com as colunas INTEGER em um int[], sem boxing nem busca pelo nome. Row continua sendo a API por
+ * nome e, quando vem do disco, é só um adaptador sobre uma CompactRow.
+ */
+public final class CompactRow {
+
+    private final List<Column> schema;
+    private final int[] ints;
+    private final String[] strings;
+    private final boolean[] nulls;
+
+    public CompactRow(List<Column> schema) {
+        this.schema = schema;
+        this.ints = new int[schema.size()];
+        this.strings = new String[schema.size()];
+        this.nulls = new boolean[schema.size()];
+    }
+
+    /**
+     * A mesma linha como CompactRow do esquema, sem cópia se ela já for uma.
+     */
+    public static CompactRow of(Row row, List<Column> schema) {
+        CompactRow compact = row.getCompactRow();
+        if (compact != null && compact.schema == schema) {
+            return compact;
+        }
+
+        compact = new CompactRow(schema);
+        for (int i = 0; i < schema.size(); i++) {
+            compact.set(i, row.get(schema.get(i).name()));
+        }
+        return compact;
+    }
+
+    public List<Column> getSchema() {
+        return schema;
+    }
+
+    public int size() {
+        return ints.length;
+    }
+
+    public int getInt(int index) {
+        return ints[index];
+    }
+
+    public void setInt(int index, int value) {
+        ints[index] = value;
+        nulls[index] = false;
+    }
+
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    public void setString(int index, String value) {
+        strings[index] = value;
+        nulls[index] = value == null;
+    }
+
+    /**
+     * Uma coluna INTEGER nula lê 0 em getInt; só isNull a distingue de um zero gravado.
+     */
+    public boolean isNull(int index) {
+        return nulls[index];
+    }
+
+    public void setNull(int index) {
+        ints[index] = 0;
+        strings[index] = null;
+        nulls[index] = true;
+    }
+
+    /**
+     * Valor da coluna como objeto, para quem não conhece o tipo.
+     */
+    public Object get(int index) {
+        if (nulls[index]) {
+            return null;
+        }
+        if (schema.get(index).type() == DataType.INTEGER) {
+            return ints[index];
+        }
+        return strings[index];
+    }
+
+    public void set(int index, Object value) {
+        if (value == null) {
+            setNull(index);
+        } else if (schema.get(index).type() == DataType.INTEGER) {
+            setInt(index, (Integer) value);
+        } else {
+            setString(index, value.toString());
+        }
+    }
+
+    /**
+     * Posição da coluna no esquema, ou -1 se não existir.
+     */
+    public int indexOf(String columnName) {
+        for (int i = 0; i < schema.size(); i++) {
+            if (schema.get(i).name().equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public CompactRow copy() {
+        CompactRow copy = new CompactRow(schema);
+        System.arraycopy(ints, 0, copy.ints, 0, ints.length);
+        System.arraycopy(strings, 0, copy.strings, 0, strings.length);
+        System.arraycopy(nulls, 0, copy.nulls, 0, nulls.length);
+        return copy;
+    }
+
+    public Row toRow() {
+        return new Row(this);
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (int i = 0; i < schema.size(); i++) {
+            values.put(schema.get(i).name(), get(i));
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
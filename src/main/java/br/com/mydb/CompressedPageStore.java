@@ -0,0 +1,325 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Camada sobre o armazenamento do arquivo principal que guarda comprimidas as páginas
+ * COMPRESSED_DATA_PAGE, das tabelas criadas com compressão. Como a imagem comprimida tem tamanho
+ * variável, ela não vai para a posição fixa da página no arquivo principal, e sim para o fim de um
+ * arquivo à parte (FILE_SUFFIX), em um registro com o número da página, o tamanho e o crc dos bytes.
+ * O mapa página -> registro fica em memória e é refeito na abertura lendo esse arquivo do começo: o
+ * último registro de cada página vale, e um registro de tamanho zero tira a página do mapa. Um registro
+ * incompleto ou com crc inválido marca o fim, como no WAL.
+ *
+ * As demais páginas, e as que não ficam ao menos MIN_SAVING menores, vão para o arquivo principal como
+ * antes. O WAL continua com as imagens inteiras e a recuperação grava por esta camada, então um arquivo
+ * de páginas comprimidas interrompido no meio de uma escrita é completado pelo WAL. Os registros
+ * substituídos viram lixo, que é descartado reescrevendo o arquivo quando passa do espaço das páginas vivas.
+ *
+ * As gravações vêm do Pager, uma de cada vez, mas as leituras podem vir de várias threads ao mesmo
+ * tempo: o mapa é concorrente, e só a troca do arquivo na compactação espera as leituras em andamento.
+ */
+public class CompressedPageStore implements PageStore {
+
+    public static final String FILE_SUFFIX = "-z";
+
+    private static final int RECORD_HEADER_SIZE = 12; // página, tamanho comprimido, crc
+    private static final long COMPACTION_MIN_GARBAGE_BYTES = 1024 * 1024;
+
+    private final PageStore mainStore;
+    private final Path path;
+    private final int pageSize;
+    private final int maxCompressedSize;
+    private final PageCompressor compressor;
+    private final byte[] pageBytes;
+    private final byte[] compressed;
+    private final CRC32 crc;
+    private final Map<Integer, Location> locations;
+    private final ReentrantReadWriteLock channelLock;
+    private volatile FileChannel channel;
+    private long fileSize;
+    private long liveBytes;
+    private final AtomicLong bytesRead;
+
+    private record Location(long offset, int length) {
+    }
+
+    public CompressedPageStore(PageStore mainStore, String databaseFilePath, int pageSize) throws IOException {
+        this.mainStore = mainStore;
+        this.path = Path.of(databaseFilePath + FILE_SUFFIX);
+        this.pageSize = pageSize;
+        this.maxCompressedSize = pageSize - pageSize / 8;
+        this.compressor = new PageCompressor();
+        this.pageBytes = new byte[pageSize];
+        this.compressed = new byte[pageSize];
+        this.crc = new CRC32();
+        this.locations = new ConcurrentHashMap<>();
+        this.channelLock = new ReentrantReadWriteLock();
+        this.bytesRead = new AtomicLong();
+        if (Files.exists(this.path)) {
+            openChannel();
+            load();
+        }
+    }
+
+    /**
+     * Páginas do arquivo principal, contando as que só existem comprimidas depois do fim dele.
+     */
+    @Override
+    public int getNumPages() {
+        int numPages = this.mainStore.getNumPages();
+        for (int pageNumber : this.locations.keySet()) {
+            numPages = Math.max(numPages, pageNumber + 1);
+        }
+        return numPages;
+    }
+
+    @Override
+    public ByteBuffer readPage(int pageNumber) throws IOException {
+        ByteBuffer data;
+        this.channelLock.readLock().lock();
+        try {
+            Location location = this.locations.get(pageNumber);
+            if (location == null) {
+                this.bytesRead.addAndGet(this.pageSize);
+                return this.mainStore.readPage(pageNumber);
+            }
+            data = ByteBuffer.allocate(location.length());
+            readFully(data, location.offset() + RECORD_HEADER_SIZE);
+        } finally {
+            this.channelLock.readLock().unlock();
+        }
+
+        // A descompressão fica fora do lock, e leituras de threads diferentes descomprimem em paralelo.
+        this.bytesRead.addAndGet(data.capacity());
+        byte[] page = new byte[this.pageSize];
+        int length = PageCompressor.decompress(data.array(), 0, data.capacity(), page);
+        if (length != this.pageSize) {
+            throw new IOException("Página comprimida " + pageNumber + " descomprimiu para " + length + " bytes.");
+        }
+        return ByteBuffer.wrap(page);
+    }
+
+    @Override
+    public ByteBuffer allocatePage(int pageNumber) throws IOException {
+        return this.mainStore.allocatePage(pageNumber);
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        int pageNumber = page.getPageNumber();
+        if (page.getPageType() == PageType.COMPRESSED_DATA_PAGE.value) {
+            page.getBuffer().get(0, this.pageBytes, 0, this.pageSize);
+            int length = this.compressor.compress(this.pageBytes, this.pageSize, this.compressed);
+            if (length > 0 && length <= this.maxCompressedSize) {
+                Location location = append(pageNumber, this.compressed, length);
+                replace(pageNumber, location);
+                return;
+            }
+        }
+
+        if (this.locations.containsKey(pageNumber)) {
+            append(pageNumber, this.compressed, 0);
+            replace(pageNumber, null);
+        }
+        this.mainStore.writePage(page);
+    }
+
+    @Override
+    public byte[] readBytesAt(long offset, int length) throws IOException {
+        return this.mainStore.readBytesAt(offset, length);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.mainStore.sync();
+        if (this.channel == null) {
+            return;
+        }
+        this.channel.force(false);
+
+        long garbage = this.fileSize - this.liveBytes;
+        if (garbage >= COMPACTION_MIN_GARBAGE_BYTES && garbage > this.liveBytes) {
+            compact();
+        }
+    }
+
+    @Override
+    public void truncate(int numPages) throws IOException {
+        for (int pageNumber : this.locations.keySet().toArray(new Integer[0])) {
+            if (pageNumber >= numPages) {
+                append(pageNumber, this.compressed, 0);
+                replace(pageNumber, null);
+            }
+        }
+        this.mainStore.truncate(numPages);
+    }
+
+    @Override
+    public void close(int numPages) throws IOException {
+        this.mainStore.close(numPages);
+        if (this.channel == null) {
+            return;
+        }
+        this.channelLock.writeLock().lock();
+        try {
+            this.channel.force(false);
+            this.channel.close();
+        } finally {
+            this.channelLock.writeLock().unlock();
+        }
+        if (this.locations.isEmpty()) {
+            Files.delete(this.path);
+        }
+    }
+
+    /**
+     * Bytes lidos do armazenamento desde a abertura: a página inteira no arquivo principal ou só a
+     * imagem comprimida.
+     */
+    public long getBytesRead() {
+        return this.bytesRead.get();
+    }
+
+    /**
+     * Tamanho das imagens comprimidas das páginas, sem o lixo ainda não descartado.
+     */
+    public long getCompressedBytes() {
+        return this.liveBytes;
+    }
+
+    public int getCompressedPageCount() {
+        return this.locations.size();
+    }
+
+    private Location append(int pageNumber, byte[] data, int length) throws IOException {
+        if (this.channel == null) {
+            openChannel();
+        }
+        this.crc.reset();
+        this.crc.update(data, 0, length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(pageNumber);
+        record.putInt(length);
+        record.putInt((int) this.crc.getValue());
+        record.put(data, 0, length);
+        record.flip();
+
+        long offset = this.fileSize;
+        while (record.hasRemaining()) {
+            this.channel.write(record, offset + record.position());
+        }
+        this.fileSize += RECORD_HEADER_SIZE + length;
+        return new Location(offset, length);
+    }
+
+    private void replace(int pageNumber, Location location) {
+        Location previous = location == null ? this.locations.remove(pageNumber)
+                : this.locations.put(pageNumber, location);
+        if (previous != null) {
+            this.liveBytes -= RECORD_HEADER_SIZE + previous.length();
+        }
+        if (location != null) {
+            this.liveBytes += RECORD_HEADER_SIZE + location.length();
+        }
+    }
+
+    private void load() throws IOException {
+        long size = this.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            int pageNumber = header.getInt(0);
+            int length = header.getInt(4);
+            int checksum = header.getInt(8);
+            if (length < 0 || length > this.pageSize || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(data, position + RECORD_HEADER_SIZE);
+            this.crc.reset();
+            this.crc.update(data.array());
+            if ((int) this.crc.getValue() != checksum) {
+                break;
+            }
+
+            replace(pageNumber, length == 0 ? null : new Location(position, length));
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // O que vem depois do último registro válido é uma escrita interrompida, que o WAL refaz.
+        if (position < size) {
+            this.channel.truncate(position);
+        }
+        this.fileSize = position;
+    }
+
+    /**
+     * Reescreve o arquivo só com os registros das páginas vivas, em ordem de página. O novo arquivo é
+     * sincronizado antes de substituir o antigo, então uma queda no meio deixa um dos dois inteiro.
+     */
+    private void compact() throws IOException {
+        Path temporary = Path.of(this.path + ".tmp");
+        Map<Integer, Location> compacted = new TreeMap<>();
+        long position = 0;
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<Integer, Location> entry : new TreeMap<>(this.locations).entrySet()) {
+                Location location = entry.getValue();
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + location.length());
+                readFully(record, location.offset());
+                record.flip();
+                while (record.hasRemaining()) {
+                    target.write(record, position + record.position());
+                }
+                compacted.put(entry.getKey(), new Location(position, location.length()));
+                position += RECORD_HEADER_SIZE + location.length();
+            }
+            target.force(true);
+        }
+
+        this.channelLock.writeLock().lock();
+        try {
+            this.channel.close();
+            Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openChannel();
+            this.locations.clear();
+            this.locations.putAll(compacted);
+        } finally {
+            this.channelLock.writeLock().unlock();
+        }
+        this.fileSize = position;
+        this.liveBytes = position;
+    }
+
+    private void openChannel() throws IOException {
+        this.channel = FileChannel.open(this.path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = this.channel.read(target, position + target.position());
+            if (read < 0) {
+                throw new IOException("Fim inesperado do arquivo de páginas comprimidas em " + position + ".");
+            }
+        }
+    }
+}
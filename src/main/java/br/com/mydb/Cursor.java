@@ -2,39 +2,108 @@ package br.com.mydb;
 
 import java.io.IOException;
 
-public class Cursor {
+/**
+ * Cursor sobre as folhas da B+ tree. Ele segura o lock de leitura da tabela desde a criação até passar
+ * do fim ou ser fechado, então as escritas na tabela esperam os cursores abertos.
+ */
+public class Cursor implements AutoCloseable {
 
     private final Table table;
     private int leafPageNumber;
     private int cellNumber;
+    private final long lastKey;
     private boolean endOfTable;
+    private Page pinnedLeafPage;
+    private Page pinnedDataPage;
+    private final BTreeNode leafNode;
+    private final RecordView recordView;
+    private int leavesVisited;
+    private Prefetcher.Request readAhead;
+    private int readAheadLeaf;
+    private boolean locked;
 
     public Cursor(Table table, int startLeafPageNumber) {
+        this(table, startLeafPageNumber, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Posiciona o cursor na célula indicada da folha, ou na primeira célula das folhas seguintes se ela
+     * não existir. O cursor termina ao passar de lastKey.
+     */
+    Cursor(Table table, int leafPageNumber, int cellNumber, long lastKey) {
         this.table = table;
-        this.leafPageNumber = startLeafPageNumber;
-        this.cellNumber = 0;
+        this.leafPageNumber = leafPageNumber;
+        this.cellNumber = cellNumber;
+        this.lastKey = lastKey;
+        this.leafNode = new BTreeNode(Table.BTREE_MIN_DEGREE);
+        this.recordView = new RecordView(table.getCodec());
 
+        table.lockForRead();
+        this.locked = true;
         try {
-            Page startPage = table.getPage(startLeafPageNumber);
-            BTreeNode startNode = new BTreeNode(startPage, Table.BTREE_MIN_DEGREE);
-            this.endOfTable = (startNode.getKeyCount() == 0);
+            moveToValidCell();
         } catch (IOException e) {
-            this.endOfTable = true;
+            finish();
         }
     }
 
     public Row getRecord() throws IOException {
-        Page leafPage = table.getPage(this.leafPageNumber);
-        BTreeNode leafNode = new BTreeNode(leafPage, Table.BTREE_MIN_DEGREE);
+        return getCompactRecord().toRow();
+    }
 
-        long dataPointer = leafNode.getDataPointer(this.cellNumber);
+    public CompactRow getCompactRecord() throws IOException {
+        return getRecordView().toCompactRow();
+    }
+
+    /**
+     * O registro atual lido direto da página, sem cópia. A view é do cursor e é reposicionada a cada
+     * chamada; ela vale até o próximo advance ou close, e a página de dados fica fixada até lá.
+     * Linhas em páginas de overflow ou PAX e as lidas por um índice de uma tabela clustered ainda são
+     * copiadas.
+     */
+    public RecordView getRecordView() throws IOException {
+        BTreeNode node = this.leafNode.wrap(table.getPage(this.leafPageNumber));
+        if (node.isClustered()) {
+            if (node.isOverflowCell(this.cellNumber)) {
+                return this.recordView.wrap(this.table.readCellRow(node, this.cellNumber));
+            }
+            return node.viewInlineRow(this.cellNumber, this.recordView);
+        }
+
+        long dataPointer = node.getDataPointer(this.cellNumber);
+        if (this.table.isClustered()) {
+            // Cursor de um índice secundário: o ponteiro é a chave primária da linha.
+            return this.recordView.wrap(this.table.findRaw((int) dataPointer));
+        }
 
         int dataPageNumber = (int) (dataPointer >> 32);
         int dataSlotId = (int) (dataPointer);
         Page dataPage = this.table.getPage(dataPageNumber);
-        byte[] rawRecord = dataPage.getRecord(dataSlotId);
+        if (dataPage != this.pinnedDataPage) {
+            unpinData();
+            dataPage.pin();
+            this.pinnedDataPage = dataPage;
+        }
+        return dataPage.viewRecord(dataSlotId, this.recordView);
+    }
 
-        return RowSerializer.deserialize(rawRecord, table.getSchema());
+    /**
+     * Ponteiro de dados da célula atual; nas folhas de uma tabela clustered, a chave primária.
+     */
+    public long getDataPointer() throws IOException {
+        BTreeNode node = this.leafNode.wrap(table.getPage(this.leafPageNumber));
+        return node.isClustered() ? node.getKey(this.cellNumber) : node.getDataPointer(this.cellNumber);
+    }
+
+    /**
+     * Troca o ponteiro de dados da célula atual. Usado quando o registro muda de lugar.
+     */
+    void setDataPointer(long dataPointer) throws IOException {
+        this.leafNode.wrap(table.getPage(this.leafPageNumber)).setDataPointer(this.cellNumber, dataPointer);
+    }
+
+    public int getKey() throws IOException {
+        return this.leafNode.wrap(table.getPage(this.leafPageNumber)).getKey(this.cellNumber);
     }
 
     public void advance() throws IOException {
@@ -42,25 +111,91 @@ public class Cursor {
             return;
         }
 
-        Page currentPage = table.getPage(this.leafPageNumber);
-        BTreeNode currentNode = new BTreeNode(currentPage, Table.BTREE_MIN_DEGREE);
-
         this.cellNumber++;
+        moveToValidCell();
+    }
 
-        if (this.cellNumber < currentNode.getKeyCount()) {
-            return;
-        }
+    private void moveToValidCell() throws IOException {
+        Page page = table.getPage(this.leafPageNumber);
+        BTreeNode node = this.leafNode.wrap(page);
 
-        int nextPageNumber = currentNode.getNextSiblingPointer();
-        if (nextPageNumber == BTreeNode.NULL_POINTER) {
-            this.endOfTable = true;
-        } else {
+        while (this.cellNumber >= node.getKeyCount()) {
+            int nextPageNumber = node.getNextSiblingPointer();
+            if (nextPageNumber == BTreeNode.NULL_POINTER) {
+                finish();
+                return;
+            }
             this.leafPageNumber = nextPageNumber;
             this.cellNumber = 0;
+            page = table.getPage(nextPageNumber);
+            node.wrap(page);
+        }
+
+        if (node.getKey(this.cellNumber) > this.lastKey) {
+            finish();
+            return;
+        }
+
+        if (page != this.pinnedLeafPage) {
+            pinLeaf(page);
         }
     }
 
     public boolean isEndOfTable() {
         return endOfTable;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void close() {
+        finish();
+    }
+
+    private void finish() {
+        this.endOfTable = true;
+        unpinLeaf();
+        unpinData();
+        if (this.locked) {
+            this.locked = false;
+            this.table.unlockForRead();
+        }
+    }
+
+    private void pinLeaf(Page leafPage) {
+        unpinLeaf();
+        leafPage.pin();
+        this.pinnedLeafPage = leafPage;
+        requestReadAhead();
+    }
+
+    /**
+     * A partir da segunda folha a leitura é tratada como sequencial, e a cada meia janela o cursor pede
+     * as LEAVES_AHEAD folhas seguintes, a contar da atual, e as páginas de dados delas. Enquanto o pedido
+     * anterior não termina o cursor não pede outro. Um cursor que fica em uma folha, como o de uma busca
+     * pontual, não pede nada.
+     */
+    private void requestReadAhead() {
+        this.leavesVisited++;
+        if (this.leavesVisited < 2 || (this.readAhead != null && !this.readAhead.isDone())) {
+            return;
+        }
+        if (this.readAhead == null || this.leavesVisited - this.readAheadLeaf >= Prefetcher.LEAVES_AHEAD / 2) {
+            this.readAhead = this.table.getPager().readAhead(this.table, this.leafPageNumber, this.lastKey,
+                    !this.table.isClustered());
+            this.readAheadLeaf = this.leavesVisited;
+        }
+    }
+
+    private void unpinData() {
+        if (this.pinnedDataPage != null) {
+            this.pinnedDataPage.unpin();
+            this.pinnedDataPage = null;
+        }
+    }
+
+    private void unpinLeaf() {
+        if (this.pinnedLeafPage != null) {
+            this.pinnedLeafPage.unpin();
+            this.pinnedLeafPage = null;
+        }
+    }
+}
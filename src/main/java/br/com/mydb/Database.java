@@ -3,18 +3,49 @@ package br.com.mydb;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Database {
 
     private final Pager pager;
     private Table tablesCatalog;
     private Table columnsCatalog;
+    private Table indexesCatalog;
+    private Table dictionariesCatalog;
+    private final Map<String, Table> openTables;
 
     private static final int TABLES_CATALOG_DATA_PAGE = 2;
     private static final int COLUMNS_CATALOG_DATA_PAGE = 4;
 
     private static final int TABLES_CATALOG_ROOT_OFFSET = 0;
     private static final int COLUMNS_CATALOG_ROOT_OFFSET = 4;
+    private static final int FORMAT_VERSION_OFFSET = 8;
+
+    // Arquivos antigos não gravavam versão: o campo zerado no cabeçalho equivale à versão 1.
+    public static final int LEGACY_FORMAT_VERSION = 1;
+    public static final int PAGE_SIZED_NODES_FORMAT_VERSION = 2;
+    // Versão 3: folhas clustered e páginas de overflow. Um arquivo na versão 2 passa para a 3 ao
+    // receber a primeira tabela clustered, já que as tabelas existentes continuam iguais.
+    public static final int CLUSTERED_TABLES_FORMAT_VERSION = 3;
+    // Versão 4: registros no formato compacto do RowCodec. Os registros de um arquivo antigo continuam
+    // no formato anterior e o arquivo não muda de versão, já que isso exigiria regravar todas as linhas.
+    public static final int COMPACT_RECORDS_FORMAT_VERSION = 4;
+    // Versão 5: VARCHAR grandes fora do registro, em páginas de overflow. O tamanho das VARCHAR ganha
+    // um bit de marcação, então os registros da versão 4 também ficam como estão.
+    public static final int LARGE_VALUES_FORMAT_VERSION = 5;
+    // Versão 6: páginas de dados PAX das tabelas colunares. Um arquivo na versão 5 passa para a 6 ao
+    // receber a primeira tabela colunar; as versões anteriores têm outro formato de registro e não passam.
+    public static final int COLUMNAR_PAGES_FORMAT_VERSION = 6;
+    // Versão 7: colunas VARCHAR com dicionário, que guardam nos registros só o código do valor. Como na
+    // versão 6, um arquivo na versão 5 ou 6 passa para a 7 ao receber a primeira dessas colunas.
+    public static final int DICTIONARY_COLUMNS_FORMAT_VERSION = 7;
+    // Versão 8: páginas de dados comprimidas, guardadas no arquivo à parte do CompressedPageStore. Um
+    // arquivo a partir da versão 5 passa para a 8 ao receber a primeira tabela comprimida.
+    public static final int COMPRESSED_PAGES_FORMAT_VERSION = 8;
+    public static final int CURRENT_FORMAT_VERSION = COMPRESSED_PAGES_FORMAT_VERSION;
+
+    // Bit somado ao dataTypeId, no catálogo de colunas, das colunas com dicionário.
+    private static final int DICTIONARY_TYPE_FLAG = 0x100;
 
     private static final List<Column> TABLES_CATALOG_SCHEMA;
     static {
@@ -35,6 +66,28 @@ public class Database {
         COLUMNS_CATALOG_SCHEMA = Collections.unmodifiableList(schema);
     }
 
+    private static final String TABLES_CATALOG_NAME = "all_tables";
+    private static final String INDEXES_CATALOG_NAME = "all_indexes";
+    private static final List<Column> INDEXES_CATALOG_SCHEMA;
+    static {
+        List<Column> schema = new ArrayList<>();
+        schema.add(new Column("indexName", DataType.VARCHAR, 1));
+        schema.add(new Column("tableHash", DataType.INTEGER, 2));
+        schema.add(new Column("columnName", DataType.VARCHAR, 3));
+        schema.add(new Column("rootPageNumber", DataType.INTEGER, 4));
+        INDEXES_CATALOG_SCHEMA = Collections.unmodifiableList(schema);
+    }
+
+    private static final String DICTIONARIES_CATALOG_NAME = "all_dictionaries";
+    private static final List<Column> DICTIONARIES_CATALOG_SCHEMA;
+    static {
+        List<Column> schema = new ArrayList<>();
+        schema.add(new Column("tableHash", DataType.INTEGER, 1));
+        schema.add(new Column("columnName", DataType.VARCHAR, 2));
+        schema.add(new Column("firstPageNumber", DataType.INTEGER, 3));
+        DICTIONARIES_CATALOG_SCHEMA = Collections.unmodifiableList(schema);
+    }
+
     private static final List<Column> USERS_TABLE_SCHEMA;
     static {
         List<Column> schema = new ArrayList<>();
@@ -44,22 +97,76 @@ public class Database {
     }
 
     public Database(String databaseFilePath) throws IOException {
-        this.pager = new Pager(databaseFilePath, 4096);
+        this(databaseFilePath, BufferPool.DEFAULT_CAPACITY_IN_PAGES);
+    }
+
+    public Database(String databaseFilePath, int cacheSizeInPages) throws IOException {
+        this(databaseFilePath, StorageBackend.RANDOM_ACCESS_FILE, cacheSizeInPages);
+    }
+
+    public Database(String databaseFilePath, StorageBackend backend) throws IOException {
+        this(databaseFilePath, backend, BufferPool.DEFAULT_CAPACITY_IN_PAGES);
+    }
+
+    public Database(String databaseFilePath, StorageBackend backend, int cacheSizeInPages) throws IOException {
+        this(databaseFilePath, backend, cacheSizeInPages, true);
+    }
+
+    public Database(String databaseFilePath, StorageBackend backend, int cacheSizeInPages, boolean walEnabled)
+            throws IOException {
+        this.pager = new Pager(databaseFilePath, 4096, cacheSizeInPages, backend, walEnabled);
+        this.pager.recover();
+        this.openTables = new ConcurrentHashMap<>();
 
         if (pager.getNumPages() == 0) {
             initializeNewDatabase();
         } else {
             Page headerPage = pager.getPage(0);
-            ByteBuffer headerBuffer = ByteBuffer.wrap(headerPage.getBytes());
+            ByteBuffer headerBuffer = headerPage.getBuffer();
             int tablesRoot = headerBuffer.getInt(TABLES_CATALOG_ROOT_OFFSET);
             int columnsRoot = headerBuffer.getInt(COLUMNS_CATALOG_ROOT_OFFSET);
+            int formatVersion = headerBuffer.getInt(FORMAT_VERSION_OFFSET);
+            if (formatVersion > CURRENT_FORMAT_VERSION) {
+                throw new IOException("Versão de formato " + formatVersion + " não suportada.");
+            }
+            pager.setFormatVersion(Math.max(formatVersion, LEGACY_FORMAT_VERSION));
 
             this.tablesCatalog = new Table(pager, tablesRoot, TABLES_CATALOG_DATA_PAGE, TABLES_CATALOG_SCHEMA);
             this.columnsCatalog = new Table(pager, columnsRoot, COLUMNS_CATALOG_DATA_PAGE, COLUMNS_CATALOG_SCHEMA);
+            this.tablesCatalog.setMetadataListener(table -> saveCatalogRoots());
+            this.columnsCatalog.setMetadataListener(table -> saveCatalogRoots());
+
+            if (tablesCatalog.find(INDEXES_CATALOG_NAME.hashCode()) != null) {
+                this.indexesCatalog = loadTable(INDEXES_CATALOG_NAME);
+            }
+            if (tablesCatalog.find(DICTIONARIES_CATALOG_NAME.hashCode()) != null) {
+                this.dictionariesCatalog = loadTable(DICTIONARIES_CATALOG_NAME);
+            }
         }
     }
 
+    /**
+     * Abre a tabela com seus índices secundários. A mesma instância é devolvida enquanto o banco
+     * estiver aberto, para que todos os usuários da tabela mantenham os mesmos índices e os mesmos locks.
+     */
     public Table openTable(String tableName) throws IOException {
+        Table table = openTables.get(tableName);
+        if (table != null) {
+            return table;
+        }
+
+        synchronized (this) {
+            table = openTables.get(tableName);
+            if (table == null) {
+                table = loadTable(tableName);
+                loadIndexes(tableName, table);
+                openTables.put(tableName, table);
+            }
+            return table;
+        }
+    }
+
+    private Table loadTable(String tableName) throws IOException {
         int key = tableName.hashCode();
         Row row = tablesCatalog.find(key);
 
@@ -68,31 +175,204 @@ public class Database {
         }
         List<Column> schema = loadSchema(tableName);
 
-        return new Table(this.pager, (Integer) row.get("rootPageNumber"), (Integer) row.get("firstDataPageNumber"),
-                schema);
+        Table table = new Table(this.pager, (Integer) row.get("rootPageNumber"),
+                (Integer) row.get("firstDataPageNumber"), schema, loadDictionaries(tableName, schema));
+        table.setMetadataListener(changedTable -> saveTableMetadata(tableName, changedTable));
+        return table;
     }
 
-    private List<Column> loadSchema(String tableName) throws IOException {
-        List<Column> schema = new ArrayList<>();
-        int tableKey = tableName.hashCode();
+    private ColumnDictionary[] loadDictionaries(String tableName, List<Column> schema) throws IOException {
+        ColumnDictionary[] dictionaries = new ColumnDictionary[schema.size()];
+        for (int i = 0; i < schema.size(); i++) {
+            Column column = schema.get(i);
+            if (!column.dictionary()) {
+                continue;
+            }
+            Row row = dictionariesCatalog == null ? null
+                    : dictionariesCatalog.find((tableName + "." + column.name()).hashCode());
+            if (row == null) {
+                throw new IOException("Dicionário da coluna '" + column.name() + "' da tabela '" + tableName
+                        + "' não encontrado.");
+            }
+            dictionaries[i] = ColumnDictionary.load(pager, (Integer) row.get("firstPageNumber"));
+        }
+        return dictionaries;
+    }
+
+    private void loadIndexes(String tableName, Table table) throws IOException {
+        if (indexesCatalog == null) {
+            return;
+        }
+
+        try (Cursor cursor = indexesCatalog.start()) {
+            while (!cursor.isEndOfTable()) {
+                Row row = cursor.getRecord();
+                if ((Integer) row.get("tableHash") == tableName.hashCode()) {
+                    Column column = findColumn(table, (String) row.get("columnName"));
+                    table.addIndex(new SecondaryIndex(table, (String) row.get("indexName"), column,
+                            (Integer) row.get("rootPageNumber")));
+                }
+                cursor.advance();
+            }
+        }
+    }
+
+    private static Column findColumn(Table table, String columnName) {
+        for (Column column : table.getSchema()) {
+            if (column.name().equalsIgnoreCase(columnName)) {
+                return column;
+            }
+        }
+        return null;
+    }
 
-        Cursor cursor = columnsCatalog.start();
+    /**
+     * Cria um índice secundário e o preenche com as linhas existentes. O índice só é registrado no
+     * catálogo depois de construído, então uma criação interrompida não deixa um índice incompleto.
+     */
+    public synchronized void createIndex(String indexName, String tableName, String columnName) throws IOException {
+        Table table = openTable(tableName);
+        Column column = findColumn(table, columnName);
 
-        while (!cursor.isEndOfTable()) {
-            Row row = cursor.getRecord();
-            int recordTableHash = (Integer) row.get("tableHash");
+        if (column == null) {
+            throw new IllegalArgumentException("Coluna '" + columnName + "' não existe na tabela '" + tableName + "'.");
+        }
+        if (column.ordinalPosition() == 1) {
+            throw new IllegalArgumentException("A coluna '" + column.name() + "' já é a chave primária da tabela.");
+        }
+        if (indexesCatalog != null && indexesCatalog.find(indexName.hashCode()) != null) {
+            System.out.println("Esse índice já existe.");
+            return;
+        }
+        if (table.getIndex(column.name()) != null) {
+            System.out.println("A coluna '" + column.name() + "' já possui um índice.");
+            return;
+        }
+
+        // As escritas na tabela esperam até o índice ser registrado, para que nenhuma linha fique de fora.
+        table.lockForWrite();
+        try {
+            int rootPageNumber;
+            pager.beginOperation();
+            try {
+                rootPageNumber = pager.newPage().initializeAsLeaf().getPageNumber();
+            } finally {
+                pager.endOperation();
+            }
+
+            SecondaryIndex index = new SecondaryIndex(table, indexName, column, rootPageNumber);
+            index.build();
+
+            pager.beginOperation();
+            try {
+                if (indexesCatalog == null) {
+                    registerTable(INDEXES_CATALOG_NAME, INDEXES_CATALOG_SCHEMA);
+                    indexesCatalog = loadTable(INDEXES_CATALOG_NAME);
+                }
+
+                Row indexInfoRow = new Row();
+                indexInfoRow.put("indexName", indexName);
+                indexInfoRow.put("tableHash", tableName.hashCode());
+                indexInfoRow.put("columnName", column.name());
+                indexInfoRow.put("rootPageNumber", rootPageNumber);
+                indexesCatalog.insert(indexName.hashCode(), indexInfoRow);
+            } finally {
+                pager.endOperation();
+            }
+
+            table.addIndex(index);
+        } finally {
+            table.unlockForWrite();
+        }
+        System.out.println("Índice '" + indexName + "' criado.");
+    }
+
+    /**
+     * Compacta as páginas de dados de uma tabela, ou de todas quando tableName é null. O catálogo de
+     * tabelas fica de fora, porque sua primeira página de dados tem posição fixa.
+     */
+    public synchronized void vacuum(String tableName) throws IOException {
+        List<String> tableNames = new ArrayList<>();
+        if (tableName != null) {
+            if (tablesCatalog.find(tableName.hashCode()) == null) {
+                throw new IOException("Tabela '" + tableName + "' não encontrada.");
+            }
+            tableNames.add(tableName);
+        } else {
+            try (Cursor cursor = tablesCatalog.start()) {
+                while (!cursor.isEndOfTable()) {
+                    tableNames.add((String) cursor.getRecord().get("tableName"));
+                    cursor.advance();
+                }
+            }
+        }
+
+        for (String name : tableNames) {
+            if (name.equals(TABLES_CATALOG_NAME)) {
+                if (tableName != null) {
+                    System.out.println("O catálogo de tabelas não pode ser compactado.");
+                }
+                continue;
+            }
+
+            Table table = name.equals(INDEXES_CATALOG_NAME) ? indexesCatalog
+                    : name.equals(DICTIONARIES_CATALOG_NAME) ? dictionariesCatalog : openTable(name);
+            int releasedPages = table.vacuum();
+            System.out.println("Tabela '" + name + "' compactada: " + releasedPages + " página(s) de dados liberada(s).");
+        }
+    }
+
+    /**
+     * Remove do fim do arquivo as páginas que estão na lista de páginas livres. Retorna quantas foram removidas.
+     */
+    public int truncateFreePages() throws IOException {
+        return pager.truncateFreePages();
+    }
+
+    public int getFreePageCount() throws IOException {
+        return pager.getFreePageCount();
+    }
+
+    private void saveTableMetadata(String tableName, Table table) throws IOException {
+        Row updatedTableInfoRow = new Row();
+        updatedTableInfoRow.put("tableName", tableName);
+        updatedTableInfoRow.put("rootPageNumber", table.getRootPageNumber());
+        updatedTableInfoRow.put("firstDataPageNumber", table.getFirstDataPageNumber());
+
+        this.tablesCatalog.update(tableName.hashCode(), updatedTableInfoRow);
+    }
+
+    private void saveCatalogRoots() throws IOException {
+        Page headerPage = pager.getPage(0);
+        ByteBuffer headerBuffer = headerPage.getBuffer();
+
+        headerBuffer.putInt(TABLES_CATALOG_ROOT_OFFSET, this.tablesCatalog.getRootPageNumber());
+        headerBuffer.putInt(COLUMNS_CATALOG_ROOT_OFFSET, this.columnsCatalog.getRootPageNumber());
+        pager.flushPage(headerPage);
+    }
 
-            if (recordTableHash == tableKey) {
-                String columnName = (String) row.get("columnName");
-                int dataTypeId = (Integer) row.get("dataTypeId");
-                int ordinalPosition = (Integer) row.get("ordinalPosition");
+    private List<Column> loadSchema(String tableName) throws IOException {
+        List<Column> schema = new ArrayList<>();
+        int tableKey = tableName.hashCode();
 
-                schema.add(new Column(
-                        columnName,
-                        DataType.fromId(dataTypeId),
-                        ordinalPosition));
+        try (Cursor cursor = columnsCatalog.start()) {
+            while (!cursor.isEndOfTable()) {
+                Row row = cursor.getRecord();
+                int recordTableHash = (Integer) row.get("tableHash");
+
+                if (recordTableHash == tableKey) {
+                    String columnName = (String) row.get("columnName");
+                    int dataTypeId = (Integer) row.get("dataTypeId");
+                    int ordinalPosition = (Integer) row.get("ordinalPosition");
+
+                    schema.add(new Column(
+                            columnName,
+                            DataType.fromId(dataTypeId & ~DICTIONARY_TYPE_FLAG),
+                            ordinalPosition,
+                            (dataTypeId & DICTIONARY_TYPE_FLAG) != 0));
+                }
+                cursor.advance();
             }
-            cursor.advance();
         }
         schema.sort(Comparator.comparingInt(Column::ordinalPosition));
         return schema;
@@ -102,66 +382,224 @@ public class Database {
         if (pager.getNumPages() != 0) {
             throw new IllegalStateException("A inicialização só pode ocorrer em um banco de dados vazio.");
         }
-        // Página 0: Cabeçalho
-        Page headerPage = pager.newPage();
+        pager.beginOperation();
+        try {
+            pager.setFormatVersion(CURRENT_FORMAT_VERSION);
 
-        // Página 1 e 2: Catálogo de Tabelas
-        Page tablesRootPage = pager.newPage().initializeAsLeaf();
-        Page tablesDataPage = pager.newPage().initializeAsDataPage();
+            // Página 0: Cabeçalho
+            Page headerPage = pager.newPage();
 
-        // Página 3 e 4: Catálogo de Colunas
-        Page columnsRootPage = pager.newPage().initializeAsLeaf();
-        Page columnsDataPage = pager.newPage().initializeAsDataPage();
+            // Página 1 e 2: Catálogo de Tabelas
+            Page tablesRootPage = pager.newPage().initializeAsLeaf();
+            Page tablesDataPage = pager.newPage().initializeAsDataPage();
 
-        ByteBuffer headerBuffer = ByteBuffer.wrap(headerPage.getBytes());
-        headerBuffer.putInt(TABLES_CATALOG_ROOT_OFFSET, tablesRootPage.getPageNumber());
-        headerBuffer.putInt(COLUMNS_CATALOG_ROOT_OFFSET, columnsRootPage.getPageNumber());
-        pager.flushPage(headerPage);
+            // Página 3 e 4: Catálogo de Colunas
+            Page columnsRootPage = pager.newPage().initializeAsLeaf();
+            Page columnsDataPage = pager.newPage().initializeAsDataPage();
 
-        this.tablesCatalog = new Table(pager, tablesRootPage.getPageNumber(), tablesDataPage.getPageNumber(),
-                TABLES_CATALOG_SCHEMA);
-        this.columnsCatalog = new Table(pager, columnsRootPage.getPageNumber(), columnsDataPage.getPageNumber(),
-                COLUMNS_CATALOG_SCHEMA);
+            ByteBuffer headerBuffer = headerPage.getBuffer();
+            headerBuffer.putInt(TABLES_CATALOG_ROOT_OFFSET, tablesRootPage.getPageNumber());
+            headerBuffer.putInt(COLUMNS_CATALOG_ROOT_OFFSET, columnsRootPage.getPageNumber());
+            headerBuffer.putInt(FORMAT_VERSION_OFFSET, CURRENT_FORMAT_VERSION);
+            pager.flushPage(headerPage);
 
-        createUsersTableAndDefaultAdmin();
+            this.tablesCatalog = new Table(pager, tablesRootPage.getPageNumber(), tablesDataPage.getPageNumber(),
+                    TABLES_CATALOG_SCHEMA);
+            this.columnsCatalog = new Table(pager, columnsRootPage.getPageNumber(), columnsDataPage.getPageNumber(),
+                    COLUMNS_CATALOG_SCHEMA);
+            this.tablesCatalog.setMetadataListener(table -> saveCatalogRoots());
+            this.columnsCatalog.setMetadataListener(table -> saveCatalogRoots());
 
-        String tableName = "all_tables";
-        int tableKey = tableName.hashCode();
+            createUsersTableAndDefaultAdmin();
 
-        Row tableInfoRow = new Row();
-        tableInfoRow.put("tableName", tableName);
-        tableInfoRow.put("rootPageNumber", tablesRootPage.getPageNumber());
-        tableInfoRow.put("firstDataPageNumber", tablesDataPage.getPageNumber());
-        this.tablesCatalog.insert(tableKey, tableInfoRow);
-        for (Column col : TABLES_CATALOG_SCHEMA) {
-            int colKey = (tableName + "." + col.name()).hashCode();
+            String tableName = TABLES_CATALOG_NAME;
+            int tableKey = tableName.hashCode();
 
-            Row columnInfoRow = new Row();
-            columnInfoRow.put("tableHash", tableKey);
-            columnInfoRow.put("columnName", col.name());
-            columnInfoRow.put("dataTypeId", col.type().id);
-            columnInfoRow.put("ordinalPosition", col.ordinalPosition());
+            Row tableInfoRow = new Row();
+            tableInfoRow.put("tableName", tableName);
+            tableInfoRow.put("rootPageNumber", tablesRootPage.getPageNumber());
+            tableInfoRow.put("firstDataPageNumber", tablesDataPage.getPageNumber());
+            this.tablesCatalog.insert(tableKey, tableInfoRow);
+            for (Column col : TABLES_CATALOG_SCHEMA) {
+                int colKey = (tableName + "." + col.name()).hashCode();
+
+                Row columnInfoRow = new Row();
+                columnInfoRow.put("tableHash", tableKey);
+                columnInfoRow.put("columnName", col.name());
+                columnInfoRow.put("dataTypeId", col.type().id);
+                columnInfoRow.put("ordinalPosition", col.ordinalPosition());
+
+                columnsCatalog.insert(colKey, columnInfoRow);
+            }
+        } finally {
+            pager.endOperation();
+        }
+    }
 
-            columnsCatalog.insert(colKey, columnInfoRow);
+    public synchronized void createTable(String tableName, List<Column> schema) throws IOException {
+        createTable(tableName, schema, false);
+    }
+
+    /**
+     * Cria a tabela. Uma tabela clustered guarda as linhas nas folhas da árvore da chave primária,
+     * sem páginas de dados separadas. As colunas com dicionário ganham cada uma o seu, vazio.
+     */
+    public synchronized void createTable(String tableName, List<Column> schema, boolean clustered) throws IOException {
+        pager.beginOperation();
+        try {
+            if (tablesCatalog.find(tableName.hashCode()) != null) {
+                System.out.println("Essa tabela já existe.");
+                return;
+            }
+            if (hasDictionaryColumns(schema)) {
+                upgradeForDictionaryColumns();
+            }
+            if (clustered) {
+                upgradeForClusteredTables();
+            }
+
+            registerTable(tableName, schema, clustered);
+            System.out.println("Tabela '" + tableName + "' criada.");
+        } finally {
+            pager.endOperation();
         }
     }
 
-    public void createTable(String tableName, List<Column> schema) throws IOException {
-        int tableKey = tableName.hashCode();
-        if (tablesCatalog.find(tableKey) != null) {
-            System.out.println("Essa tabela já existe.");
+    /**
+     * Cria uma tabela colunar: páginas de dados no layout PAX, com cada coluna na sua minipágina, para
+     * varreduras que leem poucas colunas de tabelas largas.
+     */
+    public synchronized void createColumnarTable(String tableName, List<Column> schema) throws IOException {
+        createTableWithDataPages(tableName, schema, PageType.PAX_DATA_PAGE);
+    }
+
+    /**
+     * Cria uma tabela com as páginas de dados comprimidas em disco. Elas ficam descomprimidas no buffer
+     * pool, então a compressão custa CPU só nas leituras do disco e nas gravações.
+     */
+    public synchronized void createCompressedTable(String tableName, List<Column> schema) throws IOException {
+        createTableWithDataPages(tableName, schema, PageType.COMPRESSED_DATA_PAGE);
+    }
+
+    private void createTableWithDataPages(String tableName, List<Column> schema, PageType dataPageType)
+            throws IOException {
+        pager.beginOperation();
+        try {
+            if (tablesCatalog.find(tableName.hashCode()) != null) {
+                System.out.println("Essa tabela já existe.");
+                return;
+            }
+            if (hasDictionaryColumns(schema)) {
+                upgradeForDictionaryColumns();
+            }
+            if (dataPageType == PageType.PAX_DATA_PAGE) {
+                upgradeForColumnarTables();
+            } else {
+                upgradeForCompressedPages();
+            }
+
+            registerTable(tableName, schema, false, dataPageType);
+            System.out.println("Tabela '" + tableName + "' criada.");
+        } finally {
+            pager.endOperation();
+        }
+    }
+
+    private static boolean hasDictionaryColumns(List<Column> schema) {
+        boolean found = false;
+        for (Column column : schema) {
+            if (!column.dictionary()) {
+                continue;
+            }
+            if (column.type() != DataType.VARCHAR) {
+                throw new IllegalArgumentException("Só colunas VARCHAR podem ter dicionário, e '" + column.name()
+                        + "' não é VARCHAR.");
+            }
+            found = true;
+        }
+        return found;
+    }
+
+    private void upgradeForColumnarTables() throws IOException {
+        upgradeFromLargeValues(COLUMNAR_PAGES_FORMAT_VERSION, "Tabelas colunares");
+    }
+
+    private void upgradeForCompressedPages() throws IOException {
+        upgradeFromLargeValues(COMPRESSED_PAGES_FORMAT_VERSION, "Tabelas comprimidas");
+    }
+
+    private void upgradeForDictionaryColumns() throws IOException {
+        upgradeFromLargeValues(DICTIONARY_COLUMNS_FORMAT_VERSION, "Colunas com dicionário");
+    }
+
+    /**
+     * Passa o arquivo para a versão dada. Só arquivos a partir da versão 5 passam, porque os anteriores
+     * têm outro formato de registro.
+     */
+    private void upgradeFromLargeValues(int version, String feature) throws IOException {
+        int formatVersion = pager.getFormatVersion();
+        if (formatVersion >= version) {
             return;
         }
+        if (formatVersion < LARGE_VALUES_FORMAT_VERSION) {
+            throw new IllegalStateException(feature + " não são suportadas na versão " + formatVersion
+                    + " do formato.");
+        }
+
+        Page headerPage = pager.getPage(0);
+        headerPage.getBuffer().putInt(FORMAT_VERSION_OFFSET, version);
+        pager.flushPage(headerPage);
+        pager.setFormatVersion(version);
+    }
+
+    private void upgradeForClusteredTables() throws IOException {
+        int formatVersion = pager.getFormatVersion();
+        if (formatVersion >= CLUSTERED_TABLES_FORMAT_VERSION) {
+            return;
+        }
+        if (formatVersion < PAGE_SIZED_NODES_FORMAT_VERSION) {
+            throw new IllegalStateException("Tabelas clustered não são suportadas na versão " + formatVersion
+                    + " do formato.");
+        }
+
+        Page headerPage = pager.getPage(0);
+        headerPage.getBuffer().putInt(FORMAT_VERSION_OFFSET, CLUSTERED_TABLES_FORMAT_VERSION);
+        pager.flushPage(headerPage);
+        pager.setFormatVersion(CLUSTERED_TABLES_FORMAT_VERSION);
+    }
+
+    private void registerTable(String tableName, List<Column> schema) throws IOException {
+        registerTable(tableName, schema, false);
+    }
 
-        Page newTableRootPage = pager.newPage().initializeAsLeaf();
-        Page firstDataPage = pager.newPage().initializeAsDataPage();
+    private void registerTable(String tableName, List<Column> schema, boolean clustered) throws IOException {
+        registerTable(tableName, schema, clustered, PageType.DATA_PAGE);
+    }
+
+    private void registerTable(String tableName, List<Column> schema, boolean clustered, PageType dataPageType)
+            throws IOException {
+        int tableKey = tableName.hashCode();
+
+        int firstDataPageNumber = Table.CLUSTERED_TABLE;
+        Page newTableRootPage;
+        if (clustered) {
+            newTableRootPage = pager.newPage().initializeAsClusteredLeaf();
+        } else {
+            newTableRootPage = pager.newPage().initializeAsLeaf();
+            Page firstDataPage = switch (dataPageType) {
+                case PAX_DATA_PAGE -> pager.newPage().initializeAsPaxPage(schema);
+                case COMPRESSED_DATA_PAGE -> pager.newPage().initializeAsCompressedDataPage();
+                default -> pager.newPage().initializeAsDataPage();
+            };
+            pager.flushPage(firstDataPage);
+            firstDataPageNumber = firstDataPage.getPageNumber();
+        }
         pager.flushPage(newTableRootPage);
-        pager.flushPage(firstDataPage);
 
         Row tableInfoRow = new Row();
         tableInfoRow.put("tableName", tableName);
         tableInfoRow.put("rootPageNumber", newTableRootPage.getPageNumber());
-        tableInfoRow.put("firstDataPageNumber", firstDataPage.getPageNumber());
+        tableInfoRow.put("firstDataPageNumber", firstDataPageNumber);
 
         tablesCatalog.insert(tableKey, tableInfoRow);
 
@@ -171,39 +609,47 @@ public class Database {
             Row columnInfoRow = new Row();
             columnInfoRow.put("tableHash", tableKey);
             columnInfoRow.put("columnName", col.name());
-            columnInfoRow.put("dataTypeId", col.type().id);
+            columnInfoRow.put("dataTypeId", col.type().id | (col.dictionary() ? DICTIONARY_TYPE_FLAG : 0));
             columnInfoRow.put("ordinalPosition", col.ordinalPosition());
 
             columnsCatalog.insert(colKey, columnInfoRow);
+            if (col.dictionary()) {
+                registerDictionary(tableName, col);
+            }
         }
-        System.out.println("Tabela '" + tableName + "' criada.");
     }
 
-    public void close(Map<String, Table> openTables) throws IOException {
-        System.out.println("Iniciando o fechamento do banco de dados...");
-
-        for (Map.Entry<String, Table> entry : openTables.entrySet()) {
-            String tableName = entry.getKey();
-            Table table = entry.getValue();
-            int tableKey = tableName.hashCode();
+    private void registerDictionary(String tableName, Column column) throws IOException {
+        if (dictionariesCatalog == null) {
+            registerTable(DICTIONARIES_CATALOG_NAME, DICTIONARIES_CATALOG_SCHEMA);
+            dictionariesCatalog = loadTable(DICTIONARIES_CATALOG_NAME);
+        }
 
-            System.out.println("-> Salvando estado da tabela '" + tableName + "'...");
+        Row dictionaryInfoRow = new Row();
+        dictionaryInfoRow.put("tableHash", tableName.hashCode());
+        dictionaryInfoRow.put("columnName", column.name());
+        dictionaryInfoRow.put("firstPageNumber", ColumnDictionary.create(pager).getFirstPageNumber());
+        dictionariesCatalog.insert((tableName + "." + column.name()).hashCode(), dictionaryInfoRow);
+    }
 
-            Row updatedTableInfoRow = new Row();
-            updatedTableInfoRow.put("tableName", tableName);
-            updatedTableInfoRow.put("rootPageNumber", table.getRootPageNumber());
-            updatedTableInfoRow.put("firstDataPageNumber", table.getFirstDataPageNumber());
+    public synchronized void close(Map<String, Table> openTables) throws IOException {
+        System.out.println("Iniciando o fechamento do banco de dados...");
 
-            this.tablesCatalog.update(tableKey, updatedTableInfoRow);
-        }
+        pager.beginOperation();
+        try {
+            for (Map.Entry<String, Table> entry : openTables.entrySet()) {
+                String tableName = entry.getKey();
+                Table table = entry.getValue();
 
-        System.out.println("-> Salvando estado dos catálogos...");
-        Page headerPage = pager.getPage(0);
-        ByteBuffer headerBuffer = ByteBuffer.wrap(headerPage.getBytes());
+                System.out.println("-> Salvando estado da tabela '" + tableName + "'...");
+                saveTableMetadata(tableName, table);
+            }
 
-        headerBuffer.putInt(TABLES_CATALOG_ROOT_OFFSET, this.tablesCatalog.getRootPageNumber());
-        headerBuffer.putInt(COLUMNS_CATALOG_ROOT_OFFSET, this.columnsCatalog.getRootPageNumber());
-        pager.flushPage(headerPage);
+            System.out.println("-> Salvando estado dos catálogos...");
+            saveCatalogRoots();
+        } finally {
+            pager.endOperation();
+        }
 
         this.pager.close();
         System.out.println("Banco de dados fechado com sucesso.");
@@ -0,0 +1,249 @@
+package br.com.mydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Ordena linhas pela chave para a carga em massa. As linhas ficam serializadas em memória até
+ * completar um lote; cada lote é ordenado e gravado em um arquivo temporário, e no final os lotes
+ * são intercalados. Se tudo couber em um lote nada é gravado em disco.
+ *
+ * As linhas saem como KeyedRow em sorted(), ou ainda serializadas pelo codec do sorter em
+ * sortedRecords(), para quem consegue gravar os bytes sem decodificá-los, como a carga em massa.
+ *
+ * Chaves repetidas são recusadas antes de a primeira linha ser entregue: dentro de cada lote ao
+ * ordená-lo, e entre lotes por uma intercalação só das chaves no começo de sorted().
+ */
+public class ExternalSorter implements AutoCloseable {
+
+    public static final int DEFAULT_RUN_SIZE = 100_000;
+
+    private final List<Column> schema;
+    private final RowCodec codec;
+    private final int runSize;
+    private final List<SortedRecord> buffer;
+    private final List<Path> runs;
+    private final List<RunReader> openReaders;
+
+    public ExternalSorter(List<Column> schema) {
+        this(schema, DEFAULT_RUN_SIZE);
+    }
+
+    public ExternalSorter(List<Column> schema, int runSize) {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("O tamanho do lote de ordenação deve ser positivo.");
+        }
+        this.schema = schema;
+        this.codec = RowCodec.forSchema(schema);
+        this.runSize = runSize;
+        this.buffer = new ArrayList<>();
+        this.runs = new ArrayList<>();
+        this.openReaders = new ArrayList<>();
+    }
+
+    public void add(int key, Row row) throws IOException {
+        buffer.add(new SortedRecord(key, codec.serialize(CompactRow.of(row, schema))));
+        if (buffer.size() >= runSize) {
+            spillRun();
+        }
+    }
+
+    /**
+     * Codec do formato do registro dos SortedRecord, o formato atual sem dicionários nem overflow.
+     */
+    public RowCodec getCodec() {
+        return codec;
+    }
+
+    public Iterator<KeyedRow> sorted() throws IOException {
+        Iterator<SortedRecord> records = sortedRecords();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public KeyedRow next() {
+                SortedRecord record = records.next();
+                try {
+                    return new KeyedRow(record.key(), codec.deserialize(record.record()).toRow());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    public Iterator<SortedRecord> sortedRecords() throws IOException {
+        if (runs.isEmpty()) {
+            sortBuffer();
+            return buffer.iterator();
+        }
+
+        if (!buffer.isEmpty()) {
+            spillRun();
+        }
+        checkKeysAcrossRuns();
+
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(Comparator.comparingInt(reader -> reader.head.key()));
+        for (Path run : runs) {
+            RunReader reader = new RunReader(run, false);
+            openReaders.add(reader);
+            if (reader.advance()) {
+                heads.add(reader);
+            }
+        }
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public SortedRecord next() {
+                RunReader reader = heads.poll();
+                if (reader == null) {
+                    throw new NoSuchElementException();
+                }
+                SortedRecord entry = reader.head;
+                try {
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return entry;
+            }
+        };
+    }
+
+    private void sortBuffer() {
+        buffer.sort(Comparator.comparingInt(SortedRecord::key));
+        for (int i = 1; i < buffer.size(); i++) {
+            if (buffer.get(i).key() == buffer.get(i - 1).key()) {
+                throw duplicateKey(buffer.get(i).key());
+            }
+        }
+    }
+
+    /**
+     * Intercala só as chaves dos lotes, pulando os registros, para achar uma chave que aparece em mais
+     * de um lote.
+     */
+    private void checkKeysAcrossRuns() throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(Comparator.comparingInt(reader -> reader.head.key()));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run, true);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+
+            boolean first = true;
+            int previousKey = 0;
+            while (!heads.isEmpty()) {
+                RunReader reader = heads.poll();
+                int key = reader.head.key();
+                if (!first && key == previousKey) {
+                    throw duplicateKey(key);
+                }
+                first = false;
+                previousKey = key;
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static IllegalArgumentException duplicateKey(int key) {
+        return new IllegalArgumentException("A chave " + key + " aparece mais de uma vez na carga.");
+    }
+
+    private void spillRun() throws IOException {
+        sortBuffer();
+
+        Path run = Files.createTempFile("mydb-sort-", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (SortedRecord entry : buffer) {
+                out.writeInt(entry.key());
+                out.writeInt(entry.record().length);
+                out.write(entry.record());
+            }
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RunReader reader : openReaders) {
+            reader.in.close();
+        }
+        openReaders.clear();
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Linha ordenada, ainda serializada pelo codec do sorter.
+     */
+    public record SortedRecord(int key, byte[] record) {}
+
+    private static final class RunReader {
+
+        private final DataInputStream in;
+        private final boolean keysOnly;
+        private SortedRecord head;
+
+        private RunReader(Path run, boolean keysOnly) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+            this.keysOnly = keysOnly;
+        }
+
+        private boolean advance() throws IOException {
+            int key;
+            try {
+                key = in.readInt();
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+            if (keysOnly) {
+                in.skipNBytes(in.readInt());
+                head = new SortedRecord(key, null);
+                return true;
+            }
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            head = new SortedRecord(key, record);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Páginas lidas e gravadas com posição explícita no FileChannel, sem a posição compartilhada do
+ * arquivo, para que várias threads possam ler páginas ao mesmo tempo.
+ */
+public class FilePageStore implements PageStore {
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int initialNumPages;
+
+    public FilePageStore(String databaseFilePath, int pageSize) throws IOException {
+        this.channel = FileChannel.open(Path.of(databaseFilePath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.initialNumPages = (int) (channel.size() / pageSize);
+    }
+
+    @Override
+    public int getNumPages() {
+        return initialNumPages;
+    }
+
+    @Override
+    public ByteBuffer readPage(int pageNumber) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(pageSize);
+        readFully(data, (long) pageNumber * pageSize);
+        return data;
+    }
+
+    @Override
+    public ByteBuffer allocatePage(int pageNumber) {
+        return ByteBuffer.wrap(new byte[pageSize]);
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        long offset = (long) page.getPageNumber() * pageSize;
+        ByteBuffer buffer = page.getBuffer();
+        ByteBuffer data = ByteBuffer.wrap(buffer.array(), buffer.arrayOffset(), pageSize).slice();
+        while (data.hasRemaining()) {
+            channel.write(data, offset + data.position());
+        }
+    }
+
+    @Override
+    public byte[] readBytesAt(long offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data, offset);
+        return data.array();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(true);
+    }
+
+    @Override
+    public void truncate(int numPages) throws IOException {
+        channel.truncate((long) numPages * pageSize);
+    }
+
+    @Override
+    public void close(int numPages) throws IOException {
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer target, long offset) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, offset + target.position());
+            if (read < 0) {
+                throw new IOException("Fim do arquivo ao ler " + target.capacity() + " bytes em " + offset + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapa de espaço livre das páginas de dados de uma tabela. Cada página de dados tem uma entrada de
+ * 5 bytes (número da página e categoria de espaço livre, em unidades de pageSize / 256) guardada em
+ * páginas próprias, encadeadas a partir da primeira página de dados da tabela. O cabeçalho de cada
+ * página do mapa guarda a maior categoria entre suas entradas, e a busca pula as páginas sem espaço.
+ *
+ * O mapa é só uma dica: quem recebe uma página deve conferir o espaço real e corrigir a entrada.
+ */
+public class FreeSpaceMap {
+
+    // Na primeira página de dados, o campo de irmão das folhas aponta para a primeira página do mapa.
+    // Zero indica um arquivo anterior ao mapa, que é então montado a partir da cadeia de páginas de dados.
+    public static final int FIRST_MAP_PAGE_OFFSET = Page.NEXT_SIBLING_POINTER_OFFSET;
+
+    private static final int NEXT_MAP_PAGE_OFFSET = Page.NEXT_SIBLING_POINTER_OFFSET;
+    private static final int MAX_CATEGORY_OFFSET = Page.NEXT_DATA_PAGE_POINTER_OFFSET;
+    private static final int ENTRY_SIZE = 5; // número da página + categoria
+    private static final int CATEGORIES = 256;
+
+    private final Pager pager;
+    private final int categorySize;
+    private final int entriesPerPage;
+    private final List<Integer> mapPages;
+    private final Map<Integer, Integer> entryByDataPage;
+    private int entryCount;
+    private int searchStart;
+
+    private FreeSpaceMap(Pager pager) {
+        this.pager = pager;
+        this.categorySize = pager.getPageSize() / CATEGORIES;
+        this.entriesPerPage = (pager.getPageSize() - Page.HEADER_SIZE) / ENTRY_SIZE;
+        this.mapPages = new ArrayList<>();
+        this.entryByDataPage = new HashMap<>();
+    }
+
+    public static FreeSpaceMap open(Pager pager, int firstDataPageNumber) throws IOException {
+        FreeSpaceMap map = new FreeSpaceMap(pager);
+        Page firstDataPage = pager.getPage(firstDataPageNumber);
+        int mapPageNumber = firstDataPage.getBuffer().getInt(FIRST_MAP_PAGE_OFFSET);
+
+        if (mapPageNumber == 0) {
+            int dataPageNumber = firstDataPageNumber;
+            while (dataPageNumber != BTreeNode.NULL_POINTER) {
+                Page dataPage = pager.getPage(dataPageNumber);
+                map.add(dataPage);
+                dataPageNumber = dataPage.getNextDataPagePointer();
+            }
+            firstDataPage.getBuffer().putInt(FIRST_MAP_PAGE_OFFSET, map.mapPages.get(0));
+            pager.flushPage(firstDataPage);
+            return map;
+        }
+
+        while (mapPageNumber != BTreeNode.NULL_POINTER) {
+            map.mapPages.add(mapPageNumber);
+            Page mapPage = pager.getPage(mapPageNumber);
+            for (int i = 0; i < mapPage.getRowCount(); i++) {
+                map.entryByDataPage.put(mapPage.getBuffer().getInt(entryOffset(i)), map.entryCount++);
+            }
+            mapPageNumber = mapPage.getBuffer().getInt(NEXT_MAP_PAGE_OFFSET);
+        }
+        return map;
+    }
+
+    /**
+     * Páginas do mapa da cadeia que começa em firstDataPageNumber, sem montar o mapa quando ele não existe.
+     */
+    public static List<Integer> mapPageNumbers(Pager pager, int firstDataPageNumber) throws IOException {
+        List<Integer> pageNumbers = new ArrayList<>();
+        int mapPageNumber = pager.getPage(firstDataPageNumber).getBuffer().getInt(FIRST_MAP_PAGE_OFFSET);
+        if (mapPageNumber == 0) {
+            return pageNumbers;
+        }
+        while (mapPageNumber != BTreeNode.NULL_POINTER) {
+            pageNumbers.add(mapPageNumber);
+            mapPageNumber = pager.getPage(mapPageNumber).getBuffer().getInt(NEXT_MAP_PAGE_OFFSET);
+        }
+        return pageNumbers;
+    }
+
+    private static int entryOffset(int slot) {
+        return Page.HEADER_SIZE + (slot * ENTRY_SIZE);
+    }
+
+    /**
+     * Registra uma página de dados recém-acrescentada ao fim da cadeia da tabela.
+     */
+    public void add(Page dataPage) throws IOException {
+        int slot = entryCount % entriesPerPage;
+        Page mapPage;
+
+        if (slot == 0) {
+            mapPage = pager.newPage();
+            mapPage.setPageType(PageType.FREE_SPACE_MAP.value);
+            mapPage.setRowCount(0);
+            mapPage.getBuffer().putInt(NEXT_MAP_PAGE_OFFSET, BTreeNode.NULL_POINTER);
+            mapPage.getBuffer().putInt(MAX_CATEGORY_OFFSET, 0);
+
+            if (!mapPages.isEmpty()) {
+                Page previousMapPage = pager.getPage(mapPages.get(mapPages.size() - 1));
+                previousMapPage.getBuffer().putInt(NEXT_MAP_PAGE_OFFSET, mapPage.getPageNumber());
+                pager.flushPage(previousMapPage);
+            }
+            mapPages.add(mapPage.getPageNumber());
+        } else {
+            mapPage = pager.getPage(mapPages.get(mapPages.size() - 1));
+        }
+
+        mapPage.getBuffer().putInt(entryOffset(slot), dataPage.getPageNumber());
+        mapPage.getBuffer().put(entryOffset(slot) + Integer.BYTES, (byte) 0);
+        mapPage.setRowCount(slot + 1);
+        pager.flushPage(mapPage);
+
+        entryByDataPage.put(dataPage.getPageNumber(), entryCount++);
+        update(dataPage);
+    }
+
+    /**
+     * Atualiza a categoria da página de dados a partir do espaço que ela oferece depois de compactada.
+     */
+    public void update(Page dataPage) throws IOException {
+        Integer entry = entryByDataPage.get(dataPage.getPageNumber());
+        if (entry == null) {
+            return;
+        }
+
+        int category = Math.min(CATEGORIES - 1, dataPage.getAvailableSpace() / categorySize);
+        Page mapPage = pager.getPage(mapPages.get(entry / entriesPerPage));
+        int categoryOffset = entryOffset(entry % entriesPerPage) + Integer.BYTES;
+
+        int oldCategory = mapPage.getBuffer().get(categoryOffset) & 0xFF;
+        if (oldCategory == category) {
+            return;
+        }
+        mapPage.getBuffer().put(categoryOffset, (byte) category);
+
+        int maxCategory = mapPage.getBuffer().getInt(MAX_CATEGORY_OFFSET);
+        if (category > maxCategory) {
+            mapPage.getBuffer().putInt(MAX_CATEGORY_OFFSET, category);
+        } else if (oldCategory == maxCategory) {
+            mapPage.getBuffer().putInt(MAX_CATEGORY_OFFSET, computeMaxCategory(mapPage));
+        }
+        mapPage.markAsDirty();
+    }
+
+    private static int computeMaxCategory(Page mapPage) {
+        int maxCategory = 0;
+        for (int i = 0; i < mapPage.getRowCount(); i++) {
+            maxCategory = Math.max(maxCategory, mapPage.getBuffer().get(entryOffset(i) + Integer.BYTES) & 0xFF);
+        }
+        return maxCategory;
+    }
+
+    /**
+     * Número de uma página de dados com pelo menos requiredSpace bytes livres, ou NULL_POINTER.
+     * A busca começa na página do mapa onde a anterior teve sucesso.
+     */
+    public int findPageWithSpace(int requiredSpace) throws IOException {
+        int neededCategory = (requiredSpace + categorySize - 1) / categorySize;
+        if (neededCategory >= CATEGORIES || mapPages.isEmpty()) {
+            return BTreeNode.NULL_POINTER;
+        }
+
+        for (int n = 0; n < mapPages.size(); n++) {
+            int mapIndex = (searchStart + n) % mapPages.size();
+            Page mapPage = pager.getPage(mapPages.get(mapIndex));
+            if (mapPage.getBuffer().getInt(MAX_CATEGORY_OFFSET) < neededCategory) {
+                continue;
+            }
+
+            for (int i = 0; i < mapPage.getRowCount(); i++) {
+                if ((mapPage.getBuffer().get(entryOffset(i) + Integer.BYTES) & 0xFF) >= neededCategory) {
+                    searchStart = mapIndex;
+                    return mapPage.getBuffer().getInt(entryOffset(i));
+                }
+            }
+        }
+        return BTreeNode.NULL_POINTER;
+    }
+
+    public int getLastDataPageNumber() throws IOException {
+        Page lastMapPage = pager.getPage(mapPages.get(mapPages.size() - 1));
+        return lastMapPage.getBuffer().getInt(entryOffset(lastMapPage.getRowCount() - 1));
+    }
+}
@@ -0,0 +1,80 @@
+package br.com.mydb;
+
+/**
+ * Nó interno de um índice secundário. Como o valor indexado pode se repetir, cada separador guarda o
+ * par (chave, ponteiro de dados), que é único e permite chegar à entrada exata de uma linha.
+ * As folhas do índice usam o mesmo formato das folhas da tabela e são lidas com BTreeNode.
+ */
+public class IndexNode {
+
+    public static final int SEPARATOR_SIZE = BTreeNode.KEY_SIZE + BTreeNode.POINTER_SIZE;
+    public static final int CELL_SIZE = SEPARATOR_SIZE + BTreeNode.CHILD_POINTER_SIZE;
+
+    private final Page page;
+
+    public IndexNode(Page page) {
+        this.page = page;
+    }
+
+    public static boolean isIndexInternal(Page page) {
+        return page.getPageType() == PageType.INDEX_INTERNAL_NODE.value;
+    }
+
+    public static int getMaxKeys(int pageSize) {
+        return (pageSize - Page.HEADER_SIZE - BTreeNode.CHILD_POINTER_SIZE) / CELL_SIZE;
+    }
+
+    private int getCellOffset(int index) {
+        return Page.HEADER_SIZE + BTreeNode.CHILD_POINTER_SIZE + (index * CELL_SIZE);
+    }
+
+    public int getKey(int index) {
+        return this.page.getBuffer().getInt(getCellOffset(index));
+    }
+
+    public long getDataPointer(int index) {
+        return this.page.getBuffer().getLong(getCellOffset(index) + BTreeNode.KEY_SIZE);
+    }
+
+    public void setSeparator(int index, int key, long dataPointer) {
+        int offset = getCellOffset(index);
+        this.page.getBuffer().putInt(offset, key);
+        this.page.getBuffer().putLong(offset + BTreeNode.KEY_SIZE, dataPointer);
+        this.page.markAsDirty();
+    }
+
+    public int getChildPointer(int index) {
+        int offset = index == 0 ? Page.HEADER_SIZE : getCellOffset(index - 1) + SEPARATOR_SIZE;
+        return this.page.getBuffer().getInt(offset);
+    }
+
+    public void setChildPointer(int index, int pageNumber) {
+        int offset = index == 0 ? Page.HEADER_SIZE : getCellOffset(index - 1) + SEPARATOR_SIZE;
+        this.page.getBuffer().putInt(offset, pageNumber);
+        this.page.markAsDirty();
+    }
+
+    /**
+     * Compara o separador da posição index com o par (key, dataPointer).
+     */
+    public int compareTo(int index, int key, long dataPointer) {
+        int result = Integer.compare(getKey(index), key);
+        return result != 0 ? result : Long.compare(getDataPointer(index), dataPointer);
+    }
+
+    public int getKeyCount() {
+        return this.page.getRowCount();
+    }
+
+    public void setKeyCount(int count) {
+        this.page.setRowCount(count);
+    }
+
+    public int getPageNumber() {
+        return this.page.getPageNumber();
+    }
+
+    public Page getPage() {
+        return this.page;
+    }
+}
@@ -0,0 +1,3 @@
+package br.com.mydb;
+
+public record KeyedRow(int key, Row row) {}
@@ -10,9 +10,15 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.swing.AbstractAction;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -30,14 +36,28 @@ public class Main {
 
     private static final String DB_PADRAO = "mydb.bd";
     private static Database database;
-    private static final Map<String, Table> openTables = new HashMap<>();
+    private static final Map<String, Table> openTables = new ConcurrentHashMap<>();
+
+    private static final Pattern WHERE_BETWEEN =
+            Pattern.compile("(?i)where\\s+(\\w+)\\s+between\\s+(-?\\d+)\\s+and\\s+(-?\\d+)");
+    private static final Pattern WHERE_COMPARISON =
+            Pattern.compile("(?i)where\\s+(\\w+)\\s*(>=|<=|=|>|<)\\s*('[^']*'|\\S+)");
+    private static final Pattern ON_CONFLICT_UPDATE =
+            Pattern.compile("(?i)\\s*on\\s+conflict\\s+(do\\s+)?update\\s*$");
+    private static final Pattern UPDATE_COLUMNS =
+            Pattern.compile("(?i)(\\w+)\\s+set\\s+([^(].*?)\\s+where\\s+(\\w+)\\s*=\\s*(\\S+)\\s*");
+    private static final Pattern ASSIGNMENT =
+            Pattern.compile("\\s*(\\w+)\\s*=\\s*('[^']*'|[^,']+?)\\s*(,|$)");
+    private static final Pattern CREATE_INDEX =
+            Pattern.compile("(?i)index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)");
 
     public static void main(String[] args) {
         String arquivoDb = pegarArquivoDb(args);
         System.out.println("Usando o arquivo de banco de dados: " + arquivoDb);
 
         try {
-            database = new Database(arquivoDb);
+            database = new Database(arquivoDb, pegarBackend(args), BufferPool.DEFAULT_CAPACITY_IN_PAGES,
+                    !temFlag(args, "--no-wal"));
             Scanner scanner = new Scanner(System.in);
 
             if (login(scanner)) {
@@ -55,13 +75,32 @@ public class Main {
     }
 
     private static String pegarArquivoDb(String[] args) {
-        if (args.length > 0) {
-            return args[0];
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                return arg;
+            }
         }
 
         return DB_PADRAO;
     }
 
+    private static StorageBackend pegarBackend(String[] args) {
+        if (temFlag(args, "--mmap")) {
+            return StorageBackend.MEMORY_MAPPED;
+        }
+
+        return StorageBackend.RANDOM_ACCESS_FILE;
+    }
+
+    private static boolean temFlag(String[] args, String flag) {
+        for (String arg : args) {
+            if (arg.equals(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static boolean login(Scanner scanner) throws IOException {
         if (GraphicsEnvironment.isHeadless()) {
             return loginNoTerminal(scanner);
@@ -283,18 +322,76 @@ public class Main {
     private static boolean handleMetaCommand(String input) {
         if (input.equals(".exit")) {
             return true;
+        } else if (input.startsWith(".load")) {
+            handleLoad(input);
+            return false;
+        } else if (input.equals(".truncate")) {
+            handleTruncate();
+            return false;
         } else {
             System.out.println("Comando não reconhecido: " + input);
             return false;
         }
     }
 
+    private static void handleTruncate() {
+        try {
+            int removidas = database.truncateFreePages();
+            System.out.println(removidas + " página(s) livre(s) removida(s) do fim do arquivo; "
+                    + database.getFreePageCount() + " continuam na lista de páginas livres.");
+        } catch (IOException e) {
+            System.out.println("Erro ao truncar o arquivo: " + e.getMessage());
+        }
+    }
+
+    private static void handleLoad(String input) {
+        String[] parts = input.trim().split("\\s+");
+        if (parts.length != 3) {
+            System.out.println("Sintaxe inválida. Use: .load <tabela> <arquivo.csv>;");
+            return;
+        }
+        String tableName = parts[1];
+
+        try {
+            Table table = getTable(tableName);
+            List<Column> schema = table.getSchema();
+            long inicio = System.nanoTime();
+            int carregadas;
+
+            try (ExternalSorter sorter = new ExternalSorter(schema);
+                 BufferedReader reader = Files.newBufferedReader(Path.of(parts[2]))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    String[] values = line.split(",");
+                    if (values.length != schema.size()) {
+                        throw new IllegalArgumentException("Linha " + lineNumber
+                                + ": o número de valores não corresponde ao número de colunas.");
+                    }
+                    Row row = parseRow(schema, values);
+                    sorter.add((Integer) row.get(schema.get(0).name()), row);
+                }
+                carregadas = table.bulkLoad(sorter);
+            }
+
+            long ms = (System.nanoTime() - inicio) / 1_000_000;
+            System.out.println(carregadas + " linhas carregadas na tabela '" + tableName + "' em " + ms + " ms.");
+        } catch (Exception e) {
+            System.out.println("Erro ao executar comando: " + e.getMessage());
+        }
+    }
+
     private static Table getTable(String tableName) throws IOException {
-        if (openTables.containsKey(tableName)) {
-            return openTables.get(tableName);
+        Table table = openTables.get(tableName);
+        if (table == null) {
+            // O Database devolve sempre a mesma instância, então duas threads chegam à mesma tabela.
+            table = database.openTable(tableName);
+            openTables.putIfAbsent(tableName, table);
         }
-        Table table = database.openTable(tableName);
-        openTables.put(tableName, table);
         return table;
     }
 
@@ -305,7 +402,11 @@ public class Main {
         try {
             switch (command) {
                 case "create":
-                    handleCreateTable(parts[1]);
+                    if (parts[1].toLowerCase().startsWith("index")) {
+                        handleCreateIndex(parts[1]);
+                    } else {
+                        handleCreateTable(parts[1]);
+                    }
                     break;
                 case "insert":
                     handleInsert(parts[1]);
@@ -319,6 +420,9 @@ public class Main {
                 case "update":
                     handleUpdate(parts[1]);
                     break;
+                case "vacuum":
+                    database.vacuum(parts.length > 1 ? parts[1].trim() : null);
+                    break;
                 default:
                     System.out.println("Comando SQL não reconhecido: " + command);
                     break;
@@ -333,8 +437,13 @@ public class Main {
         int openParen = statement.indexOf('(');
         int closeParen = statement.lastIndexOf(')');
 
-        if (openParen == -1 || closeParen == -1) {
-            System.out.println("Sintaxe inválida. Use: create table <nome> (<col1> <tipo1>, ...);");
+        String options = closeParen == -1 ? "" : statement.substring(closeParen + 1).trim();
+        boolean clustered = options.equalsIgnoreCase("clustered");
+        boolean columnar = options.equalsIgnoreCase("columnar");
+        boolean compressed = options.equalsIgnoreCase("compressed");
+
+        if (openParen == -1 || closeParen == -1 || (!options.isEmpty() && !clustered && !columnar && !compressed)) {
+            System.out.println("Sintaxe inválida. Use: create table <nome> (<col1> <tipo1>, ...) [clustered | columnar | compressed];");
             return;
         }
 
@@ -349,16 +458,48 @@ public class Main {
             String colName = parts[0];
             String colType = parts[1].toUpperCase();
             DataType dataType = (colType.equals("INT")) ? DataType.INTEGER : DataType.VARCHAR;
-            schema.add(new Column(colName, dataType, ordinalPosition++));
+            boolean dictionary = parts.length > 2 && parts[2].equalsIgnoreCase("dictionary");
+            if (parts.length > 3 || (parts.length == 3 && !dictionary)) {
+                System.out.println("Sintaxe inválida na coluna '" + colName + "'. Use: <coluna> <tipo> [dictionary]");
+                return;
+            }
+            if (dictionary && dataType != DataType.VARCHAR) {
+                System.out.println("Erro: só colunas VARCHAR podem ter dictionary.");
+                return;
+            }
+            schema.add(new Column(colName, dataType, ordinalPosition++, dictionary));
+        }
+
+        if (columnar) {
+            database.createColumnarTable(tableName, schema);
+        } else if (compressed) {
+            database.createCompressedTable(tableName, schema);
+        } else {
+            database.createTable(tableName, schema, clustered);
+        }
+    }
+
+    private static void handleCreateIndex(String statement) throws IOException {
+        Matcher matcher = CREATE_INDEX.matcher(statement.trim());
+        if (!matcher.matches()) {
+            System.out.println("Sintaxe inválida. Use: create index <nome> on <tabela>(<coluna>);");
+            return;
         }
 
-        database.createTable(tableName, schema);
+        database.createIndex(matcher.group(1), matcher.group(2), matcher.group(3));
     }
 
     private static void handleInsert(String statement) throws IOException {
         String[] parts = statement.split("values");
         String tableName = parts[0].replace("into", "").trim();
         String valuesPart = parts[1].trim();
+
+        Matcher onConflict = ON_CONFLICT_UPDATE.matcher(valuesPart);
+        boolean upsert = onConflict.find();
+        if (upsert) {
+            valuesPart = valuesPart.substring(0, onConflict.start()).trim();
+        }
+
         valuesPart = valuesPart.substring(1, valuesPart.length() - 1);
         String[] values = valuesPart.split(",");
 
@@ -370,23 +511,16 @@ public class Main {
             return;
         }
 
-        Row newRow = new Row();
+        Row newRow = parseRow(schema, values);
         int primaryKey = -1;
 
-        for (int i = 0; i < schema.size(); i++) {
-            Column col = schema.get(i);
-            String valStr = values[i].trim().replace("'", "");
-
-            Object value;
-            if (col.type() == DataType.INTEGER) {
-                value = Integer.parseInt(valStr);
-            } else {
-                value = valStr;
-            }
-            newRow.put(col.name(), value);
-
+        for (Column col : schema) {
             if (col.ordinalPosition() == 1) {
-                primaryKey = (Integer) value;
+                if (newRow.get(col.name()) == null) {
+                    System.out.println("Erro: a chave primária não pode ser nula.");
+                    return;
+                }
+                primaryKey = (Integer) newRow.get(col.name());
             }
         }
 
@@ -395,8 +529,40 @@ public class Main {
             return;
         }
 
-        table.insert(primaryKey, newRow);
-        System.out.println("Inserido na tabela '" + tableName + "'.");
+        boolean inserted = true;
+        if (upsert) {
+            inserted = table.upsert(primaryKey, newRow);
+        } else {
+            table.insert(primaryKey, newRow);
+        }
+
+        if (inserted) {
+            System.out.println("Inserido na tabela '" + tableName + "'.");
+        } else {
+            System.out.println("Chave " + primaryKey + " atualizada na tabela '" + tableName + "'.");
+        }
+        printTree(table);
+    }
+
+    private static Row parseRow(List<Column> schema, String[] values) {
+        Row row = new Row();
+
+        for (int i = 0; i < schema.size(); i++) {
+            Column col = schema.get(i);
+            row.put(col.name(), parseValue(col, values[i]));
+        }
+        return row;
+    }
+
+    /**
+     * Valor digitado para a coluna; null sem aspas é o valor nulo.
+     */
+    private static Object parseValue(Column col, String text) {
+        if (text.trim().equalsIgnoreCase("null")) {
+            return null;
+        }
+        String valStr = text.trim().replace("'", "");
+        return col.type() == DataType.INTEGER ? Integer.parseInt(valStr) : valStr;
     }
 
     private static void handleSelect(String statement) throws IOException {
@@ -405,34 +571,146 @@ public class Main {
         if (parts[0].equals("*") && parts[1].equals("from")) {
             String tableName = parts[2];
             Table table = getTable(tableName);
+            String whereClause = parts.length > 3 ? statement.trim().split("\\s+", 4)[3] : null;
 
-            List<Row> results = new ArrayList<>();
-            Cursor cursor = table.start();
-            while (!cursor.isEndOfTable()) {
-                results.add(cursor.getRecord());
-                cursor.advance();
+            Condicao condicao = whereClause == null ? null : parseWhere(table, whereClause);
+            if (whereClause != null && condicao == null) {
+                return;
             }
 
-            if (results.isEmpty()) {
-                System.out.println("Tabela '" + tableName + "' está vazia ou não contém registros.");
+            List<CompactRow> results;
+            Cursor whereCursor = condicao == null ? null : openWhereCursor(table, condicao);
+            if (whereCursor == null) {
+                results = table.parallelScan().collect(row -> condicao == null || condicao.aceita(row),
+                        RecordView::toCompactRow, true);
+            } else {
+                results = new ArrayList<>();
+                try (Cursor cursor = whereCursor) {
+                    while (!cursor.isEndOfTable()) {
+                        RecordView row = cursor.getRecordView();
+                        if (condicao.aceita(row)) {
+                            results.add(row.toCompactRow());
+                        }
+                        cursor.advance();
+                    }
+                }
+            }
+
+            if (!results.isEmpty()) {
+                TableFormatter.printRows(table.getSchema(), results);
+            } else if (whereClause != null) {
+                System.out.println("Nenhum registro de '" + tableName + "' atende à condição.");
             } else {
-                TableFormatter.printTable(table.getSchema(), results);
+                System.out.println("Tabela '" + tableName + "' está vazia ou não contém registros.");
             }
         } else if (parts[0].equals("from")) {
             String tableName = parts[1];
             int key = Integer.parseInt(parts[2]);
 
             Table table = getTable(tableName);
-            Row foundRow = table.find(key);
+            CompactRow foundRow = table.findCompact(key);
 
             if (foundRow != null) {
-                TableFormatter.printTable(table.getSchema(), Collections.singletonList(foundRow));
+                TableFormatter.printRows(table.getSchema(), Collections.singletonList(foundRow));
             } else {
                 System.out.println("Chave " + key + " não encontrada na tabela '" + tableName + "'.");
             }
 
         } else {
-            System.out.println("Sintaxe de SELECT inválida. Use: select * from <tabela>; ou select from <tabela> <chave>;");
+            System.out.println("Sintaxe de SELECT inválida. Use: select * from <tabela> [where <chave> ...]; ou select from <tabela> <chave>;");
+        }
+    }
+
+    private static Condicao parseWhere(Table table, String whereClause) {
+        Matcher between = WHERE_BETWEEN.matcher(whereClause.trim());
+        Matcher comparison = WHERE_COMPARISON.matcher(whereClause.trim());
+
+        String columnName;
+        if (between.matches()) {
+            columnName = between.group(1);
+        } else if (comparison.matches()) {
+            columnName = comparison.group(1);
+        } else {
+            System.out.println("Sintaxe de WHERE inválida. Use: where <coluna> between <a> and <b>; "
+                    + "ou where <coluna> (=, >, >=, <, <=) <valor>;");
+            return null;
+        }
+
+        Column column = null;
+        for (Column col : table.getSchema()) {
+            if (col.name().equalsIgnoreCase(columnName)) {
+                column = col;
+            }
+        }
+        if (column == null) {
+            System.out.println("Erro: a coluna '" + columnName + "' não existe.");
+            return null;
+        }
+
+        int position = table.getSchema().indexOf(column);
+        String operator = between.matches() ? "between" : comparison.group(2);
+        if (column.type() == DataType.VARCHAR) {
+            if (!operator.equals("=")) {
+                System.out.println("Erro: colunas VARCHAR só aceitam comparação por igualdade.");
+                return null;
+            }
+            String text = comparison.group(3).replace("'", "");
+            return new Condicao(column, position, 0, 0, true, true, text);
+        }
+
+        if (between.matches()) {
+            return new Condicao(column, position, Integer.parseInt(between.group(2)), Integer.parseInt(between.group(3)),
+                    true, true, null);
+        }
+
+        int value = Integer.parseInt(comparison.group(3));
+        switch (operator) {
+            case "=":
+                return new Condicao(column, position, value, value, true, true, null);
+            case ">":
+                return new Condicao(column, position, value, Integer.MAX_VALUE, false, true, null);
+            case ">=":
+                return new Condicao(column, position, value, Integer.MAX_VALUE, true, true, null);
+            case "<":
+                return new Condicao(column, position, Integer.MIN_VALUE, value, true, false, null);
+            default:
+                return new Condicao(column, position, Integer.MIN_VALUE, value, true, true, null);
+        }
+    }
+
+    /**
+     * Escolhe o caminho de acesso: a árvore da chave primária ou um índice secundário da coluna. Sem
+     * nenhum dos dois retorna null, e a varredura completa é feita em paralelo. Em todos os casos as
+     * linhas ainda passam pela condição.
+     */
+    private static Cursor openWhereCursor(Table table, Condicao condicao) throws IOException {
+        if (condicao.column().ordinalPosition() == 1 && condicao.column().type() == DataType.INTEGER) {
+            return table.scanRange(condicao.lo(), condicao.hi(), condicao.loInclusive(), condicao.hiInclusive());
+        }
+
+        SecondaryIndex index = table.getIndex(condicao.column().name());
+        if (index == null) {
+            return null;
+        }
+        if (condicao.text() != null) {
+            int key = index.keyOf(condicao.text());
+            return index.scanRange(key, key, true, true);
+        }
+        return index.scanRange(condicao.lo(), condicao.hi(), condicao.loInclusive(), condicao.hiInclusive());
+    }
+
+    private record Condicao(Column column, int position, int lo, int hi, boolean loInclusive, boolean hiInclusive,
+                            String text) {
+
+        boolean aceita(RecordView row) throws IOException {
+            if (row.isNull(position)) {
+                return false;
+            }
+            if (text != null) {
+                return row.equalsString(position, text);
+            }
+            int intValue = row.getInt(position);
+            return (loInclusive ? intValue >= lo : intValue > lo) && (hiInclusive ? intValue <= hi : intValue < hi);
         }
     }
 
@@ -442,10 +720,21 @@ public class Main {
         int key = Integer.parseInt(parts[2]);
 
         Table table = getTable(tableName);
-        table.delete(key);
+        if (!table.delete(key)) {
+            System.out.println("Chave " + key + " não encontrada para exclusão.");
+            return;
+        }
+        System.out.println("Chave " + key + " deletada.");
+        printTree(table);
     }
 
     private static void handleUpdate(String statement) throws IOException {
+        Matcher byColumn = UPDATE_COLUMNS.matcher(statement.trim());
+        if (byColumn.matches()) {
+            handleUpdateColumns(byColumn);
+            return;
+        }
+
         String[] parts = statement.split("set");
         String tableName = parts[0].trim();
         String valuesPart = parts[1].trim();
@@ -460,22 +749,101 @@ public class Main {
             return;
         }
 
-        Row updatedRow = new Row();
+        Row updatedRow = parseRow(schema, values);
         int primaryKey = Integer.parseInt(values[0].trim());
 
-        for (int i = 0; i < schema.size(); i++) {
-            Column col = schema.get(i);
-            String valStr = values[i].trim().replace("'", "");
+        printUpdateResult(table, primaryKey, table.update(primaryKey, updatedRow));
+    }
 
-            Object value;
-            if (col.type() == DataType.INTEGER) {
-                value = Integer.parseInt(valStr);
-            } else {
-                value = valStr;
+    /**
+     * update <tabela> set <coluna> = <valor>[, ...] where <chave primária> = <valor>: as colunas não
+     * citadas mantêm o valor atual.
+     */
+    private static void handleUpdateColumns(Matcher byColumn) throws IOException {
+        Table table = getTable(byColumn.group(1));
+        List<Column> schema = table.getSchema();
+
+        Column primaryKey = null;
+        for (Column col : schema) {
+            if (col.ordinalPosition() == 1) {
+                primaryKey = col;
+            }
+        }
+        if (!primaryKey.name().equalsIgnoreCase(byColumn.group(3))) {
+            System.out.println("Erro: o update por coluna exige where " + primaryKey.name() + " = <valor>;");
+            return;
+        }
+
+        Map<String, Object> changes = new HashMap<>();
+        Matcher assignment = ASSIGNMENT.matcher(byColumn.group(2));
+        int end = 0;
+        while (end < byColumn.group(2).length() && assignment.find(end) && assignment.start() == end) {
+            Column column = null;
+            for (Column col : schema) {
+                if (col.name().equalsIgnoreCase(assignment.group(1))) {
+                    column = col;
+                }
+            }
+            if (column == null) {
+                System.out.println("Erro: a coluna '" + assignment.group(1) + "' não existe.");
+                return;
+            }
+
+            changes.put(column.name(), parseValue(column, assignment.group(2)));
+            end = assignment.end();
+        }
+        if (end < byColumn.group(2).length()) {
+            System.out.println("Sintaxe inválida. Use: update <tabela> set <coluna> = <valor>, ... where "
+                    + primaryKey.name() + " = <valor>;");
+            return;
+        }
+
+        int key = Integer.parseInt(byColumn.group(4));
+        printUpdateResult(table, key, table.updateColumns(key, changes));
+    }
+
+    private static void printUpdateResult(Table table, int key, boolean updated) throws IOException {
+        if (!updated) {
+            System.out.println("Chave " + key + " não encontrada para atualização.");
+            return;
+        }
+        System.out.println("Chave " + key + " atualizada com sucesso.");
+        printTree(table);
+    }
+
+    /**
+     * Mostra a B+ tree da chave primária, um nó por linha, com os filhos indentados abaixo do pai.
+     */
+    private static void printTree(Table table) throws IOException {
+        System.out.println("--- ESTRUTURA DA B+ TREE ---");
+        table.lockForRead();
+        try {
+            if (table.getNumPages() == 0) {
+                System.out.println("Árvore está vazia.");
+                return;
             }
-            updatedRow.put(col.name(), value);
+            printNode(table, table.getRootPageNumber(), "");
+        } finally {
+            table.unlockForRead();
         }
+        System.out.println("--------------------------");
+    }
 
-        table.update(primaryKey, updatedRow);
+    private static void printNode(Table table, int pageNumber, String indent) throws IOException {
+        BTreeNode node = new BTreeNode(table.getPage(pageNumber), Table.BTREE_MIN_DEGREE);
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < node.getKeyCount(); i++) {
+            keys.append(i == 0 ? "" : ", ").append(node.getKey(i));
+        }
+
+        if (node.isLeaf()) {
+            System.out.println(indent + "Folha (Pág " + pageNumber + ") chaves=[" + keys + "] -> (próx: "
+                    + node.getNextSiblingPointer() + ")");
+            return;
+        }
+        System.out.println(indent + "Interno (Pág " + pageNumber + ") chaves=[" + keys + "]");
+        for (int i = 0; i <= node.getKeyCount(); i++) {
+            printNode(table, node.getChildPointer(i), indent + "  ");
+        }
     }
 }
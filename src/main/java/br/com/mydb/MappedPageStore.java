@@ -0,0 +1,158 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedPageStore implements PageStore {
+
+    public static final int DEFAULT_CHUNK_SIZE_IN_PAGES = 1024;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int chunkSizeInPages;
+    private final int initialNumPages;
+    private final boolean privateCopies;
+    private final List<MappedByteBuffer> chunks;
+
+    public MappedPageStore(String databaseFilePath, int pageSize) throws IOException {
+        this(databaseFilePath, pageSize, DEFAULT_CHUNK_SIZE_IN_PAGES, false);
+    }
+
+    /**
+     * Com privateCopies o arquivo é mapeado em modo privado (copy-on-write), e writePage grava a página
+     * pelo canal. É o modo usado com o WAL, que não pode deixar alterações não confirmadas chegarem ao
+     * arquivo. Leituras e escritas continuam usando as visões do mapeamento: o sistema operacional só
+     * copia uma página da memória mapeada na primeira vez que ela é alterada. Essas cópias ficam na
+     * memória do processo até o pedaço mapeado ser descartado, no truncate ou no close.
+     */
+    public MappedPageStore(String databaseFilePath, int pageSize, int chunkSizeInPages, boolean privateCopies)
+            throws IOException {
+        this.channel = FileChannel.open(Path.of(databaseFilePath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.chunkSizeInPages = chunkSizeInPages;
+        this.initialNumPages = (int) (channel.size() / pageSize);
+        this.privateCopies = privateCopies;
+        this.chunks = new ArrayList<>();
+    }
+
+    @Override
+    public int getNumPages() {
+        return initialNumPages;
+    }
+
+    @Override
+    public ByteBuffer readPage(int pageNumber) throws IOException {
+        return mappedView(pageNumber);
+    }
+
+    @Override
+    public ByteBuffer allocatePage(int pageNumber) throws IOException {
+        ByteBuffer view = mappedView(pageNumber);
+        for (int i = 0; i < pageSize; i += Long.BYTES) {
+            view.putLong(i, 0L);
+        }
+        return view;
+    }
+
+    /**
+     * Uma página que é visão do mapeamento já tem a escrita feita na memória mapeada. As que vêm de
+     * outro lugar, como as páginas comprimidas e as reaplicadas do WAL, são copiadas para ela antes,
+     * para que uma leitura seguinte pelo mapeamento as veja.
+     */
+    @Override
+    public void writePage(Page page) throws IOException {
+        ByteBuffer view = mappedView(page.getPageNumber());
+        if (!page.getBuffer().isDirect()) {
+            view.put(0, page.getBuffer(), 0, pageSize);
+        }
+        if (!privateCopies) {
+            return;
+        }
+
+        long offset = (long) page.getPageNumber() * pageSize;
+        ByteBuffer source = view.duplicate().clear();
+        while (source.hasRemaining()) {
+            channel.write(source, offset + source.position());
+        }
+    }
+
+    @Override
+    public byte[] readBytesAt(long offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            int read = channel.read(data, offset + data.position());
+            if (read < 0) {
+                throw new IOException("Fim do arquivo ao ler " + length + " bytes em " + offset + ".");
+            }
+        }
+        return data.array();
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (privateCopies) {
+            channel.force(false);
+            return;
+        }
+        for (MappedByteBuffer chunk : chunks) {
+            if (chunk != null) {
+                chunk.force();
+            }
+        }
+    }
+
+    /**
+     * Descarta os pedaços mapeados que ficaram inteiros depois do fim. O último pedaço ainda em uso
+     * continua com o tamanho completo no arquivo, e o corte exato é feito no close.
+     */
+    @Override
+    public synchronized void truncate(int numPages) throws IOException {
+        sync();
+        int keptChunks = (numPages + chunkSizeInPages - 1) / chunkSizeInPages;
+        while (chunks.size() > keptChunks) {
+            chunks.remove(chunks.size() - 1);
+        }
+        long keptBytes = (long) keptChunks * chunkSizeInPages * pageSize;
+        if (channel.size() > keptBytes) {
+            channel.truncate(keptBytes);
+        }
+    }
+
+    @Override
+    public synchronized void close(int numPages) throws IOException {
+        sync();
+        chunks.clear();
+        channel.truncate((long) numPages * pageSize);
+        channel.close();
+    }
+
+    private ByteBuffer mappedView(int pageNumber) throws IOException {
+        MappedByteBuffer chunk = chunkFor(pageNumber);
+        int offsetInChunk = (pageNumber % chunkSizeInPages) * pageSize;
+        return chunk.slice(offsetInChunk, pageSize);
+    }
+
+    // Os pedaços são mapeados sob demanda também nas leituras, que podem vir de várias threads.
+    private synchronized MappedByteBuffer chunkFor(int pageNumber) throws IOException {
+        int chunkIndex = pageNumber / chunkSizeInPages;
+        while (chunks.size() <= chunkIndex) {
+            chunks.add(null);
+        }
+
+        MappedByteBuffer chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            long chunkBytes = (long) chunkSizeInPages * pageSize;
+            FileChannel.MapMode mode = privateCopies ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_WRITE;
+            chunk = channel.map(mode, chunkIndex * chunkBytes, chunkBytes);
+            chunks.set(chunkIndex, chunk);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,81 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+/**
+ * Cadeias de páginas de overflow, cada uma com o número da próxima no campo de irmão do cabeçalho e um
+ * pedaço dos dados logo depois dele. Guardam as linhas grandes demais para uma folha clustered (a
+ * célula fica só com o tamanho da linha e a primeira página) e, em páginas VALUE_OVERFLOW_PAGE, os
+ * valores VARCHAR que o RowCodec tira do registro.
+ */
+public final class OverflowChain {
+
+    private static final int NEXT_PAGE_OFFSET = Page.NEXT_SIBLING_POINTER_OFFSET;
+
+    private OverflowChain() {
+    }
+
+    /**
+     * Grava os bytes em páginas novas e devolve o número da primeira.
+     */
+    public static int write(Pager pager, byte[] data) throws IOException {
+        return write(pager, data, 0, data.length, PageType.OVERFLOW_PAGE);
+    }
+
+    /**
+     * Grava length bytes de data a partir de from, em páginas do tipo dado.
+     */
+    public static int write(Pager pager, byte[] data, int from, int length, PageType pageType) throws IOException {
+        int chunkSize = pager.getPageSize() - Page.HEADER_SIZE;
+        int firstPageNumber = BTreeNode.NULL_POINTER;
+        Page previousPage = null;
+
+        for (int offset = 0; offset < length; offset += chunkSize) {
+            Page page = pager.newPage();
+            page.setPageType(pageType.value);
+            page.getBuffer().putInt(NEXT_PAGE_OFFSET, BTreeNode.NULL_POINTER);
+            page.getBuffer().put(Page.HEADER_SIZE, data, from + offset, Math.min(chunkSize, length - offset));
+            page.markAsDirty();
+
+            if (previousPage == null) {
+                firstPageNumber = page.getPageNumber();
+            } else {
+                previousPage.getBuffer().putInt(NEXT_PAGE_OFFSET, page.getPageNumber());
+                pager.flushPage(previousPage);
+            }
+            previousPage = page;
+        }
+        if (previousPage != null) {
+            pager.flushPage(previousPage);
+        }
+        return firstPageNumber;
+    }
+
+    public static byte[] read(Pager pager, int firstPageNumber, int length) throws IOException {
+        int chunkSize = pager.getPageSize() - Page.HEADER_SIZE;
+        byte[] data = new byte[length];
+        int pageNumber = firstPageNumber;
+
+        for (int offset = 0; offset < length; offset += chunkSize) {
+            if (pageNumber == BTreeNode.NULL_POINTER) {
+                throw new IllegalStateException("Cadeia de overflow a partir da página " + firstPageNumber + " está incompleta.");
+            }
+            Page page = pager.getPage(pageNumber);
+            page.getBuffer().get(Page.HEADER_SIZE, data, offset, Math.min(chunkSize, length - offset));
+            pageNumber = page.getBuffer().getInt(NEXT_PAGE_OFFSET);
+        }
+        return data;
+    }
+
+    /**
+     * Devolve as páginas da cadeia à lista de páginas livres.
+     */
+    public static void free(Pager pager, int firstPageNumber) throws IOException {
+        int pageNumber = firstPageNumber;
+        while (pageNumber != BTreeNode.NULL_POINTER) {
+            int nextPageNumber = pager.getPage(pageNumber).getBuffer().getInt(NEXT_PAGE_OFFSET);
+            pager.freePage(pageNumber);
+            pageNumber = nextPageNumber;
+        }
+    }
+}
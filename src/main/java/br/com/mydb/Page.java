@@ -1,6 +1,7 @@
 package br.com.mydb;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class Page {
@@ -19,16 +20,22 @@ public class Page {
     public static final int SLOT_LENGTH_FIELD = 2;
 
     private final int pageNumber;
-    private final byte[] data;
-    private boolean isDirty;
+    // Lidos pelo Checkpointer e pelo despejo em outras threads, fora do lock da tabela que escreve.
+    private volatile boolean isDirty;
+    private volatile boolean isLogPending;
+    private int pinCount;
     private final ByteBuffer buffer;
 
 
     public Page(int pageNumber, byte[] data) {
+        this(pageNumber, ByteBuffer.wrap(data));
+    }
+
+    public Page(int pageNumber, ByteBuffer buffer) {
         this.pageNumber = pageNumber;
-        this.data = data;
         this.isDirty = false;
-        this.buffer = ByteBuffer.wrap(data);
+        this.pinCount = 0;
+        this.buffer = buffer;
     }
 
     public byte getPageType() {
@@ -37,6 +44,7 @@ public class Page {
 
     public void setPageType(byte pageType) {
         this.buffer.put(PAGE_TYPE_OFFSET, pageType);
+        markAsDirty();
     }
 
     public int getRowCount() {
@@ -45,6 +53,7 @@ public class Page {
 
     public void setRowCount(int count) {
         this.buffer.putShort(ROW_COUNT_OFFSET , (short) count);
+        markAsDirty();
     }
 
     public int getFreeSpacePointer() {
@@ -53,6 +62,7 @@ public class Page {
 
     public void setFreeSpacePointer(int pointer) {
         this.buffer.putShort(FREE_SPACE_POINTER_OFFSET, (short) pointer);
+        markAsDirty();
     }
 
     public int getPageNumber() {
@@ -65,10 +75,43 @@ public class Page {
 
     public void markAsDirty() {
         this.isDirty = true;
+        this.isLogPending = true;
     }
 
-    public byte[] getBytes() {
-        return this.data;
+    public void markAsClean() {
+        this.isDirty = false;
+    }
+
+    public boolean isLogPending() {
+        return this.isLogPending;
+    }
+
+    public void markAsLogged() {
+        this.isLogPending = false;
+    }
+
+    // Fixar e soltar são sincronizados porque as tarefas de uma ParallelScan dividem as páginas de dados.
+    public synchronized void pin() {
+        this.pinCount++;
+    }
+
+    public synchronized void unpin() {
+        if (this.pinCount == 0) {
+            throw new IllegalStateException("A página " + pageNumber + " não está fixada.");
+        }
+        this.pinCount--;
+    }
+
+    public synchronized boolean isPinned() {
+        return this.pinCount > 0;
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public int getSize() {
+        return this.buffer.capacity();
     }
 
     public int getNextDataPagePointer() {
@@ -77,38 +120,188 @@ public class Page {
 
     public void setNextDataPagePointer(int pageNumber) {
         this.buffer.putInt(NEXT_DATA_PAGE_POINTER_OFFSET, pageNumber);
+        markAsDirty();
+    }
+
+    /**
+     * Páginas PAX guardam as linhas por coluna; os métodos de registro desta classe as tratam pelo PaxPage.
+     */
+    public boolean isPaxPage() {
+        return getPageType() == PageType.PAX_DATA_PAGE.value;
     }
 
     public int getFreeSpace() {
+        if (isPaxPage()) {
+            return new PaxPage(this).getAvailableSpace();
+        }
         int endOfSlotArray = HEADER_SIZE + (SLOT_SIZE * getRowCount());
         return getFreeSpacePointer() - endOfSlotArray;
     }
 
+    /**
+     * Espaço que a página pode oferecer a novos registros se for compactada: o espaço livre contíguo
+     * somado aos bytes de registros apagados.
+     */
+    public int getAvailableSpace() {
+        if (isPaxPage()) {
+            return new PaxPage(this).getAvailableSpace();
+        }
+        int liveBytes = 0;
+        for (int slotId = 0; slotId < getRowCount(); slotId++) {
+            liveBytes += getSlotLength(slotId);
+        }
+        return getSize() - HEADER_SIZE - (SLOT_SIZE * getRowCount()) - liveBytes;
+    }
+
+    private int getSlotLength(int slotId) {
+        return this.buffer.getShort(HEADER_SIZE + (slotId * SLOT_SIZE) + SLOT_LENGTH_FIELD);
+    }
+
+    private int findFreeSlot() {
+        for (int slotId = 0; slotId < getRowCount(); slotId++) {
+            if (getSlotLength(slotId) == 0) {
+                return slotId;
+            }
+        }
+        return -1;
+    }
+
     public int addRecord(byte[] recordData) {
-        int recordSize = recordData.length;
-        if (getFreeSpace() < recordSize + SLOT_SIZE) {
-            throw new IllegalStateException("Não há espaço suficiente na página " + this.pageNumber + " para o registro.");
+        if (isPaxPage()) {
+            return new PaxPage(this).addRecord(recordData);
+        }
+        int slotId = allocateRecord(recordData.length);
+        this.buffer.put(getRecordOffset(slotId), recordData);
+        return slotId;
+    }
+
+    /**
+     * Reserva recordSize bytes e um slot para um registro que o chamador grava em seguida, a partir de
+     * getRecordOffset, direto no buffer da página. Páginas PAX não guardam o registro inteiro e não
+     * aceitam essa gravação.
+     */
+    public int allocateRecord(int recordSize) {
+        if (isPaxPage()) {
+            throw new IllegalStateException("A página " + this.pageNumber + " guarda as linhas por coluna.");
+        }
+        int freeSlot = findFreeSlot();
+        int slotSpace = freeSlot == -1 ? SLOT_SIZE : 0;
+
+        if (getFreeSpace() < recordSize + slotSpace) {
+            if (getAvailableSpace() < recordSize + slotSpace) {
+                throw new IllegalStateException("Não há espaço suficiente na página " + this.pageNumber + " para o registro.");
+            }
+            compact();
+            freeSlot = findFreeSlot();
         }
 
         int newFreeSpacePointer = getFreeSpacePointer() - recordSize;
         setFreeSpacePointer(newFreeSpacePointer);
 
-        System.arraycopy(recordData, 0, this.data, newFreeSpacePointer, recordSize);
-
-        int newSlotId = getRowCount();
+        int newSlotId = freeSlot == -1 ? getRowCount() : freeSlot;
         int slotOffset = HEADER_SIZE + (newSlotId * SLOT_SIZE);
 
         this.buffer.putShort(slotOffset + SLOT_OFFSET_FIELD, (short) newFreeSpacePointer);
         this.buffer.putShort(slotOffset + SLOT_LENGTH_FIELD, (short) recordSize);
 
-        setRowCount(newSlotId + 1);
+        if (freeSlot == -1) {
+            setRowCount(newSlotId + 1);
+        }
         markAsDirty();
 
         return newSlotId;
     }
 
+    /**
+     * Junta os registros vivos no fim da página, eliminando os buracos deixados por exclusões. Os slots
+     * mantêm seus números, porque são referenciados pelos ponteiros de dados; só os slots apagados no
+     * fim do vetor são descartados.
+     */
+    public void compact() {
+        compact(0);
+    }
+
+    private void compact(int minSlotCount) {
+        int slotCount = getRowCount();
+        while (slotCount > minSlotCount && getSlotLength(slotCount - 1) == 0) {
+            slotCount--;
+        }
+
+        byte[][] records = new byte[slotCount][];
+        for (int slotId = 0; slotId < slotCount; slotId++) {
+            if (getSlotLength(slotId) > 0) {
+                records[slotId] = getRecord(slotId);
+            }
+        }
+
+        int freeSpacePointer = getSize();
+        for (int slotId = 0; slotId < slotCount; slotId++) {
+            if (records[slotId] != null) {
+                freeSpacePointer -= records[slotId].length;
+                this.buffer.put(freeSpacePointer, records[slotId]);
+                this.buffer.putShort(HEADER_SIZE + (slotId * SLOT_SIZE) + SLOT_OFFSET_FIELD, (short) freeSpacePointer);
+            }
+        }
+
+        setRowCount(slotCount);
+        setFreeSpacePointer(freeSpacePointer);
+        markAsDirty();
+    }
+
+    /**
+     * Substitui o registro do slot sem mudar o número do slot, para que o ponteiro de dados continue
+     * válido. Um registro que não cresce é sobrescrito no lugar; um maior é regravado no espaço livre
+     * da página, compactando-a se preciso. Retorna false, sem alterar nada, se não couber na página.
+     */
+    public boolean updateRecord(int slotId, byte[] recordData) {
+        if (isPaxPage()) {
+            return new PaxPage(this).updateRecord(slotId, recordData);
+        }
+        if (slotId < 0 || slotId >= getRowCount() || getSlotLength(slotId) == 0) {
+            throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + pageNumber);
+        }
+
+        int slotOffset = HEADER_SIZE + (slotId * SLOT_SIZE);
+        int oldLength = getSlotLength(slotId);
+        int recordSize = recordData.length;
+
+        if (recordSize <= oldLength) {
+            this.buffer.put(this.buffer.getShort(slotOffset + SLOT_OFFSET_FIELD), recordData);
+            this.buffer.putShort(slotOffset + SLOT_LENGTH_FIELD, (short) recordSize);
+            markAsDirty();
+            return true;
+        }
+        if (getAvailableSpace() + oldLength < recordSize) {
+            return false;
+        }
+
+        this.buffer.putShort(slotOffset + SLOT_LENGTH_FIELD, (short) 0);
+        if (getFreeSpace() < recordSize) {
+            compact(slotId + 1);
+        }
+
+        int newFreeSpacePointer = getFreeSpacePointer() - recordSize;
+        setFreeSpacePointer(newFreeSpacePointer);
+        this.buffer.put(newFreeSpacePointer, recordData);
+        this.buffer.putShort(slotOffset + SLOT_OFFSET_FIELD, (short) newFreeSpacePointer);
+        this.buffer.putShort(slotOffset + SLOT_LENGTH_FIELD, (short) recordSize);
+        markAsDirty();
+        return true;
+    }
+
+    public int getRecordLength(int slotId) {
+        return getSlotLength(slotId);
+    }
+
+    public int getRecordOffset(int slotId) {
+        return this.buffer.getShort(HEADER_SIZE + (slotId * SLOT_SIZE) + SLOT_OFFSET_FIELD);
+    }
+
     public byte[] getRecord(int slotId) throws NoSuchElementException {
-        if (slotId < 0 || slotId > getRowCount()) {
+        if (isPaxPage()) {
+            return new PaxPage(this).getRecord(slotId);
+        }
+        if (slotId < 0 || slotId >= getRowCount()) {
             throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + pageNumber);
         }
 
@@ -121,13 +314,38 @@ public class Page {
         }
 
         byte[] record = new byte[dataLength];
-        System.arraycopy(this.data, dataOffset, record, 0, dataLength);
+        this.buffer.get(dataOffset, record);
 
         return record;
     }
 
+    /**
+     * Posiciona a view sobre o registro do slot, sem copiar os bytes da página. Em páginas PAX o registro
+     * é remontado em um array novo.
+     */
+    public RecordView viewRecord(int slotId, RecordView view) throws NoSuchElementException {
+        if (isPaxPage()) {
+            return view.wrap(new PaxPage(this).getRecord(slotId));
+        }
+        if (slotId < 0 || slotId >= getRowCount()) {
+            throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + pageNumber);
+        }
+
+        int slotOffset = HEADER_SIZE + (slotId * SLOT_SIZE);
+        int dataLength = this.buffer.getShort(slotOffset + SLOT_LENGTH_FIELD);
+        if (dataLength == 0) {
+            throw new NoSuchElementException("O registro no slot " + slotId + " foi deletado.");
+        }
+
+        return view.wrap(this.buffer, this.buffer.getShort(slotOffset + SLOT_OFFSET_FIELD), dataLength);
+    }
+
     public void deleteRecord(int slotId) {
-        if (slotId < 0 || slotId > getRowCount()) {
+        if (isPaxPage()) {
+            new PaxPage(this).deleteRecord(slotId);
+            return;
+        }
+        if (slotId < 0 || slotId >= getRowCount()) {
             throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + pageNumber);
         }
 
@@ -145,11 +363,38 @@ public class Page {
         return this;
     }
 
+    public Page initializeAsClusteredLeaf() {
+        setPageType(PageType.CLUSTERED_LEAF_NODE.value);
+        setRowCount(0);
+        setFreeSpacePointer(getSize());
+        this.buffer.putInt(NEXT_SIBLING_POINTER_OFFSET, BTreeNode.NULL_POINTER);
+        this.buffer.putInt(BTreeNode.FRAGMENTED_BYTES_OFFSET, 0);
+        return this;
+    }
+
     public Page initializeAsDataPage() {
         setPageType(PageType.DATA_PAGE.value);
         setRowCount(0);
-        setFreeSpacePointer(this.data.length);
+        setFreeSpacePointer(getSize());
         setNextDataPagePointer(BTreeNode.NULL_POINTER);
+        this.buffer.putInt(FreeSpaceMap.FIRST_MAP_PAGE_OFFSET, 0);
+        return this;
+    }
+
+    /**
+     * Página de dados comum de uma tabela comprimida; só o tipo muda, e o CompressedPageStore a grava
+     * comprimida.
+     */
+    public Page initializeAsCompressedDataPage() {
+        initializeAsDataPage();
+        setPageType(PageType.COMPRESSED_DATA_PAGE.value);
+        return this;
+    }
+
+    public Page initializeAsPaxPage(List<Column> schema) {
+        initializeAsDataPage();
+        setPageType(PageType.PAX_DATA_PAGE.value);
+        PaxPage.initialize(this, schema);
         return this;
     }
 }
\ No newline at end of file
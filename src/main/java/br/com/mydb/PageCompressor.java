@@ -0,0 +1,183 @@
+package br.com.mydb;
+
+import java.util.Arrays;
+
+/**
+ * Compressão de páginas no formato de bloco do LZ4, em Java puro: sequências de literais seguidas de
+ * uma cópia de até 64 KB para trás. Cada sequência começa com um token cujos 4 bits altos são o número
+ * de literais e os 4 baixos o tamanho da cópia menos 4; 15 em um deles continua em bytes de 255 até um
+ * byte menor. O deslocamento da cópia vem depois dos literais, em 2 bytes little-endian. A busca usa
+ * uma tabela hash dos 4 bytes seguintes, sem cadeias, que troca um pouco de taxa por velocidade.
+ *
+ * Uma instância guarda a tabela hash e não pode ser usada por duas threads ao mesmo tempo.
+ */
+public final class PageCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    // Como no LZ4, o fim do bloco é sempre literal: nenhuma cópia começa nos últimos MATCH_FIND_LIMIT
+    // bytes nem termina nos últimos LAST_LITERALS.
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+
+    private final int[] hashTable = new int[1 << HASH_LOG];
+
+    /**
+     * Comprime os length primeiros bytes de source em target. Retorna o tamanho comprimido, ou -1 se
+     * ele não couber em target.
+     */
+    public int compress(byte[] source, int length, byte[] target) {
+        Arrays.fill(this.hashTable, -1);
+        int anchor = 0;
+        int position = 0;
+        int out = 0;
+        int findLimit = length - MATCH_FIND_LIMIT;
+        int matchLimit = length - LAST_LITERALS;
+
+        while (position < findLimit) {
+            int sequence = readInt(source, position);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_LOG);
+            int candidate = this.hashTable[hash];
+            this.hashTable[hash] = position;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(source, candidate) != sequence) {
+                position++;
+                continue;
+            }
+
+            while (position > anchor && candidate > 0 && source[position - 1] == source[candidate - 1]) {
+                position--;
+                candidate--;
+            }
+            int matchEnd = position + MIN_MATCH;
+            int reference = candidate + MIN_MATCH;
+            while (matchEnd < matchLimit && source[matchEnd] == source[reference]) {
+                matchEnd++;
+                reference++;
+            }
+
+            out = writeSequence(source, anchor, position - anchor, position - candidate,
+                    matchEnd - position - MIN_MATCH, target, out);
+            if (out < 0) {
+                return -1;
+            }
+            position = matchEnd;
+            anchor = matchEnd;
+        }
+
+        int literalLength = length - anchor;
+        if (out + 1 + literalLength / 255 + 1 + literalLength > target.length) {
+            return -1;
+        }
+        int tokenPosition = out++;
+        if (literalLength >= 15) {
+            target[tokenPosition] = (byte) (15 << 4);
+            out = writeLength(target, out, literalLength - 15);
+        } else {
+            target[tokenPosition] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(source, anchor, target, out, literalLength);
+        return out + literalLength;
+    }
+
+    /**
+     * Descomprime o bloco de length bytes que começa em offset para o início de target. Retorna quantos
+     * bytes foram produzidos.
+     */
+    public static int decompress(byte[] source, int offset, int length, byte[] target) {
+        int in = offset;
+        int end = offset + length;
+        int out = 0;
+        try {
+            while (true) {
+                int token = source[in++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(source, in, target, out, literalLength);
+                in += literalLength;
+                out += literalLength;
+                if (in >= end) {
+                    return out;
+                }
+
+                int matchOffset = (source[in] & 0xFF) | ((source[in + 1] & 0xFF) << 8);
+                in += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int reference = out - matchOffset;
+                if (matchOffset == 0 || reference < 0) {
+                    throw new IllegalArgumentException("Bloco comprimido inválido: cópia antes do início.");
+                }
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(target, reference, target, out, matchLength);
+                } else {
+                    // A cópia se sobrepõe ao que ela mesma escreve, o que repete os últimos matchOffset bytes.
+                    for (int i = 0; i < matchLength; i++) {
+                        target[out + i] = target[reference + i];
+                    }
+                }
+                out += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bloco comprimido inválido: passa do fim dos dados.", e);
+        }
+    }
+
+    private static int writeSequence(byte[] source, int literalStart, int literalLength, int matchOffset,
+                                     int matchLength, byte[] target, int out) {
+        int needed = 1 + literalLength / 255 + 1 + literalLength + 2 + matchLength / 255 + 1;
+        if (out + needed > target.length) {
+            return -1;
+        }
+
+        int tokenPosition = out++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            out = writeLength(target, out, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(source, literalStart, target, out, literalLength);
+        out += literalLength;
+
+        target[out++] = (byte) matchOffset;
+        target[out++] = (byte) (matchOffset >>> 8);
+        if (matchLength >= 15) {
+            token |= 15;
+            out = writeLength(target, out, matchLength - 15);
+        } else {
+            token |= matchLength;
+        }
+        target[tokenPosition] = (byte) token;
+        return out;
+    }
+
+    private static int writeLength(byte[] target, int out, int value) {
+        while (value >= 255) {
+            target[out++] = (byte) 255;
+            value -= 255;
+        }
+        target[out++] = (byte) value;
+        return out;
+    }
+
+    private static int readInt(byte[] source, int position) {
+        return (source[position] & 0xFF) | ((source[position + 1] & 0xFF) << 8)
+                | ((source[position + 2] & 0xFF) << 16) | ((source[position + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,23 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface PageStore {
+
+    int getNumPages();
+
+    ByteBuffer readPage(int pageNumber) throws IOException;
+
+    ByteBuffer allocatePage(int pageNumber) throws IOException;
+
+    void writePage(Page page) throws IOException;
+
+    byte[] readBytesAt(long offset, int length) throws IOException;
+
+    void sync() throws IOException;
+
+    void truncate(int numPages) throws IOException;
+
+    void close(int numPages) throws IOException;
+}
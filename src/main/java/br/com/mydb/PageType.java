@@ -4,7 +4,16 @@ public enum PageType {
 
     DATA_PAGE((byte) 0x0D),
     BTREE_LEAF_NODE((byte) 0x00),
-    BTREE_INTERNAL_NODE((byte) 0x01);
+    BTREE_INTERNAL_NODE((byte) 0x01),
+    INDEX_INTERNAL_NODE((byte) 0x02),
+    FREE_SPACE_MAP((byte) 0x03),
+    FREE_PAGE((byte) 0x04),
+    CLUSTERED_LEAF_NODE((byte) 0x05),
+    OVERFLOW_PAGE((byte) 0x06),
+    VALUE_OVERFLOW_PAGE((byte) 0x07),
+    PAX_DATA_PAGE((byte) 0x08),
+    DICTIONARY_PAGE((byte) 0x09),
+    COMPRESSED_DATA_PAGE((byte) 0x0A);
 
     public final byte value;
 
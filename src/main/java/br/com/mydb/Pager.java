@@ -1,75 +1,532 @@
 package br.com.mydb;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Cache de páginas sobre o armazenamento. O buffer pool e o estado do arquivo ficam sob o monitor do
+ * Pager, mas a leitura de uma página que falta é feita fora dele: a página fica marcada em
+ * loadingPages enquanto é lida, e outras threads que a pedem esperam essa leitura em vez de repeti-la.
+ * Assim buscas e varreduras de várias threads leem páginas diferentes ao mesmo tempo.
+ *
+ * As escritas são serializadas pelo operationLock. O conteúdo das páginas é protegido pelas travas de
+ * leitura e escrita de cada tabela, tomadas antes do operationLock.
+ */
 public class Pager {
 
-    private final RandomAccessFile databaseFile;
+    public static final long DEFAULT_CHECKPOINT_THRESHOLD_BYTES = 4L * 1024 * 1024;
+
+    // Lista de páginas livres, com raiz no cabeçalho (página 0). Zero indica lista vazia, já que a
+    // página 0 nunca é liberada. Cada página livre guarda a próxima no campo de irmão das folhas.
+    public static final int FREE_LIST_HEAD_OFFSET = 12;
+    public static final int FREE_PAGE_COUNT_OFFSET = 16;
+    private static final int NEXT_FREE_PAGE_OFFSET = Page.NEXT_SIBLING_POINTER_OFFSET;
+
+    private final CompressedPageStore pageStore;
     private final int pageSize;
     private int numPages;
+    private int formatVersion;
+
+    private final BufferPool bufferPool;
+    private final Map<Integer, CompletableFuture<Page>> loadingPages;
+    private long pagesRead;
+
+    private final WriteAheadLog writeAheadLog;
+    private final Checkpointer checkpointer;
+    private final Prefetcher prefetcher;
+    private volatile boolean readAheadEnabled;
 
-    private final Map<Integer, Page> pageCache;
+    private final ReentrantLock operationLock;
+    private int operationDepth;
+    private final Map<Integer, Page> operationPins;
 
 
     public Pager(String databaseFilePath, int pageSize) throws IOException {
-        File file = new File(databaseFilePath);
-        this.databaseFile = new RandomAccessFile(file, "rw");
+        this(databaseFilePath, pageSize, BufferPool.DEFAULT_CAPACITY_IN_PAGES);
+    }
+
+    public Pager(String databaseFilePath, int pageSize, int cacheSizeInPages) throws IOException {
+        this(databaseFilePath, pageSize, cacheSizeInPages, StorageBackend.RANDOM_ACCESS_FILE, true);
+    }
+
+    public Pager(String databaseFilePath, int pageSize, int cacheSizeInPages, StorageBackend backend,
+            boolean walEnabled) throws IOException {
+        this.pageStore = new CompressedPageStore(backend.open(databaseFilePath, pageSize, walEnabled),
+                databaseFilePath, pageSize);
         this.pageSize = pageSize;
+        this.numPages = pageStore.getNumPages();
+        this.formatVersion = Database.CURRENT_FORMAT_VERSION;
 
-        long fileSize = this.databaseFile.length();
-        this.numPages = (int) (fileSize / pageSize);
+        this.bufferPool = new BufferPool(cacheSizeInPages);
+        this.loadingPages = new HashMap<>();
+        this.operationLock = new ReentrantLock();
+        this.operationDepth = 0;
+        this.operationPins = new HashMap<>();
+        this.prefetcher = new Prefetcher(this);
+        this.readAheadEnabled = true;
 
-        this.pageCache = new HashMap<>();
+        if (walEnabled) {
+            this.writeAheadLog = new WriteAheadLog(databaseFilePath, pageSize);
+            this.checkpointer = new Checkpointer(this, DEFAULT_CHECKPOINT_THRESHOLD_BYTES,
+                    Checkpointer.DEFAULT_INTERVAL_MS);
+        } else {
+            this.writeAheadLog = null;
+            this.checkpointer = null;
+        }
+    }
+
+    /**
+     * Reaplica o WAL deixado por uma execução interrompida e inicia o checkpointer.
+     * Deve ser chamado antes de qualquer leitura de página.
+     */
+    public synchronized void recover() throws IOException {
+        if (writeAheadLog == null) {
+            return;
+        }
+        int recoveredNumPages = writeAheadLog.recover(pageStore);
+        if (recoveredNumPages > numPages) {
+            numPages = recoveredNumPages;
+        }
+        checkpointer.start();
     }
 
     public Page getPage(int pageNumber) throws IOException {
+        if (Thread.holdsLock(this)) {
+            return getPageLocked(pageNumber);
+        }
+
+        while (true) {
+            CompletableFuture<Page> loading;
+            boolean loader = false;
+            synchronized (this) {
+                checkPageNumber(pageNumber);
+                Page page = bufferPool.get(pageNumber);
+                if (page != null) {
+                    pinForOperation(page);
+                    return page;
+                }
+                loading = loadingPages.get(pageNumber);
+                if (loading == null) {
+                    loading = new CompletableFuture<>();
+                    loadingPages.put(pageNumber, loading);
+                    loader = true;
+                }
+            }
+
+            if (loader) {
+                return load(pageNumber, loading);
+            }
+            try {
+                loading.join();
+            } catch (CompletionException | CancellationException e) {
+                // A leitura da outra thread falhou; a próxima volta tenta ler a página por conta própria.
+            }
+        }
+    }
+
+    /**
+     * Leitura dentro do monitor, como em newPage e freePage. Esperar uma thread que está lendo a mesma
+     * página travaria, porque ela precisa do monitor para terminar, então a página é lida de novo aqui
+     * e tirada de loadingPages: a cópia da outra thread pode ficar velha antes de chegar ao buffer pool
+     * e é descartada.
+     */
+    private synchronized Page getPageLocked(int pageNumber) throws IOException {
+        checkPageNumber(pageNumber);
+        Page page = bufferPool.get(pageNumber);
+        if (page == null) {
+            loadingPages.remove(pageNumber);
+            page = admitLoaded(pageNumber, pageStore.readPage(pageNumber));
+        }
+        pinForOperation(page);
+        return page;
+    }
+
+    /**
+     * Lê fora do monitor a página que a thread atual marcou em loadingPages e a põe no buffer pool.
+     */
+    private Page load(int pageNumber, CompletableFuture<Page> loading) throws IOException {
+        try {
+            ByteBuffer data = pageStore.readPage(pageNumber);
+            Page page;
+            synchronized (this) {
+                if (loadingPages.remove(pageNumber, loading)) {
+                    page = admitLoaded(pageNumber, data);
+                    pinForOperation(page);
+                } else {
+                    // A página foi lida dentro do monitor ou cortada do arquivo enquanto esta leitura
+                    // acontecia, e os bytes lidos podem estar velhos.
+                    page = getPageLocked(pageNumber);
+                }
+            }
+            loading.complete(page);
+            return page;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loadingPages.remove(pageNumber, loading);
+            }
+            loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Põe no buffer pool a página lida, a não ser que outra thread já a tenha posto lá.
+     */
+    private Page admitLoaded(int pageNumber, ByteBuffer data) throws IOException {
+        Page page = bufferPool.get(pageNumber);
+        if (page == null) {
+            page = new Page(pageNumber, data);
+            pagesRead++;
+            admit(page);
+        }
+        return page;
+    }
+
+    private void checkPageNumber(int pageNumber) {
         if (pageNumber < 0 || pageNumber >= numPages) {
             throw new IllegalArgumentException("Número de página inválido: " + pageNumber);
         }
+    }
 
-        if (pageCache.containsKey(pageNumber)) {
-            return pageCache.get(pageNumber);
+    /**
+     * Carrega a página no buffer pool sem fixá-la, para a leitura antecipada. Retorna null para um
+     * número fora do arquivo, já que o pedido pode vir de uma folha alterada enquanto era lida, e para
+     * uma página que outra thread já está lendo.
+     */
+    Page prefetch(int pageNumber) throws IOException {
+        CompletableFuture<Page> loading;
+        synchronized (this) {
+            if (pageNumber <= 0 || pageNumber >= numPages || loadingPages.containsKey(pageNumber)) {
+                return null;
+            }
+            Page page = bufferPool.get(pageNumber);
+            if (page != null) {
+                return page;
+            }
+            loading = new CompletableFuture<>();
+            loadingPages.put(pageNumber, loading);
         }
+        return load(pageNumber, loading);
+    }
 
-        long offset = (long) pageNumber * pageSize;
-        byte[] data = new byte[pageSize];
-        databaseFile.seek(offset);
-        databaseFile.readFully(data);
+    /**
+     * Pede à thread de leitura antecipada as folhas de table a partir de leafPageNumber e as páginas de
+     * dados apontadas por elas, até a chave lastKey. Retorna sem esperar a leitura, com o pedido, ou null
+     * se ele não foi feito.
+     */
+    public Prefetcher.Request readAhead(Table table, int leafPageNumber, long lastKey, boolean dataPointers) {
+        if (!readAheadEnabled) {
+            return null;
+        }
+        return prefetcher.request(table, leafPageNumber, lastKey, dataPointers);
+    }
 
-        Page page = new Page(pageNumber, data);
-        pageCache.put(pageNumber, page);
-        return page;
+    public void setReadAheadEnabled(boolean readAheadEnabled) {
+        this.readAheadEnabled = readAheadEnabled;
     }
 
+    /**
+     * Entrega uma página zerada, reaproveitando a primeira da lista de páginas livres quando houver
+     * uma e acrescentando uma página ao fim do arquivo caso contrário.
+     */
+    public synchronized Page newPage() throws IOException {
+        if (numPages > 0) {
+            Page headerPage = getPage(0);
+            int freePageNumber = headerPage.getBuffer().getInt(FREE_LIST_HEAD_OFFSET);
+            if (freePageNumber != 0) {
+                Page page = getPage(freePageNumber);
+                headerPage.getBuffer().putInt(FREE_LIST_HEAD_OFFSET, page.getBuffer().getInt(NEXT_FREE_PAGE_OFFSET));
+                headerPage.getBuffer().putInt(FREE_PAGE_COUNT_OFFSET,
+                        headerPage.getBuffer().getInt(FREE_PAGE_COUNT_OFFSET) - 1);
+                flushPage(headerPage);
+
+                clear(page);
+                flushPage(page);
+                return page;
+            }
+        }
 
-    public Page newPage() throws IOException {
-        byte[] data = new byte[pageSize];
-        Page page = new Page(numPages, data);
-        pageCache.put(numPages, page);
+        Page page = new Page(numPages, pageStore.allocatePage(numPages));
+        page.markAsDirty();
+        admit(page);
         numPages++;
+
+        pinForOperation(page);
         return page;
     }
 
-    public void flushPage(Page page) throws IOException {
-        long offset = (long) page.getPageNumber() * pageSize;
-        databaseFile.seek(offset);
-        byte[] data = page.getBytes();
-        databaseFile.write(data);
+    /**
+     * Coloca a página na lista de páginas livres. Quem chama garante que nada mais aponta para ela.
+     */
+    public synchronized void freePage(int pageNumber) throws IOException {
+        if (pageNumber <= 0 || pageNumber >= numPages) {
+            throw new IllegalArgumentException("Número de página inválido: " + pageNumber);
+        }
+
+        Page page = getPage(pageNumber);
+        if (page.getPageType() == PageType.FREE_PAGE.value) {
+            throw new IllegalStateException("A página " + pageNumber + " já está livre.");
+        }
+        Page headerPage = getPage(0);
+
+        clear(page);
+        page.setPageType(PageType.FREE_PAGE.value);
+        page.getBuffer().putInt(NEXT_FREE_PAGE_OFFSET, headerPage.getBuffer().getInt(FREE_LIST_HEAD_OFFSET));
+        flushPage(page);
+
+        headerPage.getBuffer().putInt(FREE_LIST_HEAD_OFFSET, pageNumber);
+        headerPage.getBuffer().putInt(FREE_PAGE_COUNT_OFFSET, headerPage.getBuffer().getInt(FREE_PAGE_COUNT_OFFSET) + 1);
+        flushPage(headerPage);
+    }
+
+    private void clear(Page page) {
+        ByteBuffer buffer = page.getBuffer();
+        for (int i = 0; i < pageSize; i += Long.BYTES) {
+            buffer.putLong(i, 0L);
+        }
+        page.markAsDirty();
+    }
+
+    public synchronized int getFreePageCount() throws IOException {
+        if (numPages == 0) {
+            return 0;
+        }
+        return getPage(0).getBuffer().getInt(FREE_PAGE_COUNT_OFFSET);
+    }
+
+    /**
+     * Corta do fim do arquivo as páginas livres e reencadeia as restantes em ordem crescente, para que
+     * as próximas alocações usem primeiro o começo do arquivo. As páginas cortadas saem do buffer pool.
+     * Faz um checkpoint, então não pode ser chamado dentro de uma operação. Retorna quantas páginas
+     * foram removidas do arquivo.
+     */
+    public int truncateFreePages() throws IOException {
+        operationLock.lock();
+        try {
+            if (operationDepth > 0) {
+                throw new IllegalStateException("O arquivo não pode ser truncado durante uma operação.");
+            }
+
+            synchronized (this) {
+                if (numPages == 0) {
+                    return 0;
+                }
+
+                List<Integer> freePages = new ArrayList<>();
+                int freePageNumber = getPage(0).getBuffer().getInt(FREE_LIST_HEAD_OFFSET);
+                while (freePageNumber != 0) {
+                    freePages.add(freePageNumber);
+                    freePageNumber = getPage(freePageNumber).getBuffer().getInt(NEXT_FREE_PAGE_OFFSET);
+                }
+                Collections.sort(freePages);
+
+                int newNumPages = numPages;
+                while (!freePages.isEmpty() && freePages.get(freePages.size() - 1) == newNumPages - 1) {
+                    freePages.remove(freePages.size() - 1);
+                    newNumPages--;
+                }
+
+                for (int i = 0; i < freePages.size(); i++) {
+                    Page page = getPage(freePages.get(i));
+                    page.getBuffer().putInt(NEXT_FREE_PAGE_OFFSET, i + 1 < freePages.size() ? freePages.get(i + 1) : 0);
+                    page.markAsDirty();
+                }
+                Page headerPage = getPage(0);
+                headerPage.getBuffer().putInt(FREE_LIST_HEAD_OFFSET, freePages.isEmpty() ? 0 : freePages.get(0));
+                headerPage.getBuffer().putInt(FREE_PAGE_COUNT_OFFSET, freePages.size());
+                headerPage.markAsDirty();
+
+                for (Page page : bufferPool.getPages()) {
+                    if (page.getPageNumber() >= newNumPages) {
+                        bufferPool.remove(page);
+                    }
+                }
+                int removedPages = numPages - newNumPages;
+                numPages = newNumPages;
+                loadingPages.keySet().removeIf(pageNumber -> pageNumber >= numPages);
+
+                if (writeAheadLog != null) {
+                    commit(bufferPool.getPages());
+                }
+                for (Page page : bufferPool.getPages()) {
+                    if (page.isDirty()) {
+                        writePage(page);
+                    }
+                }
+                pageStore.sync();
+                if (writeAheadLog != null) {
+                    writeAheadLog.reset();
+                }
+                pageStore.truncate(numPages);
+                return removedPages;
+            }
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    /**
+     * Sem WAL grava a página imediatamente. Com WAL apenas garante que ela será registrada no commit
+     * da operação em andamento; fora de uma operação a página é confirmada sozinha.
+     */
+    public synchronized void flushPage(Page page) throws IOException {
+        if (writeAheadLog == null) {
+            writePage(page);
+            return;
+        }
+
+        page.markAsDirty();
+        if (!operationLock.isHeldByCurrentThread() || operationDepth == 0) {
+            commit(List.of(page));
+        }
+    }
+
+    private void writePage(Page page) throws IOException {
+        pageStore.writePage(page);
+        page.markAsClean();
+    }
+
+    /**
+     * Inicia uma operação de escrita. Toda página lida ou criada até o endOperation correspondente
+     * fica fixada no buffer pool, para que nenhuma referência mantida pela operação seja despejada.
+     * Com WAL, o endOperation mais externo é o ponto de commit da operação.
+     */
+    public void beginOperation() {
+        operationLock.lock();
+        operationDepth++;
+    }
+
+    public void endOperation() throws IOException {
+        if (!operationLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Nenhuma operação em andamento.");
+        }
+        try {
+            synchronized (this) {
+                operationDepth--;
+                if (operationDepth > 0) {
+                    return;
+                }
+
+                try {
+                    if (writeAheadLog != null) {
+                        commit(operationPins.values());
+                    }
+                } finally {
+                    for (Page page : operationPins.values()) {
+                        page.unpin();
+                    }
+                    operationPins.clear();
+                }
+            }
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    private void commit(Iterable<Page> candidates) throws IOException {
+        List<Page> pendingPages = new ArrayList<>();
+        for (Page page : candidates) {
+            if (page.isLogPending()) {
+                pendingPages.add(page);
+            }
+        }
+        if (pendingPages.isEmpty()) {
+            return;
+        }
+
+        writeAheadLog.commit(pendingPages, numPages);
+        for (Page page : pendingPages) {
+            page.markAsLogged();
+        }
+
+        if (writeAheadLog.size() >= DEFAULT_CHECKPOINT_THRESHOLD_BYTES) {
+            checkpointer.request();
+        }
+    }
+
+    /**
+     * Grava no arquivo principal todas as páginas sujas já confirmadas e esvazia o WAL.
+     * Espera a operação em andamento terminar, para não gravar alterações ainda não confirmadas.
+     */
+    public void checkpoint() throws IOException {
+        if (writeAheadLog == null) {
+            return;
+        }
+        operationLock.lock();
+        try {
+            synchronized (this) {
+                for (Page page : bufferPool.getPages()) {
+                    if (page.isDirty()) {
+                        writePage(page);
+                    }
+                }
+                pageStore.sync();
+                writeAheadLog.reset();
+            }
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    /**
+     * Fixa a página até o fim da operação, se a thread atual estiver em uma. As páginas lidas por
+     * outras threads durante a operação não entram nela.
+     */
+    private void pinForOperation(Page page) {
+        if (operationLock.isHeldByCurrentThread() && operationDepth > 0
+                && operationPins.putIfAbsent(page.getPageNumber(), page) == null) {
+            page.pin();
+        }
+    }
+
+    private void admit(Page page) throws IOException {
+        while (bufferPool.isFull()) {
+            Page victim = bufferPool.findVictim();
+            if (victim == null) {
+                break;
+            }
+            if (victim.isDirty()) {
+                if (writeAheadLog != null && victim.isLogPending()) {
+                    commit(List.of(victim));
+                }
+                writePage(victim);
+            }
+            bufferPool.remove(victim);
+        }
+        bufferPool.add(page);
     }
 
     public void close() throws IOException {
-        for (Map.Entry<Integer, Page> entry : pageCache.entrySet()) {
-            if (entry.getValue().isDirty()) {
-                flushPage(entry.getValue());
+        prefetcher.stop();
+        if (checkpointer != null) {
+            checkpointer.stop();
+        }
+
+        synchronized (this) {
+            for (Page page : bufferPool.getPages()) {
+                if (page.isDirty()) {
+                    writePage(page);
+                }
             }
+            if (writeAheadLog != null) {
+                pageStore.sync();
+                writeAheadLog.reset();
+                writeAheadLog.close();
+            }
+            pageStore.close(numPages);
         }
     }
 
-    public int getNumPages() {
+    public synchronized int getNumPages() {
         return numPages;
     }
 
@@ -77,10 +534,52 @@ public class Pager {
         return pageSize;
     }
 
-    public byte[] readBytesAt(long offset, int length) throws IOException {
-        databaseFile.seek(offset);
-        byte[] data = new byte[length];
-        databaseFile.readFully(data);
-        return data;
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    public synchronized int getCachedPageCount() {
+        return bufferPool.size();
+    }
+
+    public int getCacheCapacity() {
+        return bufferPool.getCapacity();
+    }
+
+    /**
+     * Quantas páginas foram lidas do armazenamento por falta no buffer pool desde a abertura.
+     */
+    public synchronized long getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * Bytes lidos do armazenamento desde a abertura; as páginas comprimidas contam só a imagem comprimida.
+     */
+    public synchronized long getBytesRead() {
+        return pageStore.getBytesRead();
+    }
+
+    /**
+     * Espaço das páginas comprimidas no arquivo à parte, sem o lixo ainda não descartado.
+     */
+    public synchronized long getCompressedBytes() {
+        return pageStore.getCompressedBytes();
+    }
+
+    public synchronized int getCompressedPageCount() {
+        return pageStore.getCompressedPageCount();
+    }
+
+    public long getLogSize() {
+        return writeAheadLog == null ? 0 : writeAheadLog.size();
+    }
+
+    public synchronized byte[] readBytesAt(long offset, int length) throws IOException {
+        return pageStore.readBytesAt(offset, length);
     }
 }
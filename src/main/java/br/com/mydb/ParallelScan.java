@@ -0,0 +1,218 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Varredura completa de uma tabela dividida em faixas de chaves lidas em paralelo. As faixas saem das
+ * chaves separadoras dos nós internos: descendo a partir da raiz, cada filho de um nó cobre as chaves
+ * da sua separadora até a anterior à seguinte, e a descida para quando um nível tem ao menos
+ * RANGES_PER_THREAD faixas por thread do pool, ou nas folhas. Cada faixa é lida por um cursor próprio,
+ * que para ao passar do fim dela, em uma tarefa do ForkJoinPool.
+ *
+ * Cada faixa segura o lock de leitura da tabela só enquanto o seu cursor está aberto, então escritas
+ * concorrentes podem entrar entre uma faixa e outra, e cada faixa vê a tabela como ela estava quando foi
+ * lida. As funções recebem a RecordView do cursor da faixa, que vale só durante a chamada, e são
+ * chamadas por várias threads ao mesmo tempo.
+ */
+public final class ParallelScan {
+
+    // Mais faixas que threads, para que as faixas maiores não deixem as outras threads paradas no fim.
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final Table table;
+    private final ForkJoinPool pool;
+
+    /**
+     * Faixa fechada de chaves lida por uma tarefa.
+     */
+    public record KeyRange(long firstKey, long lastKey) {
+    }
+
+    private record Subtree(int pageNumber, long firstKey, long lastKey) {
+    }
+
+    ParallelScan(Table table, ForkJoinPool pool) {
+        this.table = table;
+        this.pool = pool;
+    }
+
+    /**
+     * Faixas em que a varredura é dividida, em ordem de chave.
+     */
+    public List<KeyRange> getRanges() throws IOException {
+        this.table.lockForRead();
+        try {
+            int target = this.pool.getParallelism() * RANGES_PER_THREAD;
+            BTreeNode node = new BTreeNode(Table.BTREE_MIN_DEGREE);
+            List<Subtree> level = List.of(new Subtree(this.table.getRootPageNumber(), Integer.MIN_VALUE, Long.MAX_VALUE));
+
+            while (level.size() < target && !node.wrap(this.table.getPage(level.get(0).pageNumber())).isLeaf()) {
+                List<Subtree> children = new ArrayList<>();
+                for (Subtree parent : level) {
+                    node.wrap(this.table.getPage(parent.pageNumber()));
+                    int keyCount = node.getKeyCount();
+                    for (int i = 0; i <= keyCount; i++) {
+                        long firstKey = i == 0 ? parent.firstKey() : node.getKey(i - 1);
+                        long lastKey = i == keyCount ? parent.lastKey() : node.getKey(i) - 1L;
+                        if (firstKey <= lastKey) {
+                            children.add(new Subtree(node.getChildPointer(i), firstKey, lastKey));
+                        }
+                    }
+                }
+                level = children;
+            }
+
+            List<KeyRange> ranges = new ArrayList<>(level.size());
+            for (Subtree subtree : level) {
+                ranges.add(new KeyRange(subtree.firstKey(), subtree.lastKey()));
+            }
+            return ranges;
+        } finally {
+            this.table.unlockForRead();
+        }
+    }
+
+    /**
+     * Linhas aceitas pelo filtro, convertidas pelo mapper. Em ordem de chave se ordered; senão as
+     * faixas entram na ordem em que terminam.
+     */
+    public <T> List<T> collect(RowFilter filter, RowMapper<T> mapper, boolean ordered) throws IOException {
+        List<T> unorderedResults = new ArrayList<>();
+        List<List<T>> parts = run(cursor -> {
+            List<T> part = new ArrayList<>();
+            while (!cursor.isEndOfTable()) {
+                RecordView row = cursor.getRecordView();
+                if (filter.accepts(row)) {
+                    part.add(mapper.map(row));
+                }
+                cursor.advance();
+            }
+            if (!ordered) {
+                synchronized (unorderedResults) {
+                    unorderedResults.addAll(part);
+                }
+            }
+            return part;
+        });
+
+        if (!ordered) {
+            return unorderedResults;
+        }
+        List<T> results = new ArrayList<>();
+        for (List<T> part : parts) {
+            results.addAll(part);
+        }
+        return results;
+    }
+
+    public long count(RowFilter filter) throws IOException {
+        long[] total = aggregate(() -> new long[1], (counter, row) -> {
+            if (filter.accepts(row)) {
+                counter[0]++;
+            }
+        }, (a, b) -> {
+            a[0] += b[0];
+            return a;
+        });
+        return total[0];
+    }
+
+    /**
+     * Agregação em duas etapas: cada faixa acumula as suas linhas em um acumulador novo, e os
+     * acumuladores das faixas são combinados em ordem de chave.
+     */
+    public <A> A aggregate(Supplier<A> newAccumulator, RowAccumulator<A> accumulator, BinaryOperator<A> combiner)
+            throws IOException {
+        List<A> parts = run(cursor -> {
+            A part = newAccumulator.get();
+            while (!cursor.isEndOfTable()) {
+                accumulator.accumulate(part, cursor.getRecordView());
+                cursor.advance();
+            }
+            return part;
+        });
+
+        A result = newAccumulator.get();
+        for (A part : parts) {
+            result = combiner.apply(result, part);
+        }
+        return result;
+    }
+
+    /**
+     * Executa a tarefa em cada faixa e devolve os resultados em ordem de chave. Se uma faixa falha, as
+     * que ainda não começaram são canceladas e as demais terminam antes do erro ser repassado, para que
+     * nenhuma página fique fixada por uma tarefa que sobreviveu à varredura.
+     */
+    private <R> List<R> run(RangeTask<R> task) throws IOException {
+        List<ForkJoinTask<R>> tasks = new ArrayList<>();
+        for (KeyRange range : getRanges()) {
+            tasks.add(this.pool.submit(() -> {
+                try (Cursor cursor = this.table.seek((int) range.firstKey(), range.lastKey())) {
+                    return task.scan(cursor);
+                }
+            }));
+        }
+
+        List<R> results = new ArrayList<>(tasks.size());
+        try {
+            for (ForkJoinTask<R> submitted : tasks) {
+                results.add(submitted.get());
+            }
+        } catch (InterruptedException e) {
+            cancel(tasks);
+            Thread.currentThread().interrupt();
+            throw new IOException("Varredura paralela interrompida.", e);
+        } catch (ExecutionException e) {
+            cancel(tasks);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Falha na varredura paralela.", cause);
+        }
+        return results;
+    }
+
+    private static void cancel(List<? extends ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            task.cancel(false);
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.quietlyJoin();
+        }
+    }
+
+    @FunctionalInterface
+    public interface RowFilter {
+        boolean accepts(RecordView row) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(RecordView row) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RowAccumulator<A> {
+        void accumulate(A accumulator, RecordView row) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RangeTask<R> {
+        R scan(Cursor cursor) throws IOException;
+    }
+}
@@ -0,0 +1,428 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Página de dados de uma tabela colunar, no layout PAX: as linhas da página ficam divididas por coluna,
+ * cada coluna na sua minipágina, e uma varredura que lê poucas colunas não passa pelos bytes das outras.
+ *
+ * Depois do cabeçalho comum das páginas de dados vêm a capacidade em slots (2 bytes), o número de
+ * colunas (2 bytes) e o tipo de cada coluna (1 byte cada), o que deixa a página legível sem o esquema.
+ * Em seguida, para a capacidade atual, o cabeçalho de cada slot (1 byte de estado e o bitmap de nulos
+ * da linha) e uma minipágina por coluna com COLUMN_ENTRY_SIZE bytes por slot: o valor das INTEGER, ou
+ * offset e tamanho (shorts) do campo das VARCHAR. Os campos das VARCHAR, como no registro compacto
+ * (tamanho marcado em varint e os bytes, ou a referência ao valor fora do registro), ficam no fim da
+ * página e crescem para trás, como os registros de uma página de dados comum. As VARCHAR com dicionário
+ * ficam como as INTEGER, com o código direto na minipágina, e levam DICTIONARY_COLUMN no byte do tipo.
+ *
+ * A capacidade acompanha a média de bytes VARCHAR por linha: quando os slots acabam ou os campos não
+ * cabem, a página é reorganizada com as minipáginas no novo tamanho. Os números de slot não mudam, então
+ * os ponteiros de dados continuam válidos. Os registros entram e saem no formato compacto do RowCodec,
+ * e o resto da tabela usa a página pela mesma API de registros da Page.
+ */
+public final class PaxPage {
+
+    private static final int CAPACITY_OFFSET = Page.HEADER_SIZE; // 2 bytes
+    private static final int COLUMN_COUNT_OFFSET = Page.HEADER_SIZE + 2; // 2 bytes
+    private static final int COLUMN_TYPES_OFFSET = Page.HEADER_SIZE + 4; // 1 byte por coluna
+
+    public static final int COLUMN_ENTRY_SIZE = 4;
+
+    private static final int DICTIONARY_COLUMN = 0x80;
+
+    private static final byte FREE_SLOT = 0;
+    private static final byte LIVE_SLOT = 1;
+
+    private final Page page;
+    private final ByteBuffer buffer;
+    private final DataType[] types;
+    private final boolean[] coded;
+    private final int nullBitmapSize;
+    private final int slotHeaderSize;
+    private final int slotSize;
+    private final int headerSize;
+
+    public PaxPage(Page page) {
+        this.page = page;
+        this.buffer = page.getBuffer();
+        this.types = new DataType[this.buffer.getShort(COLUMN_COUNT_OFFSET)];
+        this.coded = new boolean[this.types.length];
+        for (int i = 0; i < this.types.length; i++) {
+            int typeId = this.buffer.get(COLUMN_TYPES_OFFSET + i) & 0xFF;
+            this.types[i] = DataType.fromId(typeId & ~DICTIONARY_COLUMN);
+            this.coded[i] = (typeId & DICTIONARY_COLUMN) != 0;
+        }
+        this.nullBitmapSize = (this.types.length + 7) / 8;
+        this.slotHeaderSize = 1 + this.nullBitmapSize;
+        this.slotSize = this.slotHeaderSize + this.types.length * COLUMN_ENTRY_SIZE;
+        this.headerSize = COLUMN_TYPES_OFFSET + this.types.length;
+    }
+
+    /**
+     * Grava a parte PAX do cabeçalho de uma página de dados vazia. A capacidade começa em zero e é
+     * definida pela primeira linha.
+     */
+    static void initialize(Page page, List<Column> schema) {
+        ByteBuffer buffer = page.getBuffer();
+        buffer.putShort(CAPACITY_OFFSET, (short) 0);
+        buffer.putShort(COLUMN_COUNT_OFFSET, (short) schema.size());
+        for (int i = 0; i < schema.size(); i++) {
+            Column column = schema.get(i);
+            buffer.put(COLUMN_TYPES_OFFSET + i, (byte) (column.type().id | (column.dictionary() ? DICTIONARY_COLUMN : 0)));
+        }
+    }
+
+    public int getCapacity() {
+        return this.buffer.getShort(CAPACITY_OFFSET);
+    }
+
+    /**
+     * Slots já usados na página, vivos ou apagados.
+     */
+    public int getSlotCount() {
+        return this.page.getRowCount();
+    }
+
+    public boolean isLive(int slotId) {
+        return slotId >= 0 && slotId < getSlotCount() && this.buffer.get(slotHeaderOffset(slotId)) == LIVE_SLOT;
+    }
+
+    public boolean isNull(int slotId, int column) {
+        return (this.buffer.get(slotHeaderOffset(slotId) + 1 + (column >> 3)) & (1 << (column & 7))) != 0;
+    }
+
+    /**
+     * Início da minipágina da coluna. A entrada do slot fica em slotId * COLUMN_ENTRY_SIZE a partir dele.
+     */
+    public int getColumnOffset(int column) {
+        return getColumnOffset(column, getCapacity());
+    }
+
+    public int getInt(int slotId, int column) {
+        return this.buffer.getInt(getColumnOffset(column) + slotId * COLUMN_ENTRY_SIZE);
+    }
+
+    /**
+     * Se a coluna guarda códigos de dicionário, que getInt lê.
+     */
+    public boolean isCoded(int column) {
+        return coded[column];
+    }
+
+    /**
+     * Valor da coluna VARCHAR; o codec da tabela lê os valores que estão fora do registro e traduz os
+     * códigos de dicionário.
+     */
+    public String getString(int slotId, int column, RowCodec codec) throws IOException {
+        if (isNull(slotId, column)) {
+            return null;
+        }
+        if (this.coded[column]) {
+            return codec.getDictionary(column).valueOf(getInt(slotId, column));
+        }
+        int entry = getColumnOffset(column) + slotId * COLUMN_ENTRY_SIZE;
+        int position = this.buffer.getShort(entry);
+        int value = RowCodec.getVarint(this.buffer, position);
+        position += RowCodec.varintSize(value);
+        if ((value & 1) != 0) {
+            return codec.readExternal(this.buffer, position, value >>> 1);
+        }
+        byte[] bytes = new byte[value >>> 1];
+        this.buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Espaço para uma nova linha depois de reorganizada a página, já descontado o slot que ela ocupa,
+     * para ser comparado ao tamanho do registro como nas páginas comuns.
+     */
+    public int getAvailableSpace() {
+        int slotCount = findFreeSlot() == -1 ? getSlotCount() + 1 : getSlotCount();
+        return Math.max(0, this.page.getSize() - fixedAreaEnd(slotCount) - liveFieldBytes());
+    }
+
+    /**
+     * Decompõe o registro compacto nas minipáginas e devolve o slot ocupado, reaproveitando o primeiro
+     * slot apagado.
+     */
+    public int addRecord(byte[] record) {
+        int[] fields = locateFields(record);
+        int fieldBytes = varcharBytes(fields);
+
+        int slotId = findFreeSlot();
+        int slotCount = getSlotCount();
+        if (slotId == -1) {
+            slotId = slotCount++;
+        }
+
+        if (slotCount > getCapacity() || contiguousFreeSpace() < fieldBytes) {
+            reorganize(chooseCapacity(slotCount, fieldBytes));
+        }
+
+        writeSlot(slotId, record, fields);
+        this.page.setRowCount(slotCount);
+        return slotId;
+    }
+
+    /**
+     * Substitui a linha do slot. Retorna false, sem alterar nada, se os novos campos não couberem.
+     */
+    public boolean updateRecord(int slotId, byte[] record) {
+        checkLive(slotId);
+        int[] fields = locateFields(record);
+        int fieldBytes = varcharBytes(fields);
+
+        int otherFieldBytes = liveFieldBytes() - slotFieldBytes(slotId);
+        if (this.page.getSize() - fixedAreaEnd(getCapacity()) - otherFieldBytes < fieldBytes) {
+            return false;
+        }
+        if (contiguousFreeSpace() < fieldBytes) {
+            this.buffer.put(slotHeaderOffset(slotId), FREE_SLOT);
+            reorganize(getCapacity());
+        }
+
+        writeSlot(slotId, record, fields);
+        return true;
+    }
+
+    /**
+     * Remonta o registro compacto da linha a partir das minipáginas.
+     */
+    public byte[] getRecord(int slotId) {
+        checkLive(slotId);
+        int size = this.nullBitmapSize;
+        for (int i = 0; i < this.types.length; i++) {
+            if (isNull(slotId, i)) {
+                continue;
+            }
+            int entry = getColumnOffset(i) + slotId * COLUMN_ENTRY_SIZE;
+            if (this.types[i] == DataType.INTEGER) {
+                size += RowCodec.varintSize(RowCodec.zigzag(this.buffer.getInt(entry)));
+            } else if (this.coded[i]) {
+                size += RowCodec.varintSize(this.buffer.getInt(entry));
+            } else {
+                size += this.buffer.getShort(entry + 2);
+            }
+        }
+
+        byte[] record = new byte[size];
+        ByteBuffer target = ByteBuffer.wrap(record);
+        this.buffer.get(slotHeaderOffset(slotId) + 1, record, 0, this.nullBitmapSize);
+        int position = this.nullBitmapSize;
+        for (int i = 0; i < this.types.length; i++) {
+            if (isNull(slotId, i)) {
+                continue;
+            }
+            int entry = getColumnOffset(i) + slotId * COLUMN_ENTRY_SIZE;
+            if (this.types[i] == DataType.INTEGER) {
+                position = RowCodec.putVarint(target, position, RowCodec.zigzag(this.buffer.getInt(entry)));
+            } else if (this.coded[i]) {
+                position = RowCodec.putVarint(target, position, this.buffer.getInt(entry));
+            } else {
+                int length = this.buffer.getShort(entry + 2);
+                this.buffer.get(this.buffer.getShort(entry), record, position, length);
+                position += length;
+            }
+        }
+        return record;
+    }
+
+    public void deleteRecord(int slotId) {
+        if (slotId < 0 || slotId >= getSlotCount()) {
+            throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + this.page.getPageNumber());
+        }
+        this.buffer.put(slotHeaderOffset(slotId), FREE_SLOT);
+        this.page.markAsDirty();
+    }
+
+    private void checkLive(int slotId) {
+        if (slotId < 0 || slotId >= getSlotCount()) {
+            throw new NoSuchElementException("Slot ID " + slotId + " é inválido para a página " + this.page.getPageNumber());
+        }
+        if (!isLive(slotId)) {
+            throw new NoSuchElementException("O registro no slot " + slotId + " foi deletado.");
+        }
+    }
+
+    /**
+     * Capacidade para a reorganização: o número de linhas que caberia na página se todas tivessem a média
+     * de bytes VARCHAR das linhas atuais e da nova, com uma folga para não reorganizar a cada inserção,
+     * e nunca menos que slotCount.
+     */
+    private int chooseCapacity(int slotCount, int fieldBytes) {
+        int usableSpace = this.page.getSize() - this.headerSize;
+        int liveFieldBytes = liveFieldBytes();
+        int maxCapacity = (usableSpace - liveFieldBytes - fieldBytes) / this.slotSize;
+        if (maxCapacity < slotCount) {
+            throw new IllegalStateException("Não há espaço suficiente na página " + this.page.getPageNumber()
+                    + " para o registro.");
+        }
+
+        int rows = liveSlotCount() + 1;
+        int averageFieldBytes = (liveFieldBytes + fieldBytes + rows - 1) / rows;
+        int estimated = Math.max(usableSpace / (this.slotSize + averageFieldBytes), slotCount + slotCount / 8 + 1);
+        return Math.max(slotCount, Math.min(estimated, maxCapacity));
+    }
+
+    /**
+     * Reescreve a página com minipáginas para newCapacity slots, juntando no fim da página os campos
+     * VARCHAR das linhas vivas, coluna por coluna.
+     */
+    private void reorganize(int newCapacity) {
+        int oldCapacity = getCapacity();
+        int slotCount = getSlotCount();
+        byte[] old = new byte[this.page.getSize()];
+        this.buffer.get(0, old);
+        ByteBuffer source = ByteBuffer.wrap(old);
+
+        this.buffer.putShort(CAPACITY_OFFSET, (short) newCapacity);
+        int freeSpacePointer = this.page.getSize();
+        for (int i = 0; i < this.types.length; i++) {
+            int from = getColumnOffset(i, oldCapacity);
+            int to = getColumnOffset(i, newCapacity);
+            this.buffer.put(to, old, from, slotCount * COLUMN_ENTRY_SIZE);
+            if (!hasFields(i)) {
+                continue;
+            }
+            for (int slotId = 0; slotId < slotCount; slotId++) {
+                int length = source.getShort(from + slotId * COLUMN_ENTRY_SIZE + 2);
+                if (!isLive(slotId) || length == 0) {
+                    continue;
+                }
+                freeSpacePointer -= length;
+                this.buffer.put(freeSpacePointer, old, source.getShort(from + slotId * COLUMN_ENTRY_SIZE), length);
+                this.buffer.putShort(to + slotId * COLUMN_ENTRY_SIZE, (short) freeSpacePointer);
+            }
+        }
+        this.page.setFreeSpacePointer(freeSpacePointer);
+    }
+
+    private void writeSlot(int slotId, byte[] record, int[] fields) {
+        ByteBuffer source = ByteBuffer.wrap(record);
+        int header = slotHeaderOffset(slotId);
+        this.buffer.put(header, LIVE_SLOT);
+        this.buffer.put(header + 1, record, 0, this.nullBitmapSize);
+
+        int capacity = getCapacity();
+        int freeSpacePointer = this.page.getFreeSpacePointer();
+        for (int i = 0; i < this.types.length; i++) {
+            int entry = getColumnOffset(i, capacity) + slotId * COLUMN_ENTRY_SIZE;
+            int start = fields[2 * i];
+            if (start < 0) {
+                this.buffer.putInt(entry, 0);
+            } else if (this.types[i] == DataType.INTEGER) {
+                this.buffer.putInt(entry, RowCodec.unzigzag(RowCodec.getVarint(source, start)));
+            } else if (this.coded[i]) {
+                this.buffer.putInt(entry, RowCodec.getVarint(source, start));
+            } else {
+                int length = fields[2 * i + 1];
+                freeSpacePointer -= length;
+                this.buffer.put(freeSpacePointer, record, start, length);
+                this.buffer.putShort(entry, (short) freeSpacePointer);
+                this.buffer.putShort(entry + 2, (short) length);
+            }
+        }
+        this.page.setFreeSpacePointer(freeSpacePointer);
+    }
+
+    /**
+     * Início e tamanho, no registro compacto, do campo de cada coluna; -1 nas colunas nulas.
+     */
+    private int[] locateFields(byte[] record) {
+        ByteBuffer source = ByteBuffer.wrap(record);
+        int[] fields = new int[this.types.length * 2];
+        int position = this.nullBitmapSize;
+        for (int i = 0; i < this.types.length; i++) {
+            if (RowCodec.isNull(source, 0, i)) {
+                fields[2 * i] = -1;
+                continue;
+            }
+            int start = position;
+            int value = RowCodec.getVarint(source, position);
+            position += RowCodec.varintSize(value);
+            if (hasFields(i)) {
+                position += (value & 1) != 0 ? 4 + RowCodec.EXTERNAL_PREFIX_SIZE : value >>> 1;
+            }
+            fields[2 * i] = start;
+            fields[2 * i + 1] = position - start;
+        }
+        return fields;
+    }
+
+    private int varcharBytes(int[] fields) {
+        int bytes = 0;
+        for (int i = 0; i < this.types.length; i++) {
+            if (hasFields(i) && fields[2 * i] >= 0) {
+                bytes += fields[2 * i + 1];
+            }
+        }
+        return bytes;
+    }
+
+    private int slotFieldBytes(int slotId) {
+        int bytes = 0;
+        int capacity = getCapacity();
+        for (int i = 0; i < this.types.length; i++) {
+            if (hasFields(i)) {
+                bytes += this.buffer.getShort(getColumnOffset(i, capacity) + slotId * COLUMN_ENTRY_SIZE + 2);
+            }
+        }
+        return bytes;
+    }
+
+    private int liveFieldBytes() {
+        int bytes = 0;
+        for (int slotId = 0; slotId < getSlotCount(); slotId++) {
+            if (isLive(slotId)) {
+                bytes += slotFieldBytes(slotId);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Se a coluna tem campos no fim da página: as VARCHAR sem dicionário.
+     */
+    private boolean hasFields(int column) {
+        return this.types[column] == DataType.VARCHAR && !this.coded[column];
+    }
+
+    private int liveSlotCount() {
+        int count = 0;
+        for (int slotId = 0; slotId < getSlotCount(); slotId++) {
+            if (isLive(slotId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int findFreeSlot() {
+        for (int slotId = 0; slotId < getSlotCount(); slotId++) {
+            if (!isLive(slotId)) {
+                return slotId;
+            }
+        }
+        return -1;
+    }
+
+    private int contiguousFreeSpace() {
+        return this.page.getFreeSpacePointer() - fixedAreaEnd(getCapacity());
+    }
+
+    private int fixedAreaEnd(int capacity) {
+        return this.headerSize + capacity * this.slotSize;
+    }
+
+    private int slotHeaderOffset(int slotId) {
+        return this.headerSize + slotId * this.slotHeaderSize;
+    }
+
+    private int getColumnOffset(int column, int capacity) {
+        return this.headerSize + capacity * (this.slotHeaderSize + column * COLUMN_ENTRY_SIZE);
+    }
+}
@@ -0,0 +1,180 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Thread de fundo que carrega no buffer pool as páginas que uma varredura vai pedir em seguida. Um
+ * pedido começa em uma folha e segue a cadeia de irmãos por até LEAVES_AHEAD folhas; de cada folha
+ * carrega também as páginas de dados apontadas pelas células antes de passar para a próxima. Uma chave
+ * além de lastKey encerra o pedido, e nenhum pedido passa de um quarto do buffer pool, para não tirar
+ * do cache as páginas que ele mesmo trouxe antes de serem lidas.
+ *
+ * As leituras passam pelo Pager, uma página por vez e fora do lock dele, então o cursor pode ler as
+ * páginas já carregadas, ou até a mesma que está sendo lida, enquanto as próximas chegam. Cada pedido
+ * é atendido com o lock de leitura da tabela, para que nenhuma escrita mude as folhas enquanto elas
+ * são percorridas; se uma escrita tem o lock, o pedido é descartado em vez de esperar. Os pedidos são
+ * só dicas: os que não cabem na fila são descartados, e páginas já em cache, já sendo lidas por outra
+ * thread ou fora do arquivo são ignoradas.
+ */
+public class Prefetcher implements Runnable {
+
+    public static final int LEAVES_AHEAD = 8;
+    // Páginas de dados lidas em lotes na ordem das células, cada lote em ordem de número de página.
+    private static final int BATCH_SIZE = 32;
+    private static final int MAX_PENDING_REQUESTS = 16;
+
+    private final Pager pager;
+    private final Thread thread;
+    private final ArrayDeque<Request> requests;
+    private boolean started;
+    private boolean running;
+
+    /**
+     * Pedido na fila. O cursor guarda o seu último pedido e só faz outro depois que ele termina, para
+     * que pedidos atrasados não recarreguem páginas pelas quais o cursor já passou.
+     */
+    public static final class Request {
+        private final Table table;
+        private final int leafPageNumber;
+        private final long lastKey;
+        private final boolean dataPointers;
+        private volatile boolean done;
+
+        private Request(Table table, int leafPageNumber, long lastKey, boolean dataPointers) {
+            this.table = table;
+            this.leafPageNumber = leafPageNumber;
+            this.lastKey = lastKey;
+            this.dataPointers = dataPointers;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    public Prefetcher(Pager pager) {
+        this.pager = pager;
+        this.requests = new ArrayDeque<>();
+        this.thread = new Thread(this, "mydb-prefetcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Pede a leitura das folhas de table a partir de leafPageNumber e, se dataPointers, das páginas de
+     * dados que as células apontam. Retorna null se o pedido foi descartado. A thread só é criada no
+     * primeiro pedido.
+     */
+    public synchronized Request request(Table table, int leafPageNumber, long lastKey, boolean dataPointers) {
+        if (!started) {
+            started = true;
+            running = true;
+            thread.start();
+        }
+        if (!running || requests.size() >= MAX_PENDING_REQUESTS) {
+            return null;
+        }
+        Request request = new Request(table, leafPageNumber, lastKey, dataPointers);
+        requests.add(request);
+        notifyAll();
+        return request;
+    }
+
+    public void stop() throws IOException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            requests.clear();
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido ao parar a leitura antecipada.", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Request request;
+            while ((request = nextRequest()) != null) {
+                if (!request.table.tryLockForRead()) {
+                    request.done = true;
+                    continue;
+                }
+                try {
+                    readAhead(request);
+                } catch (IOException e) {
+                    System.err.println("Erro na leitura antecipada: " + e.getMessage());
+                } finally {
+                    request.table.unlockForRead();
+                    request.done = true;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                running = false;
+                requests.clear();
+            }
+        }
+    }
+
+    private synchronized Request nextRequest() {
+        try {
+            while (running && requests.isEmpty()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return running ? requests.poll() : null;
+    }
+
+    private synchronized boolean isRunning() {
+        return running;
+    }
+
+    private void readAhead(Request request) throws IOException {
+        int budget = Math.max(1, pager.getCacheCapacity() / 4);
+        BTreeNode leaf = new BTreeNode(Table.BTREE_MIN_DEGREE);
+        int[] batch = new int[BATCH_SIZE];
+        int leafPageNumber = request.leafPageNumber;
+
+        for (int i = 0; i < LEAVES_AHEAD && leafPageNumber != BTreeNode.NULL_POINTER && budget > 0; i++) {
+            Page page = pager.prefetch(leafPageNumber);
+            if (page == null || !isRunning() || !leaf.wrap(page).isLeaf()) {
+                return;
+            }
+            budget--;
+
+            int keyCount = leaf.getKeyCount();
+            if (request.dataPointers && !leaf.isClustered()) {
+                int cell = 0;
+                while (cell < keyCount && leaf.getKey(cell) <= request.lastKey && budget > 0) {
+                    int count = 0;
+                    while (count < BATCH_SIZE && cell < keyCount && leaf.getKey(cell) <= request.lastKey) {
+                        batch[count++] = (int) (leaf.getDataPointer(cell++) >> 32);
+                    }
+                    Arrays.sort(batch, 0, count);
+                    for (int j = 0; j < count && budget > 0; j++) {
+                        if (j == 0 || batch[j] != batch[j - 1]) {
+                            pager.prefetch(batch[j]);
+                            budget--;
+                        }
+                    }
+                }
+            }
+
+            if (keyCount > 0 && leaf.getKey(keyCount - 1) >= request.lastKey) {
+                return;
+            }
+            leafPageNumber = leaf.getNextSiblingPointer();
+        }
+    }
+}
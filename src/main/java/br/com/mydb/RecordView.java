@@ -0,0 +1,271 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Leitura de um registro direto do buffer da página, no formato do RowCodec, sem copiar os bytes
+ * nem decodificar as VARCHAR que não forem pedidas. Como o BTreeNode, é um flyweight reposicionado
+ * com wrap, e só vale enquanto a página continuar fixada e o registro não mudar de lugar.
+ *
+ * No formato compacto as colunas não têm posição fixa: no primeiro acesso depois do wrap o registro
+ * é percorrido uma vez e as posições ficam guardadas até o próximo wrap. Valores VARCHAR fora do
+ * registro são lidos das páginas de overflow quando pedidos, e as comparações sobre eles decodificam
+ * o valor. Nas colunas com dicionário a igualdade compara o código, e as leituras vêm do dicionário.
+ */
+public final class RecordView {
+
+    private final RowCodec codec;
+    private final List<Column> schema;
+    private final ColumnDictionary[] dictionaries;
+    private final int[] fieldOffsets;
+    private final int[] fieldLengths;
+    private final boolean[] fieldExternal;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private boolean located;
+
+    public RecordView(RowCodec codec) {
+        this.codec = codec;
+        this.schema = codec.getSchema();
+        this.fieldOffsets = new int[this.schema.size()];
+        this.fieldLengths = new int[this.schema.size()];
+        this.fieldExternal = new boolean[this.schema.size()];
+        this.dictionaries = new ColumnDictionary[this.schema.size()];
+        for (int i = 0; i < this.dictionaries.length; i++) {
+            this.dictionaries[i] = codec.getDictionary(i);
+        }
+    }
+
+    public RecordView wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.located = false;
+        return this;
+    }
+
+    public RecordView wrap(byte[] record) {
+        return wrap(ByteBuffer.wrap(record), 0, record.length);
+    }
+
+    public List<Column> getSchema() {
+        return schema;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Só o formato compacto guarda nulos; no antigo eles já foram gravados como 0 e "".
+     */
+    public boolean isNull(int index) {
+        return this.codec.isCompactFormat() && RowCodec.isNull(this.buffer, this.offset, index);
+    }
+
+    public int getInt(int index) {
+        if (!this.codec.isCompactFormat()) {
+            return this.buffer.getInt(this.offset + index * 4);
+        }
+        locate();
+        if (this.fieldOffsets[index] < 0) {
+            return 0;
+        }
+        return RowCodec.unzigzag(RowCodec.getVarint(this.buffer, this.fieldOffsets[index]));
+    }
+
+    /**
+     * Valor da coluna VARCHAR; uma coluna nula volta como null.
+     */
+    public String getString(int index) throws IOException {
+        if (isNull(index)) {
+            return null;
+        }
+        if (this.dictionaries[index] != null) {
+            return this.dictionaries[index].valueOf(getCode(index));
+        }
+        if (isExternal(index)) {
+            return this.codec.readExternal(this.buffer, this.fieldOffsets[index], this.fieldLengths[index]);
+        }
+        int length = getStringLength(index);
+        byte[] bytes = new byte[length];
+        this.buffer.get(getStringOffset(index), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tamanho em bytes UTF-8 do valor da coluna VARCHAR.
+     */
+    public int getStringLength(int index) {
+        if (!this.codec.isCompactFormat()) {
+            return this.buffer.getShort(this.offset + index * 4 + 2);
+        }
+        if (this.dictionaries[index] != null) {
+            return isNull(index) ? 0 : this.dictionaries[index].utf8ValueOf(getCode(index)).length;
+        }
+        locate();
+        return this.fieldLengths[index];
+    }
+
+    /**
+     * Código do valor no dicionário da coluna, sem decodificá-lo. A coluna não pode estar nula.
+     */
+    public int getCode(int index) {
+        locate();
+        return RowCodec.getVarint(this.buffer, this.fieldOffsets[index]);
+    }
+
+    private boolean isExternal(int index) {
+        if (!this.codec.hasTaggedLengths()) {
+            return false;
+        }
+        locate();
+        return this.fieldExternal[index];
+    }
+
+    private int getStringOffset(int index) {
+        if (!this.codec.isCompactFormat()) {
+            return this.offset + this.buffer.getShort(this.offset + index * 4);
+        }
+        locate();
+        return this.fieldOffsets[index];
+    }
+
+    /**
+     * Percorre o registro compacto e anota onde começa cada coluna; nas VARCHAR, já depois do
+     * tamanho, e nas de dicionário, no código. Colunas nulas ficam com posição -1 e tamanho 0.
+     */
+    private void locate() {
+        if (this.located) {
+            return;
+        }
+        int position = this.offset + this.codec.getNullBitmapSize();
+        for (int i = 0; i < this.fieldOffsets.length; i++) {
+            this.fieldExternal[i] = false;
+            if (RowCodec.isNull(this.buffer, this.offset, i)) {
+                this.fieldOffsets[i] = -1;
+                this.fieldLengths[i] = 0;
+                continue;
+            }
+            int start = position;
+            int value = RowCodec.getVarint(this.buffer, position);
+            position += RowCodec.varintSize(value);
+            if (this.codec.getType(i) == DataType.INTEGER || this.dictionaries[i] != null) {
+                this.fieldOffsets[i] = start;
+                this.fieldLengths[i] = 0;
+            } else if (!this.codec.hasTaggedLengths()) {
+                this.fieldOffsets[i] = position;
+                this.fieldLengths[i] = value;
+                position += value;
+            } else {
+                this.fieldOffsets[i] = position;
+                this.fieldLengths[i] = value >>> 1;
+                this.fieldExternal[i] = (value & 1) != 0;
+                position += this.fieldExternal[i] ? 4 + RowCodec.EXTERNAL_PREFIX_SIZE : value >>> 1;
+            }
+        }
+        this.located = true;
+    }
+
+    /**
+     * Compara o valor da coluna VARCHAR com os bytes UTF-8 dados, byte a byte sem sinal, o que segue a
+     * ordem dos code points.
+     */
+    public int compareString(int index, byte[] utf8) throws IOException {
+        if (this.dictionaries[index] != null) {
+            byte[] bytes = isNull(index) ? new byte[0] : this.dictionaries[index].utf8ValueOf(getCode(index));
+            return Arrays.compareUnsigned(bytes, utf8);
+        }
+        if (isExternal(index)) {
+            return Arrays.compareUnsigned(getString(index).getBytes(StandardCharsets.UTF_8), utf8);
+        }
+        int position = getStringOffset(index);
+        int length = getStringLength(index);
+        int common = Math.min(length, utf8.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (this.buffer.get(position + i) & 0xFF) - (utf8[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - utf8.length;
+    }
+
+    /**
+     * Igualdade com uma String sem decodificar a coluna. Valores só com ASCII são comparados caractere
+     * a caractere; os outros são codificados e comparados pelos bytes.
+     */
+    public boolean equalsString(int index, String value) throws IOException {
+        if (this.dictionaries[index] != null) {
+            return !isNull(index) && getCode(index) == this.dictionaries[index].codeOf(value);
+        }
+        int length = getStringLength(index);
+        if (isExternal(index)) {
+            return value.equals(getString(index));
+        }
+        if (!isAscii(value)) {
+            return compareString(index, value.getBytes(StandardCharsets.UTF_8)) == 0;
+        }
+        if (value.length() != length) {
+            return false;
+        }
+        int position = getStringOffset(index);
+        for (int i = 0; i < length; i++) {
+            if (this.buffer.get(position + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * O mesmo que getString(index).hashCode(), sem criar a String quando o valor é ASCII.
+     */
+    public int stringHashCode(int index) throws IOException {
+        if (this.dictionaries[index] != null) {
+            return isNull(index) ? 0 : this.dictionaries[index].valueOf(getCode(index)).hashCode();
+        }
+        if (isExternal(index)) {
+            return getString(index).hashCode();
+        }
+        int position = getStringOffset(index);
+        int length = getStringLength(index);
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = this.buffer.get(position + i);
+            if (b < 0) {
+                return getString(index).hashCode();
+            }
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    public Object get(int index) throws IOException {
+        if (isNull(index)) {
+            return null;
+        }
+        if (this.schema.get(index).type() == DataType.INTEGER) {
+            return getInt(index);
+        }
+        return getString(index);
+    }
+
+    public CompactRow toCompactRow() throws IOException {
+        return this.codec.read(this.buffer, this.offset, this.length);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,27 +3,60 @@ package br.com.mydb;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Linha acessada pelo nome das colunas. Uma Row montada à mão guarda os valores em um mapa; uma lida
+ * do disco é um adaptador sobre a CompactRow, e só vira mapa se getValues for chamado.
+ */
 public class Row {
-    private final Map<String, Object> values;
+    private Map<String, Object> values;
+    private CompactRow compact;
 
     public Row() {
         this.values = new HashMap<>();
     }
 
+    Row(CompactRow compact) {
+        this.compact = compact;
+    }
+
     public void put(String columnName, Object value) {
+        if (compact != null) {
+            int index = compact.indexOf(columnName);
+            if (index >= 0) {
+                compact.set(index, value);
+                return;
+            }
+            materialize();
+        }
         values.put(columnName, value);
     }
 
     public Object get(String columnName) {
+        if (compact != null) {
+            int index = compact.indexOf(columnName);
+            return index < 0 ? null : compact.get(index);
+        }
         return values.get(columnName);
     }
 
     public Map<String, Object> getValues() {
+        materialize();
         return values;
     }
 
+    CompactRow getCompactRow() {
+        return compact;
+    }
+
+    private void materialize() {
+        if (compact != null) {
+            values = new HashMap<>(compact.toMap());
+            compact = null;
+        }
+    }
+
     @Override
     public String toString() {
-        return values.toString();
+        return compact != null ? compact.toString() : values.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,464 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Serializador de um esquema, montado uma vez quando a tabela é aberta, para um dos dois formatos de
+ * registro. As posições das colunas INTEGER e VARCHAR são separadas de antemão, sem consultar o tipo
+ * de cada coluna por linha, e o tamanho do registro é calculado antes da gravação, que vai direto para
+ * o destino final (um array do tamanho exato, a célula da folha ou a própria página).
+ *
+ * Formato antigo (arquivos até a versão 3): 4 bytes por coluna na ordem do esquema, com o valor das
+ * INTEGER e o par offset, tamanho (shorts) das VARCHAR, seguidos dos bytes UTF-8 das VARCHAR. Nulos
+ * viram 0 e "".
+ *
+ * Formato compacto (versão 4): um bitmap de nulos com um bit por coluna e, para cada coluna não nula
+ * na ordem do esquema, o INTEGER em varint zigzag (1 byte de -64 a 63) ou o tamanho da VARCHAR em
+ * varint seguido dos bytes UTF-8. Não há offsets: a posição de uma coluna sai da leitura das anteriores.
+ *
+ * Na versão 5 o varint da VARCHAR é tamanho << 1 | fora, e valores com mais de MAX_INLINE_VARCHAR_SIZE
+ * bytes saem do registro: ficam só o número da primeira página de uma cadeia VALUE_OVERFLOW_PAGE
+ * (4 bytes) e os primeiros EXTERNAL_PREFIX_SIZE bytes do valor; a cadeia guarda o restante. Só um
+ * codec ligado a um Pager grava e lê valores fora do registro.
+ *
+ * Uma VARCHAR com dicionário guarda só o código do valor em varint, sem marcação nem bytes; o codec da
+ * tabela recebe os dicionários e acrescenta neles os valores novos durante a gravação.
+ */
+public final class RowCodec {
+
+    public static final int MAX_INLINE_VARCHAR_SIZE = 256;
+    public static final int EXTERNAL_PREFIX_SIZE = 16;
+
+    private static final int LEGACY_MAX_RECORD_SIZE = Short.MAX_VALUE;
+
+    private final List<Column> schema;
+    private final Pager pager;
+    private final boolean compactFormat;
+    private final boolean taggedLengths;
+    private final int[] intColumns;
+    private final int[] varcharColumns;
+    private final DataType[] types;
+    private final ColumnDictionary[] dictionaries;
+    private final int fixedSize;
+    private final int nullBitmapSize;
+
+    private RowCodec(List<Column> schema, int formatVersion, Pager pager, ColumnDictionary[] dictionaries) {
+        this.schema = schema;
+        this.pager = pager;
+        this.dictionaries = dictionaries != null ? dictionaries : new ColumnDictionary[schema.size()];
+        this.compactFormat = formatVersion >= Database.COMPACT_RECORDS_FORMAT_VERSION;
+        this.taggedLengths = formatVersion >= Database.LARGE_VALUES_FORMAT_VERSION;
+        this.types = new DataType[schema.size()];
+        int intCount = 0;
+        for (int i = 0; i < schema.size(); i++) {
+            this.types[i] = schema.get(i).type();
+            if (this.types[i] == DataType.INTEGER) {
+                intCount++;
+            }
+        }
+
+        this.intColumns = new int[intCount];
+        this.varcharColumns = new int[schema.size() - intCount];
+        int nextInt = 0;
+        int nextVarchar = 0;
+        for (int i = 0; i < schema.size(); i++) {
+            if (this.types[i] == DataType.INTEGER) {
+                this.intColumns[nextInt++] = i;
+            } else {
+                this.varcharColumns[nextVarchar++] = i;
+            }
+        }
+        this.fixedSize = schema.size() * 4;
+        this.nullBitmapSize = (schema.size() + 7) / 8;
+    }
+
+    public static RowCodec forFormat(int formatVersion, List<Column> schema) {
+        return new RowCodec(schema, formatVersion, null, null);
+    }
+
+    /**
+     * Codec de uma tabela do arquivo, que pode mandar VARCHAR grandes para páginas de overflow.
+     */
+    public static RowCodec forTable(Pager pager, List<Column> schema) {
+        return forTable(pager, schema, null);
+    }
+
+    /**
+     * Codec de uma tabela com colunas de dicionário; dictionaries tem uma posição por coluna, null nas
+     * colunas sem dicionário.
+     */
+    public static RowCodec forTable(Pager pager, List<Column> schema, ColumnDictionary[] dictionaries) {
+        return new RowCodec(schema, pager.getFormatVersion(), pager, dictionaries);
+    }
+
+    /**
+     * Codec do formato de registro atual, para dados que não vão para um arquivo já existente.
+     */
+    public static RowCodec forSchema(List<Column> schema) {
+        return forFormat(Database.CURRENT_FORMAT_VERSION, schema);
+    }
+
+    public List<Column> getSchema() {
+        return schema;
+    }
+
+    public boolean isCompactFormat() {
+        return compactFormat;
+    }
+
+    boolean hasTaggedLengths() {
+        return taggedLengths;
+    }
+
+    /**
+     * Se registros deste codec podem ter valores em páginas de overflow, que precisam ser liberadas
+     * junto com o registro.
+     */
+    public boolean hasExternalValues() {
+        return this.taggedLengths && this.pager != null && this.varcharColumns.length > 0;
+    }
+
+    /**
+     * Se este codec grava as linhas com os mesmos bytes que other, para registros sem valores fora do
+     * registro: mesmo esquema, mesmo formato e nenhuma coluna de dicionário em nenhum dos dois.
+     */
+    boolean hasSameRecordFormat(RowCodec other) {
+        return this.schema.equals(other.schema) && this.compactFormat == other.compactFormat
+                && this.taggedLengths == other.taggedLengths && !hasDictionaries() && !other.hasDictionaries();
+    }
+
+    private boolean hasDictionaries() {
+        for (ColumnDictionary dictionary : this.dictionaries) {
+            if (dictionary != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isExternal(int utf8Length) {
+        return utf8Length > MAX_INLINE_VARCHAR_SIZE && this.taggedLengths && this.pager != null;
+    }
+
+    int getNullBitmapSize() {
+        return nullBitmapSize;
+    }
+
+    DataType getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * Dicionário da coluna, ou null se ela guarda os valores.
+     */
+    ColumnDictionary getDictionary(int index) {
+        return dictionaries[index];
+    }
+
+    /**
+     * Tamanho do registro serializado, contando os bytes UTF-8 das VARCHAR sem codificá-las.
+     */
+    public int sizeOf(CompactRow row) {
+        if (this.compactFormat) {
+            int size = this.nullBitmapSize;
+            for (int i = 0; i < this.types.length; i++) {
+                if (row.isNull(i)) {
+                    continue;
+                }
+                if (this.types[i] == DataType.INTEGER) {
+                    size += varintSize(zigzag(row.getInt(i)));
+                } else if (this.dictionaries[i] != null) {
+                    size += varintSize(this.dictionaries[i].codeFor(row.getString(i)));
+                } else {
+                    int length = utf8Length(row.getString(i));
+                    if (isExternal(length)) {
+                        size += varintSize(length << 1 | 1) + 4 + EXTERNAL_PREFIX_SIZE;
+                    } else {
+                        size += varintSize(this.taggedLengths ? length << 1 : length) + length;
+                    }
+                }
+            }
+            return size;
+        }
+
+        int size = this.fixedSize;
+        for (int column : this.varcharColumns) {
+            size += utf8Length(row.getString(column));
+        }
+        if (size > LEGACY_MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Registro de " + size + " bytes passa do limite de "
+                    + LEGACY_MAX_RECORD_SIZE + " bytes do formato de registro antigo.");
+        }
+        return size;
+    }
+
+    public byte[] serialize(CompactRow row) throws IOException {
+        byte[] data = new byte[sizeOf(row)];
+        write(row, ByteBuffer.wrap(data), 0);
+        return data;
+    }
+
+    /**
+     * Grava o registro em target a partir de offset, que precisa ter sizeOf(row) bytes livres. Os
+     * valores que saem do registro são gravados antes, em páginas novas.
+     */
+    public void write(CompactRow row, ByteBuffer target, int offset) throws IOException {
+        if (this.compactFormat) {
+            writeCompact(row, target, offset);
+            return;
+        }
+
+        for (int column : this.intColumns) {
+            target.putInt(offset + column * 4, row.getInt(column));
+        }
+
+        int varOffset = this.fixedSize;
+        for (int column : this.varcharColumns) {
+            int length = encode(row.getString(column), target, offset + varOffset);
+            target.putShort(offset + column * 4, (short) varOffset);
+            target.putShort(offset + column * 4 + 2, (short) length);
+            varOffset += length;
+        }
+    }
+
+    private void writeCompact(CompactRow row, ByteBuffer target, int offset) throws IOException {
+        for (int i = 0; i < this.nullBitmapSize; i++) {
+            target.put(offset + i, (byte) 0);
+        }
+
+        int position = offset + this.nullBitmapSize;
+        for (int i = 0; i < this.types.length; i++) {
+            if (row.isNull(i)) {
+                int bitmapByte = offset + (i >> 3);
+                target.put(bitmapByte, (byte) (target.get(bitmapByte) | (1 << (i & 7))));
+            } else if (this.types[i] == DataType.INTEGER) {
+                position = putVarint(target, position, zigzag(row.getInt(i)));
+            } else if (this.dictionaries[i] != null) {
+                position = putVarint(target, position, this.dictionaries[i].encode(row.getString(i)));
+            } else {
+                String value = row.getString(i);
+                int length = utf8Length(value);
+                if (isExternal(length)) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    int firstPage = OverflowChain.write(this.pager, bytes, EXTERNAL_PREFIX_SIZE,
+                            length - EXTERNAL_PREFIX_SIZE, PageType.VALUE_OVERFLOW_PAGE);
+                    position = putVarint(target, position, length << 1 | 1);
+                    target.putInt(position, firstPage);
+                    target.put(position + 4, bytes, 0, EXTERNAL_PREFIX_SIZE);
+                    position += 4 + EXTERNAL_PREFIX_SIZE;
+                } else {
+                    position = putVarint(target, position, this.taggedLengths ? length << 1 : length);
+                    position += encode(value, target, position);
+                }
+            }
+        }
+    }
+
+    public CompactRow deserialize(byte[] data) throws IOException {
+        return read(data, 0);
+    }
+
+    /**
+     * Lê o registro de length bytes que começa em offset. Buffers com array (páginas em memória) são
+     * lidos direto do array; os de páginas mapeadas em memória são copiados antes.
+     */
+    public CompactRow read(ByteBuffer source, int offset, int length) throws IOException {
+        if (source.hasArray()) {
+            return read(source.array(), source.arrayOffset() + offset);
+        }
+        byte[] data = new byte[length];
+        source.get(offset, data);
+        return read(data, 0);
+    }
+
+    private CompactRow read(byte[] data, int offset) throws IOException {
+        CompactRow row = new CompactRow(this.schema);
+        if (this.compactFormat) {
+            int position = offset + this.nullBitmapSize;
+            for (int i = 0; i < this.types.length; i++) {
+                if ((data[offset + (i >> 3)] & (1 << (i & 7))) != 0) {
+                    row.setNull(i);
+                    continue;
+                }
+                int value = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[position++];
+                    value |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                if (this.types[i] == DataType.INTEGER) {
+                    row.setInt(i, unzigzag(value));
+                } else if (this.dictionaries[i] != null) {
+                    row.setString(i, this.dictionaries[i].valueOf(value));
+                } else if (!this.taggedLengths) {
+                    row.setString(i, new String(data, position, value, StandardCharsets.UTF_8));
+                    position += value;
+                } else if ((value & 1) == 0) {
+                    row.setString(i, new String(data, position, value >>> 1, StandardCharsets.UTF_8));
+                    position += value >>> 1;
+                } else {
+                    row.setString(i, readExternal(ByteBuffer.wrap(data), position, value >>> 1));
+                    position += 4 + EXTERNAL_PREFIX_SIZE;
+                }
+            }
+            return row;
+        }
+
+        for (int column : this.intColumns) {
+            int position = offset + column * 4;
+            row.setInt(column, (data[position] << 24) | ((data[position + 1] & 0xFF) << 16)
+                    | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF));
+        }
+        for (int column : this.varcharColumns) {
+            int position = offset + column * 4;
+            int start = offset + (short) (((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF));
+            int length = (short) (((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF));
+            row.setString(column, new String(data, start, length, StandardCharsets.UTF_8));
+        }
+        return row;
+    }
+
+    /**
+     * Monta um valor fora do registro: o prefixo guardado em position + 4 e o restante na cadeia que
+     * começa na página gravada em position.
+     */
+    String readExternal(ByteBuffer source, int position, int length) throws IOException {
+        if (this.pager == null) {
+            throw new IllegalStateException("Valor VARCHAR fora do registro só pode ser lido pela tabela.");
+        }
+        byte[] bytes = new byte[length];
+        source.get(position + 4, bytes, 0, EXTERNAL_PREFIX_SIZE);
+        byte[] rest = OverflowChain.read(this.pager, source.getInt(position), length - EXTERNAL_PREFIX_SIZE);
+        System.arraycopy(rest, 0, bytes, EXTERNAL_PREFIX_SIZE, rest.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Devolve à lista de páginas livres as cadeias dos valores fora do registro que começa em offset.
+     */
+    public void freeExternalValues(ByteBuffer source, int offset) throws IOException {
+        if (!hasExternalValues()) {
+            return;
+        }
+        int position = offset + this.nullBitmapSize;
+        for (int i = 0; i < this.types.length; i++) {
+            if (isNull(source, offset, i)) {
+                continue;
+            }
+            int value = getVarint(source, position);
+            position += varintSize(value);
+            if (this.types[i] == DataType.INTEGER || this.dictionaries[i] != null) {
+                continue;
+            }
+            if ((value & 1) == 0) {
+                position += value >>> 1;
+            } else {
+                OverflowChain.free(this.pager, source.getInt(position));
+                position += 4 + EXTERNAL_PREFIX_SIZE;
+            }
+        }
+    }
+
+    static boolean isNull(ByteBuffer source, int offset, int index) {
+        return (source.get(offset + (index >> 3)) & (1 << (index & 7))) != 0;
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int encoded) {
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int putVarint(ByteBuffer target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target.put(position++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put(position++, (byte) value);
+        return position;
+    }
+
+    static int getVarint(ByteBuffer source, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = source.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Tamanho em UTF-8 como String.getBytes calcularia, inclusive a troca de surrogates soltos por '?'.
+     */
+    private static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int encode(String value, ByteBuffer target, int offset) {
+        if (value == null) {
+            return 0;
+        }
+        int position = offset;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                target.put(position++, (byte) c);
+            } else if (c < 0x800) {
+                target.put(position++, (byte) (0xC0 | (c >> 6)));
+                target.put(position++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                target.put(position++, (byte) (0xF0 | (codePoint >> 18)));
+                target.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                target.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                target.put(position++, (byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                target.put(position++, (byte) '?');
+            } else {
+                target.put(position++, (byte) (0xE0 | (c >> 12)));
+                target.put(position++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put(position++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return position - offset;
+    }
+}
@@ -1,82 +1,119 @@
 package br.com.mydb;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Formato antigo do registro, usado pelos arquivos até a versão 3: uma parte fixa com 4 bytes por
+ * coluna, na ordem do esquema (o valor das colunas INTEGER e o par offset, tamanho das colunas
+ * VARCHAR), seguida dos bytes UTF-8 das VARCHAR. Os métodos que recebem a versão do formato escolhem
+ * entre ele e o formato compacto do RowCodec.
+ */
 public class RowSerializer {
 
+    public static byte[] serialize(CompactRow row, int formatVersion) throws IOException {
+        return RowCodec.forFormat(formatVersion, row.getSchema()).serialize(row);
+    }
+
+    public static CompactRow deserializeCompact(byte[] data, List<Column> schema, int formatVersion)
+            throws IOException {
+        return RowCodec.forFormat(formatVersion, schema).deserialize(data);
+    }
+
     public static byte[] serialize(Row row, List<Column> schema) {
-        List<byte[]> varLenData = new ArrayList<>();
+        return serialize(CompactRow.of(row, schema));
+    }
+
+    public static byte[] serialize(CompactRow row) {
+        List<Column> schema = row.getSchema();
+        int columnCount = schema.size();
+        byte[][] varLenData = new byte[columnCount][];
         int fixedSizeTotal = 0;
         int varSizeTotal = 0;
 
-        for (Column col : schema) {
-            if (col.type().sizeInBytes > 0) {
-                fixedSizeTotal += col.type().sizeInBytes;
+        for (int i = 0; i < columnCount; i++) {
+            DataType type = schema.get(i).type();
+            if (type.sizeInBytes > 0) {
+                fixedSizeTotal += type.sizeInBytes;
             } else {
                 fixedSizeTotal += 4;
-                Object value = row.get(col.name());
-                byte[] bytes = (value == null) ? new byte[0] : ((String) value).getBytes(StandardCharsets.UTF_8);
-                varLenData.add(bytes);
+                String value = row.getString(i);
+                byte[] bytes = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+                varLenData[i] = bytes;
                 varSizeTotal += bytes.length;
             }
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(fixedSizeTotal + varSizeTotal);
+        if (fixedSizeTotal + varSizeTotal > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Registro de " + (fixedSizeTotal + varSizeTotal)
+                    + " bytes passa do limite de " + Short.MAX_VALUE + " bytes do formato de registro antigo.");
+        }
+        byte[] data = new byte[fixedSizeTotal + varSizeTotal];
+        int position = 0;
         int currentVarOffset = fixedSizeTotal;
 
-        int varDataIndex = 0;
-        for (Column col : schema) {
-            Object value = row.get(col.name());
-            if (value == null) {
-                if(col.type() == DataType.INTEGER) buffer.putInt(0);
-                if(col.type() == DataType.VARCHAR) buffer.putInt(0);
-                continue;
-            }
-
-            switch (col.type()) {
+        for (int i = 0; i < columnCount; i++) {
+            switch (schema.get(i).type()) {
                 case INTEGER:
-                    buffer.putInt((Integer) value);
+                    putInt(data, position, row.getInt(i));
                     break;
                 case VARCHAR:
-                    byte[] varBytes = varLenData.get(varDataIndex++);
-                    buffer.putShort((short) currentVarOffset);
-                    buffer.putShort((short) varBytes.length);
+                    byte[] varBytes = varLenData[i];
+                    putShort(data, position, currentVarOffset);
+                    putShort(data, position + 2, varBytes.length);
+                    System.arraycopy(varBytes, 0, data, currentVarOffset, varBytes.length);
                     currentVarOffset += varBytes.length;
                     break;
             }
+            position += 4;
         }
 
-        for (byte[] varBytes : varLenData) {
-            buffer.put(varBytes);
-        }
-
-        return buffer.array();
+        return data;
     }
 
     public static Row deserialize(byte[] data, List<Column> schema) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        Row row = new Row();
+        return new Row(deserializeCompact(data, schema));
+    }
+
+    public static CompactRow deserializeCompact(byte[] data, List<Column> schema) {
+        CompactRow row = new CompactRow(schema);
+        int position = 0;
 
-        for (Column col : schema) {
-            switch (col.type()) {
+        for (int i = 0; i < schema.size(); i++) {
+            switch (schema.get(i).type()) {
                 case INTEGER:
-                    row.put(col.name(), buffer.getInt());
+                    row.setInt(i, getInt(data, position));
                     break;
                 case VARCHAR:
-                    short offset = buffer.getShort();
-                    short length = buffer.getShort();
-                    byte[] strBytes = new byte[length];
-                    int currentPosition = buffer.position();
-                    buffer.position(offset);
-                    buffer.get(strBytes, 0, length);
-                    buffer.position(currentPosition);
-                    row.put(col.name(), new String(strBytes, StandardCharsets.UTF_8));
+                    int offset = getShort(data, position);
+                    int length = getShort(data, position + 2);
+                    row.setString(i, new String(data, offset, length, StandardCharsets.UTF_8));
                     break;
             }
+            position += 4;
         }
         return row;
     }
+
+    private static int getInt(byte[] data, int position) {
+        return (data[position] << 24) | ((data[position + 1] & 0xFF) << 16)
+                | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+    }
+
+    private static int getShort(byte[] data, int position) {
+        return (short) (((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF));
+    }
+
+    private static void putInt(byte[] data, int position, int value) {
+        data[position] = (byte) (value >>> 24);
+        data[position + 1] = (byte) (value >>> 16);
+        data[position + 2] = (byte) (value >>> 8);
+        data[position + 3] = (byte) value;
+    }
+
+    private static void putShort(byte[] data, int position, int value) {
+        data[position] = (byte) (value >>> 8);
+        data[position + 1] = (byte) value;
+    }
 }
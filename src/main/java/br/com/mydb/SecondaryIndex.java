@@ -0,0 +1,359 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+/**
+ * Índice secundário sobre uma coluna que não é a chave primária: uma B+ tree que mapeia o valor da
+ * coluna para o ponteiro de dados (página << 32 | slot) da linha. Colunas VARCHAR são indexadas pelo
+ * hashCode, então quem consulta o índice precisa conferir o valor da linha encontrada.
+ *
+ * Linhas com a coluna nula não entram no índice, já que nenhuma condição aceita o nulo. Só o formato
+ * antigo de registro grava o nulo como 0 ou "", e nesses arquivos ele é indexado pelo valor gravado.
+ *
+ * A raiz nunca troca de página: quando enche, seu conteúdo é copiado para uma página nova que vira o
+ * primeiro filho, e o catálogo não precisa ser atualizado. Exclusões apenas removem a entrada da folha,
+ * sem redistribuir chaves; folhas que ficam vazias são puladas pelo Cursor.
+ */
+public class SecondaryIndex {
+
+    public static final int BUILD_ROWS_PER_COMMIT = 4096;
+
+    private final Table table;
+    private final Pager pager;
+    private final String name;
+    private final Column column;
+    private final int columnIndex;
+    private final int rootPageNumber;
+    private final int maxLeafKeys;
+    private final int maxInternalKeys;
+    private final boolean storesNulls;
+
+    public SecondaryIndex(Table table, String name, Column column, int rootPageNumber) {
+        this.table = table;
+        this.pager = table.getPager();
+        this.name = name;
+        this.column = column;
+        this.columnIndex = table.getSchema().indexOf(column);
+        this.rootPageNumber = rootPageNumber;
+        this.maxLeafKeys = (pager.getPageSize() - Page.HEADER_SIZE) / BTreeNode.LEAF_CELL_SIZE;
+        this.maxInternalKeys = IndexNode.getMaxKeys(pager.getPageSize());
+        this.storesNulls = table.getCodec().isCompactFormat();
+    }
+
+    public int keyOf(Row row) {
+        return keyOf(row.get(this.column.name()));
+    }
+
+    public int keyOf(CompactRow row) {
+        if (this.column.type() == DataType.INTEGER) {
+            return row.getInt(this.columnIndex);
+        }
+        return keyOf(row.getString(this.columnIndex));
+    }
+
+    public int keyOf(RecordView row) throws IOException {
+        if (this.column.type() == DataType.INTEGER) {
+            return row.getInt(this.columnIndex);
+        }
+        return row.stringHashCode(this.columnIndex);
+    }
+
+    public int keyOf(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (this.column.type() == DataType.INTEGER) {
+            return (Integer) value;
+        }
+        return value.toString().hashCode();
+    }
+
+    private boolean isNull(CompactRow row) {
+        return this.storesNulls && row.isNull(this.columnIndex);
+    }
+
+    /**
+     * Inclui a linha no índice, a menos que a coluna seja nula.
+     */
+    public void insert(CompactRow row, long dataPointer) throws IOException {
+        if (!isNull(row)) {
+            insert(keyOf(row), dataPointer);
+        }
+    }
+
+    public void insert(RecordView row, long dataPointer) throws IOException {
+        if (!row.isNull(this.columnIndex)) {
+            insert(keyOf(row), dataPointer);
+        }
+    }
+
+    public boolean delete(CompactRow row, long dataPointer) throws IOException {
+        return !isNull(row) && delete(keyOf(row), dataPointer);
+    }
+
+    /**
+     * Troca a entrada de oldRow, no ponteiro oldDataPointer, pela de newRow; não faz nada se as duas
+     * forem iguais.
+     */
+    public void update(CompactRow oldRow, long oldDataPointer, CompactRow newRow, long newDataPointer)
+            throws IOException {
+        boolean oldNull = isNull(oldRow);
+        if (oldNull == isNull(newRow) && oldDataPointer == newDataPointer
+                && (oldNull || keyOf(oldRow) == keyOf(newRow))) {
+            return;
+        }
+        delete(oldRow, oldDataPointer);
+        insert(newRow, newDataPointer);
+    }
+
+    /**
+     * Preenche o índice com as linhas que já estão na tabela, confirmando a cada
+     * BUILD_ROWS_PER_COMMIT linhas para não manter o índice inteiro fixado no buffer pool.
+     */
+    public void build() throws IOException {
+        try (Cursor cursor = this.table.start()) {
+            while (!cursor.isEndOfTable()) {
+                this.pager.beginOperation();
+                try {
+                    for (int i = 0; i < BUILD_ROWS_PER_COMMIT && !cursor.isEndOfTable(); i++) {
+                        insert(cursor.getRecordView(), cursor.getDataPointer());
+                        cursor.advance();
+                    }
+                } finally {
+                    this.pager.endOperation();
+                }
+            }
+        }
+    }
+
+    /**
+     * Índice vazio sobre a mesma coluna, com raiz em uma página nova que não está no catálogo. A carga
+     * em massa o preenche e depois passa o conteúdo para este índice com adopt.
+     */
+    SecondaryIndex newDetached() throws IOException {
+        int detachedRootPageNumber = this.pager.newPage().initializeAsLeaf().getPageNumber();
+        return new SecondaryIndex(this.table, this.name, this.column, detachedRootPageNumber);
+    }
+
+    /**
+     * Copia para a raiz deste índice, que deve estar vazio, a raiz de detached, que volta para a lista
+     * de páginas livres. As demais páginas de detached passam a ser deste índice.
+     */
+    void adopt(SecondaryIndex detached) throws IOException {
+        Page rootPage = this.pager.getPage(this.rootPageNumber);
+        if (IndexNode.isIndexInternal(rootPage) || rootPage.getRowCount() > 0) {
+            throw new IllegalStateException("O índice '" + this.name + "' não está vazio.");
+        }
+        Page detachedRootPage = this.pager.getPage(detached.rootPageNumber);
+        rootPage.getBuffer().put(0, detachedRootPage.getBuffer(), 0, this.pager.getPageSize());
+        this.pager.flushPage(rootPage);
+        this.pager.freePage(detached.rootPageNumber);
+    }
+
+    /**
+     * Devolve todas as páginas do índice para a lista de páginas livres.
+     */
+    void freePages() throws IOException {
+        freePages(this.rootPageNumber);
+    }
+
+    private void freePages(int pageNumber) throws IOException {
+        Page page = this.pager.getPage(pageNumber);
+        if (IndexNode.isIndexInternal(page)) {
+            IndexNode node = new IndexNode(page);
+            for (int i = 0; i <= node.getKeyCount(); i++) {
+                freePages(node.getChildPointer(i));
+            }
+        }
+        this.pager.freePage(pageNumber);
+    }
+
+    public void insert(int key, long dataPointer) throws IOException {
+        Page rootPage = this.pager.getPage(this.rootPageNumber);
+
+        if (isFull(rootPage)) {
+            Page oldRootCopy = this.pager.newPage();
+            oldRootCopy.getBuffer().put(0, rootPage.getBuffer(), 0, this.pager.getPageSize());
+            oldRootCopy.markAsDirty();
+
+            rootPage.setPageType(PageType.INDEX_INTERNAL_NODE.value);
+            IndexNode newRoot = new IndexNode(rootPage);
+            newRoot.setKeyCount(0);
+            newRoot.setChildPointer(0, oldRootCopy.getPageNumber());
+            splitChild(newRoot, 0, oldRootCopy);
+        }
+
+        Page page = rootPage;
+        while (IndexNode.isIndexInternal(page)) {
+            IndexNode node = new IndexNode(page);
+            int childIndex = findChildIndex(node, key, dataPointer);
+            Page childPage = this.pager.getPage(node.getChildPointer(childIndex));
+
+            if (isFull(childPage)) {
+                splitChild(node, childIndex, childPage);
+                if (node.compareTo(childIndex, key, dataPointer) <= 0) {
+                    childPage = this.pager.getPage(node.getChildPointer(childIndex + 1));
+                }
+            }
+            page = childPage;
+        }
+
+        BTreeNode leaf = new BTreeNode(page, Table.BTREE_MIN_DEGREE);
+        leaf.insertLeafCell(lowerBound(leaf, key, dataPointer), key, dataPointer);
+        this.pager.flushPage(page);
+    }
+
+    public boolean delete(int key, long dataPointer) throws IOException {
+        BTreeNode leaf = findLeaf(key, dataPointer);
+        int keyCount = leaf.getKeyCount();
+        int position = lowerBound(leaf, key, dataPointer);
+
+        if (position == keyCount || leaf.getKey(position) != key || leaf.getDataPointer(position) != dataPointer) {
+            return false;
+        }
+
+        leaf.removeLeafCell(position);
+        this.pager.flushPage(leaf.getPage());
+        return true;
+    }
+
+    /**
+     * Cursor sobre as linhas da tabela cujo valor indexado está entre lo e hi. O getRecord do cursor
+     * devolve a linha da tabela, já que as folhas do índice guardam o mesmo ponteiro de dados.
+     */
+    public Cursor scanRange(int lo, int hi, boolean loInclusive, boolean hiInclusive) throws IOException {
+        this.table.lockForRead();
+        try {
+            long firstKey = loInclusive ? lo : (long) lo + 1;
+            long lastKey = hiInclusive ? hi : (long) hi - 1;
+
+            if (firstKey > lastKey) {
+                BTreeNode leaf = findLeaf(lo, Long.MIN_VALUE);
+                return new Cursor(this.table, leaf.getPageNumber(), 0, Long.MIN_VALUE);
+            }
+
+            BTreeNode leaf = findLeaf((int) firstKey, Long.MIN_VALUE);
+            return new Cursor(this.table, leaf.getPageNumber(), lowerBound(leaf, (int) firstKey, Long.MIN_VALUE), lastKey);
+        } finally {
+            this.table.unlockForRead();
+        }
+    }
+
+    private BTreeNode findLeaf(int key, long dataPointer) throws IOException {
+        Page page = this.pager.getPage(this.rootPageNumber);
+        while (IndexNode.isIndexInternal(page)) {
+            IndexNode node = new IndexNode(page);
+            page = this.pager.getPage(node.getChildPointer(findChildIndex(node, key, dataPointer)));
+        }
+        return new BTreeNode(page, Table.BTREE_MIN_DEGREE);
+    }
+
+    /**
+     * Quantidade de separadores menores ou iguais a (key, dataPointer).
+     */
+    private int findChildIndex(IndexNode node, int key, long dataPointer) {
+        int left = 0;
+        int right = node.getKeyCount();
+        while (left < right) {
+            int mid = left + (right - left) / 2;
+            if (node.compareTo(mid, key, dataPointer) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Posição da primeira entrada da folha maior ou igual a (key, dataPointer).
+     */
+    private int lowerBound(BTreeNode leaf, int key, long dataPointer) {
+        int left = 0;
+        int right = leaf.getKeyCount();
+        while (left < right) {
+            int mid = left + (right - left) / 2;
+            int midKey = leaf.getKey(mid);
+            if (midKey < key || (midKey == key && leaf.getDataPointer(mid) < dataPointer)) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    private boolean isFull(Page page) {
+        if (IndexNode.isIndexInternal(page)) {
+            return page.getRowCount() >= this.maxInternalKeys;
+        }
+        return page.getRowCount() >= this.maxLeafKeys;
+    }
+
+    private void splitChild(IndexNode parent, int childIndex, Page childPage) throws IOException {
+        Page rightPage = this.pager.newPage();
+        int separatorKey;
+        long separatorPointer;
+
+        if (IndexNode.isIndexInternal(childPage)) {
+            rightPage.setPageType(PageType.INDEX_INTERNAL_NODE.value);
+            IndexNode left = new IndexNode(childPage);
+            IndexNode right = new IndexNode(rightPage);
+
+            int keyCount = left.getKeyCount();
+            int middle = keyCount / 2;
+            separatorKey = left.getKey(middle);
+            separatorPointer = left.getDataPointer(middle);
+
+            for (int i = middle + 1; i < keyCount; i++) {
+                right.setSeparator(i - middle - 1, left.getKey(i), left.getDataPointer(i));
+            }
+            for (int i = middle + 1; i <= keyCount; i++) {
+                right.setChildPointer(i - middle - 1, left.getChildPointer(i));
+            }
+            right.setKeyCount(keyCount - middle - 1);
+            left.setKeyCount(middle);
+        } else {
+            rightPage.initializeAsLeaf();
+            BTreeNode left = new BTreeNode(childPage, Table.BTREE_MIN_DEGREE);
+            BTreeNode right = new BTreeNode(rightPage, Table.BTREE_MIN_DEGREE);
+
+            int keyCount = left.getKeyCount();
+            int middle = keyCount / 2;
+            left.copyLeafCellsTo(right, middle, 0, keyCount - middle);
+            right.setKeyCount(keyCount - middle);
+            left.setKeyCount(middle);
+
+            right.setNextSiblingPointer(left.getNextSiblingPointer());
+            left.setNextSiblingPointer(rightPage.getPageNumber());
+
+            separatorKey = right.getKey(0);
+            separatorPointer = right.getDataPointer(0);
+        }
+
+        int parentKeyCount = parent.getKeyCount();
+        for (int i = parentKeyCount; i > childIndex; i--) {
+            parent.setSeparator(i, parent.getKey(i - 1), parent.getDataPointer(i - 1));
+            parent.setChildPointer(i + 1, parent.getChildPointer(i));
+        }
+        parent.setSeparator(childIndex, separatorKey, separatorPointer);
+        parent.setChildPointer(childIndex + 1, rightPage.getPageNumber());
+        parent.setKeyCount(parentKeyCount + 1);
+
+        this.pager.flushPage(childPage);
+        this.pager.flushPage(rightPage);
+        this.pager.flushPage(parent.getPage());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Column getColumn() {
+        return column;
+    }
+
+    public int getRootPageNumber() {
+        return rootPageNumber;
+    }
+}
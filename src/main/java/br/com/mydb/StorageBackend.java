@@ -0,0 +1,17 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+public enum StorageBackend {
+
+    RANDOM_ACCESS_FILE,
+    MEMORY_MAPPED;
+
+    public PageStore open(String databaseFilePath, int pageSize, boolean walEnabled) throws IOException {
+        return switch (this) {
+            case RANDOM_ACCESS_FILE -> new FilePageStore(databaseFilePath, pageSize);
+            case MEMORY_MAPPED -> new MappedPageStore(databaseFilePath, pageSize,
+                    MappedPageStore.DEFAULT_CHUNK_SIZE_IN_PAGES, walEnabled);
+        };
+    }
+}
@@ -1,40 +1,141 @@
 package br.com.mydb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tabela com chave primária inteira em uma B+ tree. Leituras de várias threads rodam juntas sob o lock
+ * de leitura da tabela, e as escritas pegam o lock de escrita, que espera os cursores abertos serem
+ * fechados. Entre tabelas diferentes as escritas ainda são serializadas pela operação do Pager.
+ */
 public class Table {
 
     private final Pager pager;
     private int rootPageNumber;
     private int firstDataPageNumber;
     private final List<Column> schema;
+    private final RowCodec codec;
+    private final BTreeLayout layout;
+    private TableMetadataListener metadataListener;
+    private final List<SecondaryIndex> indexes;
+    // Aberto na primeira escrita e descartado quando a cadeia de dados é trocada, sempre com o lock de
+    // escrita da tabela; as leituras não usam o mapa.
+    private FreeSpaceMap freeSpaceMap;
+    private final boolean clustered;
+    private final byte dataPageType;
+    private final ReentrantReadWriteLock lock;
 
     public static final int BTREE_MIN_DEGREE = 3;
-    public static final int MAX_KEYS_PER_NODE = 2 * BTREE_MIN_DEGREE - 1;
-    public static final int MIN_KEYS_PER_NODE = BTREE_MIN_DEGREE - 1;
+    public static final int BULK_LOAD_LEAVES_PER_COMMIT = 16;
+    public static final int VACUUM_ROWS_PER_COMMIT = 4096;
+
+    // Valor de firstDataPageNumber das tabelas clustered, que guardam as linhas nas próprias folhas e
+    // não têm páginas de dados. Nelas o ponteiro de uma linha, usado pelos índices secundários, é a
+    // própria chave primária.
+    public static final int CLUSTERED_TABLE = -2;
+
+    public Table(Pager pager, int rootPageNumber, int firstDataPageNumber, List<Column> schema) throws IOException {
+        this(pager, rootPageNumber, firstDataPageNumber, schema, null);
+    }
 
-    public Table(Pager pager, int rootPageNumber, int firstDataPageNumber, List<Column> schema) {
+    /**
+     * dictionaries tem o dicionário de cada coluna declarada com dictionary, na posição da coluna.
+     */
+    public Table(Pager pager, int rootPageNumber, int firstDataPageNumber, List<Column> schema,
+                 ColumnDictionary[] dictionaries) throws IOException {
         this.pager = pager;
         this.rootPageNumber = rootPageNumber;
         this.firstDataPageNumber = firstDataPageNumber;
         this.schema = schema;
+        this.codec = RowCodec.forTable(pager, schema, dictionaries);
+        this.layout = BTreeLayout.forFormat(pager.getFormatVersion(), pager.getPageSize());
+        this.indexes = new CopyOnWriteArrayList<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.clustered = firstDataPageNumber == CLUSTERED_TABLE;
+
+        if (this.clustered && !this.layout.supportsClusteredLeaves()) {
+            throw new IllegalStateException("Tabelas clustered não são suportadas na versão " + pager.getFormatVersion()
+                    + " do formato.");
+        }
+        // O tipo das páginas de dados não muda depois de criada a tabela: VACUUM e carga em massa montam
+        // a cadeia nova com o mesmo tipo.
+        this.dataPageType = this.clustered || firstDataPageNumber == BTreeNode.NULL_POINTER
+                ? PageType.DATA_PAGE.value : pager.getPage(firstDataPageNumber).getPageType();
     }
 
     public void insert(int keyToInsert, Row rowData) throws IOException {
-        Row row = find(keyToInsert);
+        insert(keyToInsert, CompactRow.of(rowData, this.schema));
+    }
+
+    public void insert(int keyToInsert, CompactRow rowData) throws IOException {
+        checkSchema(rowData);
+        beginWrite();
+        try {
+            BTreeNode leaf = findLeafForInsert(keyToInsert, false);
+            int position = leaf.lowerBound(keyToInsert);
+
+            if (position < leaf.getKeyCount() && leaf.getKey(position) == keyToInsert) {
+                throw new IllegalArgumentException("Chave primária '" + keyToInsert + "' violada.");
+            }
+
+            insertIntoLeaf(leaf, position, keyToInsert, rowData);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Insere a linha ou, se a chave já existir, substitui a linha atual, com uma única descida na árvore.
+     * Retorna true se a linha foi inserida e false se foi substituída.
+     */
+    public boolean upsert(int key, Row rowData) throws IOException {
+        return upsert(key, CompactRow.of(rowData, this.schema));
+    }
+
+    public boolean upsert(int key, CompactRow rowData) throws IOException {
+        checkSchema(rowData);
+        beginWrite();
+        try {
+            BTreeNode leaf = findLeafForInsert(key, this.clustered);
+            int position = leaf.lowerBound(key);
+
+            if (position < leaf.getKeyCount() && leaf.getKey(position) == key) {
+                replaceRecord(leaf, position, null, rowData);
+                return false;
+            }
 
-        if (row != null) {
-            throw new IllegalArgumentException("Chave primária '" + keyToInsert + "' violada.");
+            insertIntoLeaf(leaf, position, key, rowData);
+            return true;
+        } finally {
+            endWrite();
         }
+    }
 
-        byte[] serializedRow = RowSerializer.serialize(rowData, this.schema);
-        long dataPointer = writeRecordAndGetDataPointer(serializedRow);
+    /**
+     * Desce da raiz até a folha onde key deve ficar, dividindo no caminho os nós cheios, de modo que a
+     * folha devolvida tem espaço para mais uma chave. Uma folha cheia que já tem key só é dividida se
+     * splitIfPresent, quando a linha vai ser trocada por uma que pode ser maior; assim uma chave
+     * repetida é recusada na mesma descida sem dividir a folha.
+     */
+    private BTreeNode findLeafForInsert(int key, boolean splitIfPresent) throws IOException {
+        return findLeafForWrite(key, true, splitIfPresent);
+    }
 
+    /**
+     * Como findLeafForInsert, mas decidindo também se uma folha cheia sem key é dividida.
+     */
+    private BTreeNode findLeafForWrite(int key, boolean splitIfAbsent, boolean splitIfPresent) throws IOException {
         Page rootPage = this.pager.getPage(this.rootPageNumber);
         BTreeNode rootNode = new BTreeNode(rootPage, BTREE_MIN_DEGREE);
 
-        if (rootNode.getKeyCount() == MAX_KEYS_PER_NODE) {
+        if (this.layout.isFull(rootNode) && (!rootNode.isLeaf() || splitsLeaf(rootNode, key, splitIfAbsent, splitIfPresent))) {
 
             Page newRootPage = this.pager.newPage();
             newRootPage.setPageType(PageType.BTREE_INTERNAL_NODE.value);
@@ -54,98 +155,197 @@ public class Table {
 
             this.rootPageNumber = newRoot.getPageNumber();
             this.pager.flushPage(newRoot.getPage());
+            notifyMetadataChanged();
+            rootNode = newRoot;
+        }
+
+        BTreeNode node = rootNode;
+        while (!node.isLeaf()) {
+            int childIndex = node.findChildIndex(key);
+            BTreeNode childNode = new BTreeNode(this.pager.getPage(node.getChildPointer(childIndex)), BTREE_MIN_DEGREE);
 
+            if (this.layout.isFull(childNode)
+                    && (!childNode.isLeaf() || splitsLeaf(childNode, key, splitIfAbsent, splitIfPresent))) {
+                splitChildNode(node, childIndex, childNode);
+
+                if (key >= node.getKey(childIndex)) {
+                    childNode = new BTreeNode(this.pager.getPage(node.getChildPointer(childIndex + 1)), BTREE_MIN_DEGREE);
+                }
+            }
+            node = childNode;
         }
+        return node;
+    }
 
-        insertIntoSubtree(this.rootPageNumber, keyToInsert, dataPointer);
-        printTree();
+    private static boolean splitsLeaf(BTreeNode leaf, int key, boolean splitIfAbsent, boolean splitIfPresent) {
+        int position = leaf.lowerBound(key);
+        boolean present = position < leaf.getKeyCount() && leaf.getKey(position) == key;
+        return present ? splitIfPresent : splitIfAbsent;
     }
 
-    private void insertIntoSubtree(int pageNumber, int key, long dataOffset) throws IOException {
-        Page currentPage = this.pager.getPage(pageNumber);
-        BTreeNode node = new BTreeNode(currentPage, BTREE_MIN_DEGREE);
+    private void splitChildNode(BTreeNode parentNode, int childIndex, BTreeNode childToSplit) throws IOException {
 
-        if (node.isLeaf()) {
-            insertIntoLeaf(node, key, dataOffset);
-            return;
+        PromotedKey promotedKey;
+
+        if (childToSplit.isLeaf()) {
+            promotedKey = splitLeafNode(childToSplit);
+        } else {
+            promotedKey = splitInternalNode(childToSplit);
         }
 
-        int childIndex = findNextChildIndex(node, key);
-        int childPageNumber = node.getChildPointer(childIndex);
+        insertIntoInternalNode(parentNode, childIndex, promotedKey);
+    }
 
-        Page childPage = this.pager.getPage(childPageNumber);
-        BTreeNode childNode = new BTreeNode(childPage, BTREE_MIN_DEGREE);
 
-        if (childNode.getKeyCount() == MAX_KEYS_PER_NODE) {
-            splitChildNode(node, childIndex, childNode);
+    private void checkSchema(CompactRow row) {
+        if (row.getSchema() != this.schema && !row.getSchema().equals(this.schema)) {
+            throw new IllegalArgumentException("A linha não segue o esquema da tabela.");
+        }
+    }
 
-            if (key > node.getKey(childIndex)) {
-                childPageNumber = node.getChildPointer(childIndex + 1);
+    private void insertIntoLeaf(BTreeNode leaf, int position, int key, CompactRow rowData) throws IOException {
+        if (this.clustered) {
+            for (SecondaryIndex index : this.indexes) {
+                index.insert(rowData, key);
             }
+            leaf.insertCell(position, buildCell(key, rowData));
+            this.pager.flushPage(leaf.getPage());
+            return;
+        }
+
+        long dataPointer = writeRecordAndGetDataPointer(rowData);
+        for (SecondaryIndex index : this.indexes) {
+            index.insert(rowData, dataPointer);
         }
 
-        insertIntoSubtree(childPageNumber, key, dataOffset);
+        leaf.insertLeafCell(position, key, dataPointer);
+        this.pager.flushPage(leaf.getPage());
     }
 
-    private int findNextChildIndex(BTreeNode node, int key) {
-        int nextChildIndex = 0;
-        while (nextChildIndex < node.getKeyCount() && node.getKey(nextChildIndex) <= key) {
-            nextChildIndex++;
+    /**
+     * Monta a célula de uma folha clustered, mandando a linha para uma cadeia de overflow se ela
+     * passar do tamanho máximo de célula.
+     */
+    private byte[] buildCell(int key, CompactRow row) throws IOException {
+        int rowSize = this.codec.sizeOf(row);
+        ByteBuffer cell;
+        if (rowSize <= this.layout.getMaxInlineRowSize()) {
+            cell = ByteBuffer.allocate(BTreeNode.CELL_HEADER_SIZE + rowSize);
+            cell.putInt(key).put(BTreeNode.INLINE_ROW);
+            this.codec.write(row, cell, BTreeNode.CELL_HEADER_SIZE);
+        } else {
+            cell = ByteBuffer.allocate(BTreeNode.OVERFLOW_CELL_SIZE);
+            cell.putInt(key).put(BTreeNode.OVERFLOW_ROW).putInt(rowSize)
+                    .putInt(OverflowChain.write(this.pager, this.codec.serialize(row)));
         }
-        return nextChildIndex;
+        return cell.array();
     }
 
-    private void splitChildNode(BTreeNode parentNode, int childIndex, BTreeNode childToSplit) throws IOException {
+    /**
+     * Linha serializada da célula index de uma folha clustered.
+     */
+    byte[] readCellRow(BTreeNode leaf, int index) throws IOException {
+        if (leaf.isOverflowCell(index)) {
+            return OverflowChain.read(this.pager, leaf.getOverflowPageNumber(index), leaf.getOverflowRowLength(index));
+        }
+        return leaf.getInlineRow(index);
+    }
 
-        PromotedKey promotedKey;
+    /**
+     * Libera as páginas de overflow da célula: as dos valores VARCHAR fora da linha e a cadeia da
+     * própria linha, se ela não coube na folha.
+     */
+    private void freeOverflow(BTreeNode leaf, int index) throws IOException {
+        if (this.codec.hasExternalValues()) {
+            this.codec.freeExternalValues(ByteBuffer.wrap(readCellRow(leaf, index)), 0);
+        }
+        if (leaf.isOverflowCell(index)) {
+            OverflowChain.free(this.pager, leaf.getOverflowPageNumber(index));
+        }
+    }
 
-        if (childToSplit.isLeaf()) {
-            promotedKey = splitLeafNode(childToSplit);
-        } else {
-            promotedKey = splitInternalNode(childToSplit);
+    /**
+     * Troca o registro apontado pela folha. Se o novo registro couber na mesma página ele é regravado
+     * no mesmo slot e o ponteiro de dados não muda, então nem a folha nem os índices das colunas que
+     * não mudaram precisam ser tocados.
+     */
+    private void replaceRecord(BTreeNode leaf, int position, CompactRow oldRow, CompactRow newRowData) throws IOException {
+        if (this.clustered) {
+            replaceCellRow(leaf, position, oldRow, newRowData);
+            return;
         }
 
-        insertIntoInternalNode(parentNode, childIndex, promotedKey);
-    }
+        long oldDataPointer = leaf.getDataPointer(position);
+        Page dataPage = this.pager.getPage((int) (oldDataPointer >> 32));
+        if (oldRow == null && !this.indexes.isEmpty()) {
+            oldRow = readRecord(dataPage, (int) oldDataPointer);
+        }
 
+        byte[] newRecord = this.codec.serialize(newRowData);
+        long newDataPointer = oldDataPointer;
+        freeExternalValues(dataPage, (int) oldDataPointer);
 
-    private void insertIntoLeaf(BTreeNode node, int key, long dataOffset) throws IOException {
-        int currentKeyCount = node.getKeyCount();
+        if (dataPage.updateRecord((int) oldDataPointer, newRecord)) {
+            this.pager.flushPage(dataPage);
+            getFreeSpaceMap().update(dataPage);
+        } else {
+            dataPage.deleteRecord((int) oldDataPointer);
+            this.pager.flushPage(dataPage);
+            getFreeSpaceMap().update(dataPage);
+
+            newDataPointer = writeRecordAndGetDataPointer(newRecord);
+            leaf.setDataPointer(position, newDataPointer);
+            this.pager.flushPage(leaf.getPage());
+        }
+
+        for (SecondaryIndex index : this.indexes) {
+            index.update(oldRow, oldDataPointer, newRowData, newDataPointer);
+        }
+    }
 
-        int slotToInsert = 0;
-        while (slotToInsert < currentKeyCount && node.getKey(slotToInsert) < key) {
-            slotToInsert++;
+    /**
+     * Troca a linha de uma folha clustered. A folha vem de findLeafForInsert e tem espaço para qualquer
+     * célula, então a troca nunca falha; a chave, que é o ponteiro da linha nos índices, não muda.
+     */
+    private void replaceCellRow(BTreeNode leaf, int position, CompactRow oldRow, CompactRow newRowData) throws IOException {
+        int key = leaf.getKey(position);
+        if (oldRow == null && !this.indexes.isEmpty()) {
+            oldRow = this.codec.deserialize(readCellRow(leaf, position));
         }
 
-        for (int i = currentKeyCount; i > slotToInsert; i--) {
-            node.setKey(i, node.getKey(i - 1));
-            node.setDataPointer(i, node.getDataPointer(i - 1));
+        freeOverflow(leaf, position);
+        if (!leaf.replaceCell(position, buildCell(key, newRowData))) {
+            throw new IllegalStateException("Não há espaço na folha " + leaf.getPageNumber() + " para a linha " + key + ".");
         }
+        this.pager.flushPage(leaf.getPage());
 
-        node.setKey(slotToInsert, key);
-        node.setDataPointer(slotToInsert, dataOffset);
-        node.setKeyCount(currentKeyCount + 1);
-        this.pager.flushPage(node.getPage());
+        for (SecondaryIndex index : this.indexes) {
+            index.update(oldRow, key, newRowData, key);
+        }
     }
 
     private PromotedKey splitLeafNode(BTreeNode nodeToSplit) throws IOException {
 
         Page rightPage = this.pager.newPage();
-        rightPage.setPageType(PageType.BTREE_LEAF_NODE.value);
+        if (nodeToSplit.isClustered()) {
+            rightPage.initializeAsClusteredLeaf();
+        } else {
+            rightPage.setPageType(PageType.BTREE_LEAF_NODE.value);
+        }
         BTreeNode rightNode = new BTreeNode(rightPage, BTREE_MIN_DEGREE);
 
-        int middleIndex = BTREE_MIN_DEGREE - 1;
+        int middleIndex = this.layout.getSplitIndex(nodeToSplit);
+        int movedKeys = nodeToSplit.getKeyCount() - middleIndex;
 
-        int j = 0;
-        for (int i = middleIndex; i < nodeToSplit.getKeyCount(); i++) {
-            rightNode.setKey(j, nodeToSplit.getKey(i));
-            rightNode.setDataPointer(j, nodeToSplit.getDataPointer(i));
-            j++;
+        if (nodeToSplit.isClustered()) {
+            nodeToSplit.copyCellsTo(rightNode, middleIndex, 0, movedKeys);
+            nodeToSplit.removeCells(middleIndex, movedKeys);
+        } else {
+            nodeToSplit.copyLeafCellsTo(rightNode, middleIndex, 0, movedKeys);
+            nodeToSplit.setKeyCount(middleIndex);
+            rightNode.setKeyCount(movedKeys);
         }
 
-        nodeToSplit.setKeyCount(middleIndex);
-        rightNode.setKeyCount(j);
-
         PromotedKey promotedKey = new PromotedKey(rightNode.getKey(0), rightNode.getPageNumber());
 
         rightNode.setNextSiblingPointer(nodeToSplit.getNextSiblingPointer());
@@ -162,23 +362,14 @@ public class Table {
         rightPage.setPageType(PageType.BTREE_INTERNAL_NODE.value);
         BTreeNode rightNode = new BTreeNode(rightPage, BTREE_MIN_DEGREE);
 
-        int middleIndex = BTREE_MIN_DEGREE - 1;
+        int middleIndex = this.layout.getMinKeys(nodeToSplit);
         int promotedKey = nodeToSplit.getKey(middleIndex);
 
-        int j = 0;
-        for (int i = middleIndex + 1; i < nodeToSplit.getKeyCount(); i++) {
-            rightNode.setKey(j, nodeToSplit.getKey(i));
-            j++;
-        }
-
-        j = 0;
-        for (int i = middleIndex + 1; i <= nodeToSplit.getKeyCount(); i++) {
-            rightNode.setChildPointer(j, nodeToSplit.getChildPointer(i));
-            j++;
-        }
+        int movedKeys = nodeToSplit.getKeyCount() - middleIndex - 1;
 
+        nodeToSplit.copyInternalCellsTo(rightNode, middleIndex + 1, 0, movedKeys);
         nodeToSplit.setKeyCount(middleIndex);
-        rightNode.setKeyCount(j - 1);
+        rightNode.setKeyCount(movedKeys);
 
         this.pager.flushPage(nodeToSplit.getPage());
         this.pager.flushPage(rightNode.getPage());
@@ -187,16 +378,7 @@ public class Table {
     }
 
     private void insertIntoInternalNode(BTreeNode parentNode, int index, PromotedKey promotedKey) throws IOException {
-        for (int i = parentNode.getKeyCount(); i > index; i--) {
-            parentNode.setKey(i, parentNode.getKey(i - 1));
-            parentNode.setChildPointer(i + 1, parentNode.getChildPointer(i));
-        }
-
-        parentNode.setKey(index, promotedKey.getKey());
-        parentNode.setChildPointer(index + 1, promotedKey.getRightChildPageNumber());
-
-        parentNode.setKeyCount(parentNode.getKeyCount() + 1);
-
+        parentNode.insertInternalCell(index, promotedKey.getKey(), promotedKey.getRightChildPageNumber());
         this.pager.flushPage(parentNode.getPage());
     }
 
@@ -205,49 +387,140 @@ public class Table {
         if (recordBytes == null) {
             return null;
         }
-        return RowSerializer.deserialize(recordBytes, this.schema);
+        return this.codec.deserialize(recordBytes).toRow();
+    }
+
+    public CompactRow findCompact(int key) throws IOException {
+        byte[] recordBytes = findRaw(key);
+        if (recordBytes == null) {
+            return null;
+        }
+        return this.codec.deserialize(recordBytes);
     }
 
     public byte[] findRaw(int key) throws IOException {
-        Page rootPage = this.pager.getPage(this.rootPageNumber);
-        BTreeNode node = new BTreeNode(rootPage, BTREE_MIN_DEGREE);
+        lockForRead();
+        try {
+            if (this.clustered) {
+                BTreeNode leaf = findLeaf(key);
+                int index = leaf.lowerBound(key);
+                if (index < leaf.getKeyCount() && leaf.getKey(index) == key) {
+                    return readCellRow(leaf, index);
+                }
+                return null;
+            }
 
-        while (!node.isLeaf()) {
-            int childIndex = findNextChildIndex(node, key);
-            int childPageNumber = node.getChildPointer(childIndex);
-            Page childPage = this.pager.getPage(childPageNumber);
-            node = new BTreeNode(childPage, BTREE_MIN_DEGREE);
+            long dataPointer = findDataOffset(key);
+            if (dataPointer == -1L) {
+                return null;
+            }
+
+            int dataPageNumber = (int) (dataPointer >> 32);
+            int dataSlotId = (int) (dataPointer);
+            Page dataPage = this.pager.getPage(dataPageNumber);
+
+            return dataPage.getRecord(dataSlotId);
+        } finally {
+            unlockForRead();
         }
+    }
 
-        int left = 0;
-        int right = node.getKeyCount() - 1;
+    /**
+     * Folha para trocar a linha de key. Em tabelas clustered a linha nova pode ser maior que a antiga,
+     * então a descida divide os nós cheios como na inserção, mas a folha só se a chave existir.
+     */
+    private BTreeNode findLeafForUpdate(int key) throws IOException {
+        return this.clustered ? findLeafForWrite(key, false, true) : findLeaf(key);
+    }
 
-        while (left <= right) {
-            int mid = left + (right - left) / 2;
-            int midKey = node.getKey(mid);
+    /**
+     * Linha serializada da célula index da folha, lida da própria folha ou da página de dados.
+     */
+    private byte[] readRow(BTreeNode leaf, int index) throws IOException {
+        if (this.clustered) {
+            return readCellRow(leaf, index);
+        }
+        long dataPointer = leaf.getDataPointer(index);
+        return this.pager.getPage((int) (dataPointer >> 32)).getRecord((int) dataPointer);
+    }
+
+    private BTreeNode findLeaf(int key) throws IOException {
+        BTreeNode node = new BTreeNode(this.pager.getPage(this.rootPageNumber), BTREE_MIN_DEGREE);
+
+        while (!node.isLeaf()) {
+            node.wrap(this.pager.getPage(node.getChildPointer(node.findChildIndex(key))));
+        }
+        return node;
+    }
 
-            if (midKey == key) {
+    public Cursor start() throws IOException {
+        lockForRead();
+        try {
+            int firstLeafPageNum = findFirstLeafPageNumber();
+            return new Cursor(this, firstLeafPageNum);
+        } finally {
+            unlockForRead();
+        }
+    }
 
-                long dataPointer = node.getDataPointer(mid);
+    /**
+     * Cursor posicionado na primeira chave maior ou igual a key.
+     */
+    public Cursor seek(int key) throws IOException {
+        return seek(key, Long.MAX_VALUE);
+    }
 
-                int dataPageNumber = (int) (dataPointer >> 32);
-                int dataSlotId = (int) (dataPointer);
-                Page dataPage = this.pager.getPage(dataPageNumber);
+    /**
+     * Cursor sobre as chaves entre lo e hi, parando ao passar do limite superior.
+     */
+    public Cursor scanRange(int lo, int hi, boolean loInclusive, boolean hiInclusive) throws IOException {
+        long firstKey = loInclusive ? lo : (long) lo + 1;
+        long lastKey = hiInclusive ? hi : (long) hi - 1;
 
-                return dataPage.getRecord(dataSlotId);
+        if (firstKey > lastKey) {
+            return seek(lo, Long.MIN_VALUE);
+        }
+        return seek((int) firstKey, lastKey);
+    }
 
-            } else if (midKey < key) {
-                left = mid + 1;
-            } else {
-                right = mid - 1;
+    /**
+     * Varredura completa que lê só as colunas dadas, pedidas depois pela posição na lista.
+     */
+    public ColumnScan scanColumns(String... columnNames) throws IOException {
+        int[] columns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = -1;
+            for (int j = 0; j < this.schema.size(); j++) {
+                if (this.schema.get(j).name().equalsIgnoreCase(columnNames[i])) {
+                    columns[i] = j;
+                }
+            }
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Coluna '" + columnNames[i] + "' não existe.");
             }
         }
-        return null;
+        return new ColumnScan(this, columns);
     }
 
-    public Cursor start() throws IOException {
-        int firstLeafPageNum = findFirstLeafPageNumber();
-        return new Cursor(this, firstLeafPageNum);
+    /**
+     * Varredura completa dividida em faixas de chaves lidas em paralelo no pool comum.
+     */
+    public ParallelScan parallelScan() {
+        return parallelScan(ForkJoinPool.commonPool());
+    }
+
+    public ParallelScan parallelScan(ForkJoinPool pool) {
+        return new ParallelScan(this, pool);
+    }
+
+    Cursor seek(int key, long lastKey) throws IOException {
+        lockForRead();
+        try {
+            BTreeNode leaf = findLeaf(key);
+            return new Cursor(this, leaf.getPageNumber(), leaf.lowerBound(key), lastKey);
+        } finally {
+            unlockForRead();
+        }
     }
 
     private int findFirstLeafPageNumber() throws IOException {
@@ -269,6 +542,10 @@ public class Table {
     }
 
 
+    RowCodec getCodec() {
+        return this.codec;
+    }
+
     public Page getPage(int pageNumber) throws IOException {
         return this.pager.getPage(pageNumber);
     }
@@ -277,119 +554,176 @@ public class Table {
         return this.pager.getNumPages();
     }
 
+    /**
+     * Grava a linha serializando direto no espaço reservado da página de dados. Páginas PAX recebem o
+     * registro serializado, que é dividido entre as minipáginas.
+     */
+    private long writeRecordAndGetDataPointer(CompactRow row) throws IOException {
+        if (isColumnar()) {
+            return writeRecordAndGetDataPointer(this.codec.serialize(row));
+        }
+        int recordSize = this.codec.sizeOf(row);
+        Page dataPage = findDataPageWithSpace(recordSize);
+
+        int slotId = dataPage.allocateRecord(recordSize);
+        this.codec.write(row, dataPage.getBuffer(), dataPage.getRecordOffset(slotId));
+        this.pager.flushPage(dataPage);
+        getFreeSpaceMap().update(dataPage);
+
+        return toDataPointer(dataPage.getPageNumber(), slotId);
+    }
+
     private long writeRecordAndGetDataPointer(byte[] recordData) throws IOException {
         Page dataPage = findDataPageWithSpace(recordData.length);
 
-        long pageNumber = dataPage.getPageNumber();
         int slotId = dataPage.addRecord(recordData);
+        this.pager.flushPage(dataPage);
+        getFreeSpaceMap().update(dataPage);
 
-        return (pageNumber << 32) | ((long) slotId & 0xFFFFFFFFL);
+        return toDataPointer(dataPage.getPageNumber(), slotId);
     }
 
-    private Page findDataPageWithSpace(int requiredSpace) throws IOException {
-        int currentPageNum = this.firstDataPageNumber;
-        Page lastPageInChain = null;
+    /**
+     * Registro do slot de uma página de dados, lido sem cópia quando a página guarda o registro inteiro.
+     */
+    private CompactRow readRecord(Page dataPage, int slotId) throws IOException {
+        if (dataPage.isPaxPage()) {
+            return this.codec.deserialize(dataPage.getRecord(slotId));
+        }
+        return this.codec.read(dataPage.getBuffer(), dataPage.getRecordOffset(slotId), dataPage.getRecordLength(slotId));
+    }
 
-        while (currentPageNum != BTreeNode.NULL_POINTER) {
-            Page currentPage = pager.getPage(currentPageNum);
-            lastPageInChain = currentPage;
+    private void freeExternalValues(Page dataPage, int slotId) throws IOException {
+        if (!this.codec.hasExternalValues()) {
+            return;
+        }
+        if (dataPage.isPaxPage()) {
+            this.codec.freeExternalValues(ByteBuffer.wrap(dataPage.getRecord(slotId)), 0);
+        } else {
+            this.codec.freeExternalValues(dataPage.getBuffer(), dataPage.getRecordOffset(slotId));
+        }
+    }
 
-            if (currentPage.getFreeSpace() >= requiredSpace) {
-                return currentPage;
-            }
-            currentPageNum = currentPage.getNextDataPagePointer();
+    /**
+     * Página de dados nova no layout da tabela.
+     */
+    private Page newDataPage() throws IOException {
+        Page page = this.pager.newPage();
+        if (isColumnar()) {
+            return page.initializeAsPaxPage(this.schema);
         }
+        return isCompressed() ? page.initializeAsCompressedDataPage() : page.initializeAsDataPage();
+    }
 
-        Page newPage = pager.newPage();
-        newPage.initializeAsDataPage();
+    private static long toDataPointer(int pageNumber, int slotId) {
+        return ((long) pageNumber << 32) | ((long) slotId & 0xFFFFFFFFL);
+    }
 
-        if (lastPageInChain != null) {
-            lastPageInChain.setNextDataPagePointer(newPage.getPageNumber());
-            pager.flushPage(lastPageInChain);
-        } else {
-            this.firstDataPageNumber = newPage.getPageNumber();
+    private Page findDataPageWithSpace(int requiredSpace) throws IOException {
+        if (this.firstDataPageNumber == BTreeNode.NULL_POINTER) {
+            Page firstPage = newDataPage();
+            pager.flushPage(firstPage);
+            this.firstDataPageNumber = firstPage.getPageNumber();
+            notifyMetadataChanged();
+            return firstPage;
         }
+
+        FreeSpaceMap map = getFreeSpaceMap();
+        int candidate;
+        while ((candidate = map.findPageWithSpace(requiredSpace + Page.SLOT_SIZE)) != BTreeNode.NULL_POINTER) {
+            Page candidatePage = pager.getPage(candidate);
+            if (candidatePage.getAvailableSpace() >= requiredSpace + Page.SLOT_SIZE) {
+                return candidatePage;
+            }
+            map.update(candidatePage);
+        }
+
+        Page lastPageInChain = pager.getPage(map.getLastDataPageNumber());
+        Page newPage = newDataPage();
+
+        lastPageInChain.setNextDataPagePointer(newPage.getPageNumber());
+        pager.flushPage(lastPageInChain);
         pager.flushPage(newPage);
+        map.add(newPage);
         return newPage;
     }
 
+    private FreeSpaceMap getFreeSpaceMap() throws IOException {
+        if (!this.lock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("O mapa de espaço livre só é usado com o lock de escrita da tabela.");
+        }
+        if (this.freeSpaceMap == null) {
+            this.freeSpaceMap = FreeSpaceMap.open(this.pager, this.firstDataPageNumber);
+        }
+        return this.freeSpaceMap;
+    }
+
+    /**
+     * Ponteiro de dados da chave, ou -1 se ela não existir. Em tabelas clustered o ponteiro é a chave.
+     */
     public long findDataOffset(int key) throws IOException {
-        Page rootPage = this.pager.getPage(this.rootPageNumber);
-        BTreeNode node = new BTreeNode(rootPage, BTREE_MIN_DEGREE);
+        lockForRead();
+        try {
+            BTreeNode leaf = findLeaf(key);
+            int index = leaf.lowerBound(key);
 
-        while (!node.isLeaf()) {
-            int childIndex = findNextChildIndex(node, key);
-            int childPageNumber = node.getChildPointer(childIndex);
-            Page childPage = this.pager.getPage(childPageNumber);
-            node = new BTreeNode(childPage, BTREE_MIN_DEGREE);
-        }
-
-        int left = 0;
-        int right = node.getKeyCount() - 1;
-        while (left <= right) {
-            int mid = left + (right - left) / 2;
-            int midKey = node.getKey(mid);
-
-            if (midKey == key) {
-                return node.getDataPointer(mid);
-            } else if (midKey < key) {
-                left = mid + 1;
-            } else {
-                right = mid - 1;
+            if (index < leaf.getKeyCount() && leaf.getKey(index) == key) {
+                return this.clustered ? key : leaf.getDataPointer(index);
             }
+            return -1L;
+        } finally {
+            unlockForRead();
         }
-        return -1L;
     }
 
-    public void delete(int keyToDelete) throws IOException {
+    /**
+     * Remove a chave. Retorna false se ela não existir.
+     */
+    public boolean delete(int keyToDelete) throws IOException {
+        beginWrite();
+        try {
 
-        long dataPointer = findDataOffset(keyToDelete);
-        if (dataPointer == -1L) {
-            System.out.println("Chave " + keyToDelete + " não encontrada para exclusão.");
-            return;
-        }
+            boolean deleted = deleteFromNode(this.rootPageNumber, keyToDelete);
 
-        deleteFromNode(this.rootPageNumber, keyToDelete);
+            Page rootPage = pager.getPage(this.rootPageNumber);
+            BTreeNode rootNode = new BTreeNode(rootPage, BTREE_MIN_DEGREE);
 
-        Page rootPage = pager.getPage(this.rootPageNumber);
-        BTreeNode rootNode = new BTreeNode(rootPage, BTREE_MIN_DEGREE);
+            if (!rootNode.isLeaf() && rootNode.getKeyCount() == 0) {
+                this.rootPageNumber = rootNode.getChildPointer(0);
+                notifyMetadataChanged();
+                this.pager.freePage(rootPage.getPageNumber());
+            }
 
-        if (!rootNode.isLeaf() && rootNode.getKeyCount() == 0) {
-            System.out.println("RAIZ ANTIGA FICOU VAZIA, ATUALIZANDO PARA NOVA RAIZ...");
-            this.rootPageNumber = rootNode.getChildPointer(0);
+            return deleted;
+        } finally {
+            endWrite();
         }
-
-        int dataPageNumber = (int) (dataPointer >> 32);
-        int dataSlotId = (int) (dataPointer);
-
-        Page dataPage = this.pager.getPage(dataPageNumber);
-        dataPage.deleteRecord(dataSlotId);
-
-        System.out.println("Chave " + keyToDelete + " deletada.");
-        printTree();
     }
 
-    private void deleteFromNode(int pageNumber, int keyToDelete) throws IOException {
+    /**
+     * Remove a chave da subárvore, reequilibrando os nós no caminho. Retorna false se ela não existir.
+     */
+    private boolean deleteFromNode(int pageNumber, int keyToDelete) throws IOException {
         Page page = pager.getPage(pageNumber);
         BTreeNode node = new BTreeNode(page, BTREE_MIN_DEGREE);
 
         if (node.isLeaf()) {
-            deleteFromLeaf(node, keyToDelete);
+            boolean deleted = deleteFromLeaf(node, keyToDelete);
             this.pager.flushPage(page);
-            return;
+            return deleted;
         }
 
-        int childIndex = findNextChildIndex(node, keyToDelete);
+        int childIndex = node.findChildIndex(keyToDelete);
 
         Page childPage = pager.getPage(node.getChildPointer(childIndex));
         BTreeNode childNode = new BTreeNode(childPage, BTREE_MIN_DEGREE);
 
-        if (childNode.getKeyCount() == MIN_KEYS_PER_NODE) {
+        if (this.layout.isAtMinimum(childNode)) {
             ensureSufficientKeys(node, childIndex);
-            childIndex = findNextChildIndex(node, keyToDelete);
+            childIndex = node.findChildIndex(keyToDelete);
         }
 
-        deleteFromNode(node.getChildPointer(childIndex), keyToDelete);
+        return deleteFromNode(node.getChildPointer(childIndex), keyToDelete);
     }
 
     private void ensureSufficientKeys(BTreeNode parentNode, int childIndex) throws IOException {
@@ -400,7 +734,7 @@ public class Table {
             Page leftPage = pager.getPage(parentNode.getChildPointer(childIndex - 1));
             BTreeNode leftSibling = new BTreeNode(leftPage, BTREE_MIN_DEGREE);
 
-            if (leftSibling.getKeyCount() > BTREE_MIN_DEGREE - 1) {
+            if (this.layout.canLend(leftSibling)) {
                 borrowFromLeftSibling(parentNode, childIndex, childNode, leftSibling);
                 return;
             }
@@ -410,7 +744,7 @@ public class Table {
             Page rightPage = pager.getPage(parentNode.getChildPointer(childIndex + 1));
             BTreeNode rightSibling = new BTreeNode(rightPage, BTREE_MIN_DEGREE);
 
-            if (rightSibling.getKeyCount() > BTREE_MIN_DEGREE - 1) {
+            if (this.layout.canLend(rightSibling)) {
                 borrowFromRightSibling(parentNode, childIndex, childNode, rightSibling);
                 return;
             }
@@ -423,39 +757,59 @@ public class Table {
         }
     }
 
-    private void deleteFromLeaf(BTreeNode node, int keyToDelete) {
-        int index = 0;
-        while (index < node.getKeyCount() && keyToDelete > node.getKey(index)) {
-            index++;
+    private boolean deleteFromLeaf(BTreeNode node, int keyToDelete) throws IOException {
+        int index = node.lowerBound(keyToDelete);
+
+        if (index == node.getKeyCount() || node.getKey(index) != keyToDelete) {
+            return false;
         }
 
-        if (index < node.getKeyCount() && node.getKey(index) == keyToDelete) {
-            for (int i = index + 1; i < node.getKeyCount(); i++) {
-                node.setKey(i - 1, node.getKey(i));
-                node.setDataPointer(i - 1, node.getDataPointer(i));
+        if (this.clustered) {
+            if (!this.indexes.isEmpty()) {
+                CompactRow oldRow = this.codec.deserialize(readCellRow(node, index));
+                for (SecondaryIndex secondaryIndex : this.indexes) {
+                    secondaryIndex.delete(oldRow, keyToDelete);
+                }
             }
-            node.setKeyCount(node.getKeyCount() - 1);
+            freeOverflow(node, index);
+            node.removeCell(index);
+            return true;
+        }
 
+        long dataPointer = node.getDataPointer(index);
+        Page dataPage = this.pager.getPage((int) (dataPointer >> 32));
+        if (!this.indexes.isEmpty()) {
+            CompactRow oldRow = readRecord(dataPage, (int) dataPointer);
+            for (SecondaryIndex secondaryIndex : this.indexes) {
+                secondaryIndex.delete(oldRow, dataPointer);
+            }
         }
+        freeExternalValues(dataPage, (int) dataPointer);
+        dataPage.deleteRecord((int) dataPointer);
+        this.pager.flushPage(dataPage);
+        getFreeSpaceMap().update(dataPage);
+
+        node.removeLeafCell(index);
+        return true;
     }
 
     private void borrowFromLeftSibling(BTreeNode parentNode, int childIndexOfDeficitNode, BTreeNode nodeWithDeficit, BTreeNode leftSibling) throws IOException {
-        if (nodeWithDeficit.isLeaf()) {
+        if (nodeWithDeficit.isClustered()) {
+
+            int lastIndex = leftSibling.getKeyCount() - 1;
+            nodeWithDeficit.insertCell(0, leftSibling.getCell(lastIndex));
+            leftSibling.removeCell(lastIndex);
+
+            parentNode.setKey(childIndexOfDeficitNode - 1, nodeWithDeficit.getKey(0));
+
+        } else if (nodeWithDeficit.isLeaf()) {
 
             int siblingKeyCount = leftSibling.getKeyCount();
             int keyToMove = leftSibling.getKey(siblingKeyCount - 1);
             long dataPointerToMove = leftSibling.getDataPointer(siblingKeyCount - 1);
 
             leftSibling.setKeyCount(siblingKeyCount - 1);
-
-            for (int i = nodeWithDeficit.getKeyCount(); i > 0; i--) {
-                nodeWithDeficit.setKey(i, nodeWithDeficit.getKey(i - 1));
-                nodeWithDeficit.setDataPointer(i, nodeWithDeficit.getDataPointer(i - 1));
-            }
-
-            nodeWithDeficit.setKey(0, keyToMove);
-            nodeWithDeficit.setDataPointer(0, dataPointerToMove);
-            nodeWithDeficit.setKeyCount(nodeWithDeficit.getKeyCount() + 1);
+            nodeWithDeficit.insertLeafCell(0, keyToMove, dataPointerToMove);
 
             int parentKeyIndex = childIndexOfDeficitNode - 1;
             parentNode.setKey(parentKeyIndex, keyToMove);
@@ -491,7 +845,14 @@ public class Table {
     }
 
     private void borrowFromRightSibling(BTreeNode parentNode, int childIndexOfDeficitNode, BTreeNode nodeWithDeficit, BTreeNode rightSibling) throws IOException {
-        if (nodeWithDeficit.isLeaf()) {
+        if (nodeWithDeficit.isClustered()) {
+
+            nodeWithDeficit.insertCell(nodeWithDeficit.getKeyCount(), rightSibling.getCell(0));
+            rightSibling.removeCell(0);
+
+            parentNode.setKey(childIndexOfDeficitNode, rightSibling.getKey(0));
+
+        } else if (nodeWithDeficit.isLeaf()) {
 
             int keyToMove = rightSibling.getKey(0);
             long dataPointerToMove = rightSibling.getDataPointer(0);
@@ -501,12 +862,7 @@ public class Table {
             nodeWithDeficit.setDataPointer(nodeWithDeficitKeyCount, dataPointerToMove);
             nodeWithDeficit.setKeyCount(nodeWithDeficitKeyCount + 1);
 
-            int siblingKeyCount = rightSibling.getKeyCount();
-            for (int i = 0; i < siblingKeyCount - 1; i++) {
-                rightSibling.setKey(i, rightSibling.getKey(i + 1));
-                rightSibling.setDataPointer(i, rightSibling.getDataPointer(i + 1));
-            }
-            rightSibling.setKeyCount(siblingKeyCount - 1);
+            rightSibling.removeLeafCell(0);
 
             parentNode.setKey(childIndexOfDeficitNode, rightSibling.getKey(0));
 
@@ -545,15 +901,17 @@ public class Table {
         BTreeNode leftNode = new BTreeNode(pager.getPage(parentNode.getChildPointer(leftNodeIndex)), BTREE_MIN_DEGREE);
         BTreeNode rightNode = new BTreeNode(pager.getPage(parentNode.getChildPointer(rightNodeIndex)), BTREE_MIN_DEGREE);
 
-        if (rightNode.isLeaf()) {
+        if (rightNode.isClustered()) {
+
+            rightNode.copyCellsTo(leftNode, 0, leftNode.getKeyCount(), rightNode.getKeyCount());
+            leftNode.setNextSiblingPointer(rightNode.getNextSiblingPointer());
+
+        } else if (rightNode.isLeaf()) {
 
             int leftNodeKeyCount = leftNode.getKeyCount();
             int rightNodeKeyCount = rightNode.getKeyCount();
 
-            for (int i = 0; i < rightNodeKeyCount; i++) {
-                leftNode.setKey(leftNodeKeyCount + i, rightNode.getKey(i));
-                leftNode.setDataPointer(leftNodeKeyCount + i, rightNode.getDataPointer(i));
-            }
+            rightNode.copyLeafCellsTo(leftNode, 0, leftNodeKeyCount, rightNodeKeyCount);
             leftNode.setKeyCount(leftNodeKeyCount + rightNodeKeyCount);
             leftNode.setNextSiblingPointer(rightNode.getNextSiblingPointer());
 
@@ -566,83 +924,727 @@ public class Table {
             leftNode.setKey(leftNode.getKeyCount(), parentKeyToMove);
             leftNodeKeyCount += 1;
 
-            for (int i = 0; i < rightNodeKeyCount; i++) {
-                leftNode.setKey(leftNodeKeyCount + i, rightNode.getKey(i));
-            }
-            for (int i = 0; i <= rightNodeKeyCount; i++) {
-                leftNode.setChildPointer(leftNodeKeyCount + i, rightNode.getChildPointer(i));
-            }
+            rightNode.copyInternalCellsTo(leftNode, 0, leftNodeKeyCount, rightNodeKeyCount);
 
             leftNode.setKeyCount(leftNodeKeyCount + rightNode.getKeyCount());
         }
 
-        int parentKeyToRemoveIndex = rightNodeIndex - 1;
-        int parentNodeKeyCount = parentNode.getKeyCount();
-        for (int i = parentKeyToRemoveIndex; i < parentNodeKeyCount - 1; i++) {
-            parentNode.setKey(i, parentNode.getKey(i + 1));
-        }
-        for (int i = rightNodeIndex; i < parentNodeKeyCount; i++) {
-            parentNode.setChildPointer(i, parentNode.getChildPointer(i + 1));
-        }
-        parentNode.setKeyCount(parentNodeKeyCount - 1);
+        parentNode.removeInternalCell(rightNodeIndex - 1);
 
         this.pager.flushPage(parentNode.getPage());
         this.pager.flushPage(leftNode.getPage());
+        this.pager.freePage(rightNode.getPageNumber());
     }
 
     public boolean update(int keyToUpdate, Row newRowData) throws IOException {
-        long dataPointer = findDataOffset(keyToUpdate);
+        return update(keyToUpdate, CompactRow.of(newRowData, this.schema));
+    }
 
-        if (dataPointer == -1L) {
-            System.out.println("Chave " + keyToUpdate + " não encontrada para atualização.");
-            return false;
+    public boolean update(int keyToUpdate, CompactRow newRowData) throws IOException {
+        checkSchema(newRowData);
+        beginWrite();
+        try {
+            BTreeNode leaf = findLeafForUpdate(keyToUpdate);
+            int position = leaf.lowerBound(keyToUpdate);
+
+            if (position == leaf.getKeyCount() || leaf.getKey(position) != keyToUpdate) {
+                return false;
+            }
+
+            replaceRecord(leaf, position, null, newRowData);
+            return true;
+        } finally {
+            endWrite();
         }
+    }
 
-        delete(keyToUpdate);
-        insert(keyToUpdate, newRowData);
+    /**
+     * Atualiza só as colunas informadas, lendo a linha atual na mesma descida que localiza a chave.
+     */
+    public boolean updateColumns(int keyToUpdate, Map<String, Object> changes) throws IOException {
+        for (Column column : this.schema) {
+            if (column.ordinalPosition() == 1 && changes.containsKey(column.name())) {
+                throw new IllegalArgumentException("A chave primária '" + column.name() + "' não pode ser alterada.");
+            }
+        }
 
-        System.out.println("Chave " + keyToUpdate + " atualizada com sucesso.");
-        return true;
+        beginWrite();
+        try {
+            BTreeNode leaf = findLeafForUpdate(keyToUpdate);
+            int position = leaf.lowerBound(keyToUpdate);
+
+            if (position == leaf.getKeyCount() || leaf.getKey(position) != keyToUpdate) {
+                return false;
+            }
+
+            CompactRow oldRow = this.codec.deserialize(readRow(leaf, position));
+
+            CompactRow newRow = oldRow.copy();
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                int index = newRow.indexOf(change.getKey());
+                if (index < 0) {
+                    throw new IllegalArgumentException("Coluna '" + change.getKey() + "' não existe.");
+                }
+                newRow.set(index, change.getValue());
+            }
+            replaceRecord(leaf, position, oldRow, newRow);
+            return true;
+        } finally {
+            endWrite();
+        }
     }
 
-    public int getFirstDataPageNumber() {
-        return this.firstDataPageNumber;
+    /**
+     * Carrega uma tabela vazia a partir de linhas ordenadas pela chave, sem descer a árvore a cada linha.
+     * Os registros são gravados em sequência em uma cadeia nova de páginas de dados, as folhas são
+     * preenchidas por completo da esquerda para a direita e os níveis internos são montados no final.
+     * As entradas dos índices secundários vão para árvores à parte. A carga é confirmada a cada
+     * BULK_LOAD_LEAVES_PER_COMMIT folhas, mas nada disso fica ligado à tabela até o último commit, que
+     * publica a raiz, a cadeia de dados e os índices juntos. Se a carga falhar, as páginas já gravadas
+     * voltam para a lista de páginas livres e a tabela continua vazia; se o processo cair no meio, ela
+     * também continua vazia, e essas páginas ficam sem uso. Retorna o número de linhas carregadas.
+     */
+    public int bulkLoad(Iterator<KeyedRow> sortedRows) throws IOException {
+        return bulkLoad(sortedRows, (loader, keyedRow) -> loader.append(keyedRow.key(),
+                CompactRow.of(keyedRow.row(), this.schema)));
     }
 
-    public void printTree() throws IOException {
-        System.out.println("--- ESTRUTURA DA B+ TREE ---");
-        if (this.pager.getNumPages() == 0) {
-            System.out.println("Árvore está vazia.");
-            return;
+    /**
+     * Carga em massa da saída de um ExternalSorter. Quando a tabela gravaria os registros exatamente como
+     * o sorter os guarda, os bytes ordenados vão direto para as páginas de dados, sem passar por Row ou
+     * CompactRow; caso contrário cada registro é decodificado e gravado pelo codec da tabela.
+     */
+    public int bulkLoad(ExternalSorter sorter) throws IOException {
+        RowCodec sourceCodec = sorter.getCodec();
+        if (this.clustered || isColumnar() || !this.codec.hasSameRecordFormat(sourceCodec)) {
+            return bulkLoad(sorter.sorted());
         }
-        printNode(this.rootPageNumber, "");
-        System.out.println("--------------------------");
+        return bulkLoad(sorter.sortedRecords(), (loader, sortedRecord) -> loader.appendRecord(sortedRecord.key(),
+                sortedRecord.record(), sourceCodec));
     }
 
+    private interface BulkAppend<T> {
+        boolean append(BulkLoader loader, T item) throws IOException;
+    }
 
-    private void printNode(int pageNumber, String indent) throws IOException {
+    private <T> int bulkLoad(Iterator<T> sortedItems, BulkAppend<T> append) throws IOException {
+        lockForWrite();
+        try {
+            BulkLoader loader;
+            this.pager.beginOperation();
+            try {
+                BTreeNode rootNode = new BTreeNode(this.pager.getPage(this.rootPageNumber), BTREE_MIN_DEGREE);
+                if (!rootNode.isLeaf() || rootNode.getKeyCount() > 0) {
+                    throw new IllegalStateException("A carga em massa só pode ser feita em uma tabela vazia.");
+                }
+                loader = new BulkLoader();
+            } finally {
+                this.pager.endOperation();
+            }
 
-        Page page = pager.getPage(pageNumber);
-        BTreeNode node = new BTreeNode(page, BTREE_MIN_DEGREE);
+            try {
+                while (sortedItems.hasNext()) {
+                    this.pager.beginOperation();
+                    try {
+                        int filledLeaves = 0;
+                        while (filledLeaves < BULK_LOAD_LEAVES_PER_COMMIT && sortedItems.hasNext()) {
+                            if (append.append(loader, sortedItems.next())) {
+                                filledLeaves++;
+                            }
+                        }
+                    } finally {
+                        this.pager.endOperation();
+                    }
+                }
+
+                this.pager.beginOperation();
+                try {
+                    loader.finish();
+                } finally {
+                    this.pager.endOperation();
+                }
+            } catch (IOException | RuntimeException e) {
+                try {
+                    loader.discard();
+                } catch (IOException | RuntimeException discardFailure) {
+                    e.addSuppressed(discardFailure);
+                }
+                throw e;
+            }
+            return loader.rowCount;
+        } finally {
+            unlockForWrite();
+        }
+    }
 
-        if (node.isLeaf()) {
-            System.out.print(indent + "Folha (Pág " + pageNumber + ") chaves=[");
-            for (int i = 0; i < node.getKeyCount(); i++) {
-                System.out.print(node.getKey(i) + (i == node.getKeyCount() - 1 ? "" : ", "));
+    /**
+     * Reescreve os registros da tabela, na ordem da chave, em páginas de dados novas e totalmente
+     * ocupadas, trocando os ponteiros de dados das folhas e dos índices secundários. Cada commit move
+     * o registro, apagando-o da página antiga, e encadeia as páginas novas logo depois da primeira página
+     * da cadeia, então a cadeia da tabela sempre tem cada linha uma única vez. O último commit deixa na
+     * tabela só as páginas novas e devolve as antigas, já vazias, e as do mapa de espaço livre à lista de
+     * páginas livres. Retorna quantas páginas de dados a tabela deixou de ocupar.
+     *
+     * Um VACUUM que falha no meio para depois da última linha movida por inteiro, e o que já foi movido
+     * fica; se o processo cai, fica o que foi até o último commit. Nos dois casos a tabela continua
+     * consistente, com cada linha uma única vez e os índices apontando para ela, mas só em parte
+     * compactada: as páginas novas já estão na cadeia, fora do mapa de espaço livre, e as antigas,
+     * esvaziadas em parte, seguem no mapa com a categoria de antes, que é só uma dica. O próximo VACUUM
+     * termina a compactação e devolve essas páginas.
+     *
+     * Tabelas clustered não têm páginas de dados: o VACUUM só compacta as células das folhas.
+     */
+    public int vacuum() throws IOException {
+        lockForWrite();
+        try {
+            if (this.clustered) {
+                compactLeaves();
+                return 0;
             }
-            System.out.println("] -> (próx: " + node.getNextSiblingPointer() + ")");
-        } else {
-            System.out.print(indent + "Interno (Pág " + pageNumber + ") chaves=[");
-            for (int i = 0; i < node.getKeyCount(); i++) {
-                System.out.print(node.getKey(i) + (i == node.getKeyCount() - 1 ? "" : ", "));
+
+            List<Integer> oldPages = new ArrayList<>();
+            this.pager.beginOperation();
+            try {
+                int pageNumber = this.firstDataPageNumber;
+                while (pageNumber != BTreeNode.NULL_POINTER) {
+                    oldPages.add(pageNumber);
+                    pageNumber = this.pager.getPage(pageNumber).getNextDataPagePointer();
+                }
+            } finally {
+                this.pager.endOperation();
+            }
+            int oldDataPageCount = oldPages.size();
+            if (this.firstDataPageNumber != BTreeNode.NULL_POINTER) {
+                oldPages.addAll(FreeSpaceMap.mapPageNumbers(this.pager, this.firstDataPageNumber));
+            }
+
+            int newFirstDataPageNumber = BTreeNode.NULL_POINTER;
+            int newDataPageCount = 0;
+            int dataPageNumber = BTreeNode.NULL_POINTER;
+
+            try (Cursor cursor = start()) {
+                while (!cursor.isEndOfTable()) {
+                    this.pager.beginOperation();
+                    try {
+                        for (int i = 0; i < VACUUM_ROWS_PER_COMMIT && !cursor.isEndOfTable(); i++) {
+                            long oldDataPointer = cursor.getDataPointer();
+                            Page oldDataPage = this.pager.getPage((int) (oldDataPointer >> 32));
+                            byte[] record = oldDataPage.getRecord((int) oldDataPointer);
+                            // Decodificado antes de mexer nas páginas: se falhar, a linha fica onde estava.
+                            CompactRow row = this.indexes.isEmpty() ? null : this.codec.deserialize(record);
+
+                            Page dataPage = dataPageNumber == BTreeNode.NULL_POINTER ? null : this.pager.getPage(dataPageNumber);
+                            if (dataPage == null || dataPage.getFreeSpace() < record.length + Page.SLOT_SIZE) {
+                                Page newDataPage = newDataPage();
+                                // A página nova entra na cadeia atual logo depois da anterior, ou da
+                                // primeira página da tabela, no mesmo commit que recebe os registros.
+                                Page previous = dataPage == null ? this.pager.getPage(this.firstDataPageNumber) : dataPage;
+                                newDataPage.setNextDataPagePointer(previous.getNextDataPagePointer());
+                                previous.setNextDataPagePointer(newDataPage.getPageNumber());
+                                if (dataPage == null) {
+                                    newFirstDataPageNumber = newDataPage.getPageNumber();
+                                }
+                                dataPage = newDataPage;
+                                dataPageNumber = newDataPage.getPageNumber();
+                                newDataPageCount++;
+                            }
+                            long newDataPointer = toDataPointer(dataPageNumber, dataPage.addRecord(record));
+                            cursor.setDataPointer(newDataPointer);
+                            // Os valores externos passam para o registro novo, então só o slot é apagado.
+                            oldDataPage.deleteRecord((int) oldDataPointer);
+
+                            if (row != null) {
+                                for (SecondaryIndex index : this.indexes) {
+                                    index.update(row, oldDataPointer, row, newDataPointer);
+                                }
+                            }
+                            cursor.advance();
+                        }
+                    } finally {
+                        this.pager.endOperation();
+                    }
+                }
+            }
+
+            this.pager.beginOperation();
+            try {
+                if (newFirstDataPageNumber == BTreeNode.NULL_POINTER) {
+                    Page emptyDataPage = newDataPage();
+                    newFirstDataPageNumber = emptyDataPage.getPageNumber();
+                    newDataPageCount++;
+                } else {
+                    this.pager.getPage(dataPageNumber).setNextDataPagePointer(BTreeNode.NULL_POINTER);
+                }
+                this.firstDataPageNumber = newFirstDataPageNumber;
+                this.freeSpaceMap = null;
+                notifyMetadataChanged();
+                for (int oldPageNumber : oldPages) {
+                    this.pager.freePage(oldPageNumber);
+                }
+            } finally {
+                this.pager.endOperation();
+            }
+
+            return oldDataPageCount - newDataPageCount;
+        } finally {
+            unlockForWrite();
+        }
+    }
+
+    private void compactLeaves() throws IOException {
+        int leafPageNumber = findFirstLeafPageNumber();
+        BTreeNode leaf = new BTreeNode(BTREE_MIN_DEGREE);
+
+        while (leafPageNumber != BTreeNode.NULL_POINTER) {
+            this.pager.beginOperation();
+            try {
+                for (int i = 0; i < BULK_LOAD_LEAVES_PER_COMMIT && leafPageNumber != BTreeNode.NULL_POINTER; i++) {
+                    leaf.wrap(this.pager.getPage(leafPageNumber));
+                    if (leaf.getFragmentedBytes() > 0) {
+                        leaf.compactCells();
+                    }
+                    leafPageNumber = leaf.getNextSiblingPointer();
+                }
+            } finally {
+                this.pager.endOperation();
+            }
+        }
+    }
+
+    private record LevelEntry(int firstKey, int pageNumber) {}
+
+    private final class BulkLoader {
+
+        private final List<LevelEntry> leaves;
+        private final List<Integer> dataPages;
+        private final List<Integer> internalPages;
+        private final List<SecondaryIndex> pendingIndexes;
+        private final RecordView recordView;
+        private int leafPageNumber;
+        private int lastKey;
+        private int rowCount;
+        private boolean published;
+
+        private BulkLoader() throws IOException {
+            this.leaves = new ArrayList<>();
+            this.dataPages = new ArrayList<>();
+            this.internalPages = new ArrayList<>();
+            this.pendingIndexes = new ArrayList<>();
+            this.recordView = new RecordView(codec);
+            this.leafPageNumber = BTreeNode.NULL_POINTER;
+            for (SecondaryIndex index : indexes) {
+                pendingIndexes.add(index.newDetached());
+            }
+        }
+
+        /**
+         * Acrescenta uma linha na última folha. Retorna true quando a folha fica cheia.
+         */
+        private boolean append(int key, CompactRow row) throws IOException {
+            checkOrder(key);
+            if (clustered) {
+                return appendCell(key, row, buildCell(key, row));
+            }
+
+            int slotId = appendRecord(row);
+            long dataPointer = toDataPointer(dataPages.get(dataPages.size() - 1), slotId);
+            for (SecondaryIndex index : pendingIndexes) {
+                index.insert(row, dataPointer);
             }
-            System.out.println("]");
+            return appendToLeaf(key, dataPointer);
+        }
+
+        /**
+         * Versão de append para um registro já serializado por sourceCodec, no mesmo formato da tabela: os
+         * bytes são copiados para a página de dados e as chaves dos índices lidas deles. Um registro que
+         * pode ter uma VARCHAR grande demais para ficar nele é decodificado e gravado pelo codec da
+         * tabela, que a manda para páginas de overflow.
+         */
+        private boolean appendRecord(int key, byte[] record, RowCodec sourceCodec) throws IOException {
+            if (codec.hasExternalValues() && record.length > RowCodec.MAX_INLINE_VARCHAR_SIZE) {
+                return append(key, sourceCodec.deserialize(record));
+            }
+            checkOrder(key);
+
+            int slotId = appendRecordBytes(record);
+            long dataPointer = toDataPointer(dataPages.get(dataPages.size() - 1), slotId);
+            if (!pendingIndexes.isEmpty()) {
+                RecordView view = recordView.wrap(record);
+                for (SecondaryIndex index : pendingIndexes) {
+                    index.insert(view, dataPointer);
+                }
+            }
+            return appendToLeaf(key, dataPointer);
+        }
 
-            for (int i = 0; i <= node.getKeyCount(); i++) {
-                int childPageNumber = node.getChildPointer(i);
-                printNode(childPageNumber, indent + "  ");
+        private void checkOrder(int key) {
+            if (rowCount > 0 && key <= lastKey) {
+                throw new IllegalArgumentException("Carga em massa exige chaves ordenadas e sem repetição: "
+                        + key + " veio depois de " + lastKey + ".");
             }
         }
+
+        private boolean appendToLeaf(int key, long dataPointer) throws IOException {
+            BTreeNode leaf;
+            if (leafPageNumber == BTreeNode.NULL_POINTER) {
+                leaf = newLeaf(key);
+            } else {
+                leaf = new BTreeNode(pager.getPage(leafPageNumber), BTREE_MIN_DEGREE);
+                if (leaf.getKeyCount() == layout.getMaxLeafKeys()) {
+                    BTreeNode nextLeaf = newLeaf(key);
+                    leaf.setNextSiblingPointer(nextLeaf.getPageNumber());
+                    leaf = nextLeaf;
+                }
+            }
+
+            int keyCount = leaf.getKeyCount();
+            leaf.setKey(keyCount, key);
+            leaf.setDataPointer(keyCount, dataPointer);
+            leaf.setKeyCount(keyCount + 1);
+
+            lastKey = key;
+            rowCount++;
+            return keyCount + 1 == layout.getMaxLeafKeys();
+        }
+
+        /**
+         * Versão clustered de append: a célula vai para a última folha enquanto couber.
+         */
+        private boolean appendCell(int key, CompactRow row, byte[] cell) throws IOException {
+            for (SecondaryIndex index : pendingIndexes) {
+                index.insert(row, key);
+            }
+
+            BTreeNode leaf;
+            if (leafPageNumber == BTreeNode.NULL_POINTER) {
+                leaf = newLeaf(key);
+            } else {
+                leaf = new BTreeNode(pager.getPage(leafPageNumber), BTREE_MIN_DEGREE);
+                if (leaf.getAvailableCellSpace() < cell.length + Page.SLOT_SIZE) {
+                    BTreeNode nextLeaf = newLeaf(key);
+                    leaf.setNextSiblingPointer(nextLeaf.getPageNumber());
+                    leaf = nextLeaf;
+                }
+            }
+            leaf.insertCell(leaf.getKeyCount(), cell);
+
+            lastKey = key;
+            rowCount++;
+            return layout.isFull(leaf);
+        }
+
+        /**
+         * Grava o registro na última página da cadeia nova, que só entra na tabela em finish. Por isso
+         * as páginas não passam pelo mapa de espaço livre, que é remontado a partir da cadeia depois.
+         */
+        private int appendRecord(CompactRow row) throws IOException {
+            int recordSize = codec.sizeOf(row);
+            Page dataPage = lastDataPageWithSpace(recordSize);
+            if (dataPage.isPaxPage()) {
+                return dataPage.addRecord(codec.serialize(row));
+            }
+            int slotId = dataPage.allocateRecord(recordSize);
+            codec.write(row, dataPage.getBuffer(), dataPage.getRecordOffset(slotId));
+            return slotId;
+        }
+
+        private int appendRecordBytes(byte[] record) throws IOException {
+            return lastDataPageWithSpace(record.length).addRecord(record);
+        }
+
+        private Page lastDataPageWithSpace(int recordSize) throws IOException {
+            Page dataPage = dataPages.isEmpty() ? null : pager.getPage(dataPages.get(dataPages.size() - 1));
+
+            if (dataPage == null || dataPage.getAvailableSpace() < recordSize + Page.SLOT_SIZE) {
+                Page newDataPage = newDataPage();
+                if (dataPage != null) {
+                    dataPage.setNextDataPagePointer(newDataPage.getPageNumber());
+                }
+                dataPage = newDataPage;
+                dataPages.add(newDataPage.getPageNumber());
+            }
+            return dataPage;
+        }
+
+        private BTreeNode newLeaf(int firstKey) throws IOException {
+            Page leafPage = clustered ? pager.newPage().initializeAsClusteredLeaf() : pager.newPage().initializeAsLeaf();
+            leafPageNumber = leafPage.getPageNumber();
+            leaves.add(new LevelEntry(firstKey, leafPageNumber));
+            return new BTreeNode(leafPage, BTREE_MIN_DEGREE);
+        }
+
+        /**
+         * Equilibra a última folha, monta os níveis internos e liga tudo à tabela: a raiz, a cadeia de
+         * dados nova no lugar da antiga, que numa tabela vazia só tem registros apagados, e o conteúdo das
+         * árvores à parte nas raízes dos índices. A raiz vazia e a cadeia antigas voltam para a lista de
+         * páginas livres.
+         */
+        private void finish() throws IOException {
+            if (leaves.isEmpty()) {
+                discard();
+                return;
+            }
+            rebalanceLastLeaf();
+
+            List<LevelEntry> level = leaves;
+            while (level.size() > 1) {
+                level = buildInternalLevel(level);
+            }
+
+            List<Integer> oldDataPages = new ArrayList<>();
+            if (!clustered && firstDataPageNumber != BTreeNode.NULL_POINTER) {
+                int pageNumber = firstDataPageNumber;
+                while (pageNumber != BTreeNode.NULL_POINTER) {
+                    oldDataPages.add(pageNumber);
+                    pageNumber = pager.getPage(pageNumber).getNextDataPagePointer();
+                }
+                oldDataPages.addAll(FreeSpaceMap.mapPageNumbers(pager, firstDataPageNumber));
+            }
+
+            for (int i = 0; i < indexes.size(); i++) {
+                indexes.get(i).adopt(pendingIndexes.get(i));
+            }
+            int oldRootPageNumber = rootPageNumber;
+            rootPageNumber = level.get(0).pageNumber();
+            if (!clustered) {
+                firstDataPageNumber = dataPages.get(0);
+                freeSpaceMap = null;
+            }
+            published = true;
+            notifyMetadataChanged();
+
+            pager.freePage(oldRootPageNumber);
+            for (int pageNumber : oldDataPages) {
+                pager.freePage(pageNumber);
+            }
+        }
+
+        /**
+         * Devolve à lista de páginas livres tudo o que a carga gravou, inclusive os valores guardados
+         * fora dos registros, enquanto nada disso foi ligado à tabela.
+         */
+        private void discard() throws IOException {
+            if (published) {
+                return;
+            }
+            List<Integer> treePages = new ArrayList<>(internalPages);
+            for (LevelEntry leaf : leaves) {
+                treePages.add(leaf.pageNumber());
+            }
+            freeLoadedPages(treePages, false);
+            freeLoadedPages(dataPages, true);
+
+            pager.beginOperation();
+            try {
+                for (SecondaryIndex index : pendingIndexes) {
+                    index.freePages();
+                }
+            } finally {
+                pager.endOperation();
+            }
+            leaves.clear();
+            dataPages.clear();
+            internalPages.clear();
+            pendingIndexes.clear();
+        }
+
+        private void freeLoadedPages(List<Integer> pages, boolean dataPages) throws IOException {
+            for (int start = 0; start < pages.size(); start += BULK_LOAD_LEAVES_PER_COMMIT) {
+                pager.beginOperation();
+                try {
+                    for (int i = start; i < Math.min(pages.size(), start + BULK_LOAD_LEAVES_PER_COMMIT); i++) {
+                        Page page = pager.getPage(pages.get(i));
+                        if (dataPages) {
+                            for (int slotId = 0; slotId < page.getRowCount(); slotId++) {
+                                freeExternalValues(page, slotId);
+                            }
+                        } else if (page.getPageType() == PageType.CLUSTERED_LEAF_NODE.value) {
+                            BTreeNode leaf = new BTreeNode(page, BTREE_MIN_DEGREE);
+                            for (int j = 0; j < leaf.getKeyCount(); j++) {
+                                freeOverflow(leaf, j);
+                            }
+                        }
+                        pager.freePage(page.getPageNumber());
+                    }
+                } finally {
+                    pager.endOperation();
+                }
+            }
+        }
+
+        private void rebalanceLastLeaf() throws IOException {
+            int lastIndex = leaves.size() - 1;
+            if (lastIndex == 0) {
+                return;
+            }
+
+            BTreeNode lastLeaf = new BTreeNode(pager.getPage(leaves.get(lastIndex).pageNumber()), BTREE_MIN_DEGREE);
+            if (clustered) {
+                rebalanceLastClusteredLeaf(lastIndex, lastLeaf);
+                return;
+            }
+            int missing = layout.getMinLeafKeys() - lastLeaf.getKeyCount();
+            if (missing <= 0) {
+                return;
+            }
+
+            // A folha anterior está cheia, então pode ceder as chaves que faltam sem ficar abaixo do mínimo.
+            BTreeNode previousLeaf = new BTreeNode(pager.getPage(leaves.get(lastIndex - 1).pageNumber()), BTREE_MIN_DEGREE);
+            int lastKeyCount = lastLeaf.getKeyCount();
+            int previousKeyCount = previousLeaf.getKeyCount();
+
+            for (int i = lastKeyCount - 1; i >= 0; i--) {
+                lastLeaf.setKey(i + missing, lastLeaf.getKey(i));
+                lastLeaf.setDataPointer(i + missing, lastLeaf.getDataPointer(i));
+            }
+            for (int i = 0; i < missing; i++) {
+                lastLeaf.setKey(i, previousLeaf.getKey(previousKeyCount - missing + i));
+                lastLeaf.setDataPointer(i, previousLeaf.getDataPointer(previousKeyCount - missing + i));
+            }
+            lastLeaf.setKeyCount(lastKeyCount + missing);
+            previousLeaf.setKeyCount(previousKeyCount - missing);
+
+            leaves.set(lastIndex, new LevelEntry(lastLeaf.getKey(0), lastLeaf.getPageNumber()));
+        }
+
+        private void rebalanceLastClusteredLeaf(int lastIndex, BTreeNode lastLeaf) throws IOException {
+            BTreeNode previousLeaf = new BTreeNode(pager.getPage(leaves.get(lastIndex - 1).pageNumber()), BTREE_MIN_DEGREE);
+            while (layout.isAtMinimum(lastLeaf) && layout.canLend(previousLeaf)) {
+                int previousLastIndex = previousLeaf.getKeyCount() - 1;
+                lastLeaf.insertCell(0, previousLeaf.getCell(previousLastIndex));
+                previousLeaf.removeCell(previousLastIndex);
+            }
+            leaves.set(lastIndex, new LevelEntry(lastLeaf.getKey(0), lastLeaf.getPageNumber()));
+        }
+
+        /**
+         * Distribui os filhos de forma uniforme entre o menor número possível de nós, o que mantém
+         * todos eles acima do mínimo de chaves.
+         */
+        private List<LevelEntry> buildInternalLevel(List<LevelEntry> children) throws IOException {
+            int maxChildren = layout.getMaxInternalKeys() + 1;
+            int nodeCount = (children.size() + maxChildren - 1) / maxChildren;
+            List<LevelEntry> parents = new ArrayList<>(nodeCount);
+
+            int nextChild = 0;
+            for (int n = 0; n < nodeCount; n++) {
+                int childCount = children.size() / nodeCount + (n < children.size() % nodeCount ? 1 : 0);
+
+                Page page = pager.newPage();
+                page.setPageType(PageType.BTREE_INTERNAL_NODE.value);
+                internalPages.add(page.getPageNumber());
+                BTreeNode node = new BTreeNode(page, BTREE_MIN_DEGREE);
+
+                for (int i = 0; i < childCount; i++) {
+                    LevelEntry child = children.get(nextChild + i);
+                    node.setChildPointer(i, child.pageNumber());
+                    if (i > 0) {
+                        node.setKey(i - 1, child.firstKey());
+                    }
+                }
+                node.setKeyCount(childCount - 1);
+
+                parents.add(new LevelEntry(children.get(nextChild).firstKey(), page.getPageNumber()));
+                nextChild += childCount;
+            }
+            return parents;
+        }
+    }
+
+    /**
+     * Lock de leitura da tabela, que os cursores seguram do começo ao fim. Uma thread com o lock de
+     * escrita também pode ler.
+     */
+    void lockForRead() {
+        this.lock.readLock().lock();
+    }
+
+    /**
+     * Tenta o lock de leitura sem esperar; falha só se outra thread tem o lock de escrita.
+     */
+    boolean tryLockForRead() {
+        return this.lock.readLock().tryLock();
+    }
+
+    void unlockForRead() {
+        this.lock.readLock().unlock();
+    }
+
+    /**
+     * Lock de escrita da tabela. A thread não pode ter um cursor aberto na própria tabela, já que o lock
+     * de leitura não é promovido e a escrita esperaria por ela mesma.
+     */
+    void lockForWrite() {
+        if (!this.lock.isWriteLockedByCurrentThread() && this.lock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("A tabela não pode ser alterada com um cursor aberto nela pela mesma thread.");
+        }
+        this.lock.writeLock().lock();
+    }
+
+    void unlockForWrite() {
+        this.lock.writeLock().unlock();
+    }
+
+    private void beginWrite() {
+        lockForWrite();
+        this.pager.beginOperation();
+    }
+
+    private void endWrite() throws IOException {
+        try {
+            this.pager.endOperation();
+        } finally {
+            unlockForWrite();
+        }
+    }
+
+    public void addIndex(SecondaryIndex index) {
+        this.indexes.add(index);
+    }
+
+    public SecondaryIndex getIndex(String columnName) {
+        for (SecondaryIndex index : this.indexes) {
+            if (index.getColumn().name().equalsIgnoreCase(columnName)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    public void setMetadataListener(TableMetadataListener metadataListener) {
+        this.metadataListener = metadataListener;
+    }
+
+    private void notifyMetadataChanged() throws IOException {
+        if (this.metadataListener != null) {
+            this.metadataListener.onMetadataChanged(this);
+        }
+    }
+
+    public boolean isClustered() {
+        return this.clustered;
+    }
+
+    /**
+     * Se a tabela guarda as linhas em páginas PAX, o que é lido da primeira página de dados.
+     */
+    public boolean isColumnar() throws IOException {
+        return getDataPageType() == PageType.PAX_DATA_PAGE.value;
+    }
+
+    /**
+     * Se as páginas de dados da tabela são gravadas comprimidas, o que também vem da primeira delas.
+     */
+    public boolean isCompressed() throws IOException {
+        return getDataPageType() == PageType.COMPRESSED_DATA_PAGE.value;
+    }
+
+    private byte getDataPageType() {
+        return this.dataPageType;
+    }
+
+    public int getFirstDataPageNumber() {
+        return this.firstDataPageNumber;
     }
 
     public int getRootPageNumber() {
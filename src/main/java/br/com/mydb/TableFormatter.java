@@ -1,42 +1,48 @@
 package br.com.mydb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class TableFormatter {
 
     public static void printTable(List<Column> schema, List<Row> rows) {
-        Map<String, Integer> columnWidths = new HashMap<>();
+        List<CompactRow> compactRows = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            compactRows.add(CompactRow.of(row, schema));
+        }
+        printRows(schema, compactRows);
+    }
 
-        for (Column col : schema) {
-            columnWidths.put(col.name(), col.name().length());
+    /**
+     * Mesma tabela a partir das linhas compactas; as larguras ficam em um array indexado pela
+     * posição da coluna, sem procurar nada pelo nome.
+     */
+    public static void printRows(List<Column> schema, List<CompactRow> rows) {
+        int[] columnWidths = new int[schema.size()];
+
+        for (int i = 0; i < schema.size(); i++) {
+            columnWidths[i] = schema.get(i).name().length();
         }
 
-        for (Row row : rows) {
-            for (Column col : schema) {
-                Object value = row.get(col.name());
+        for (CompactRow row : rows) {
+            for (int i = 0; i < schema.size(); i++) {
+                Object value = row.get(i);
                 if (value != null) {
-                    int valueWidth = String.valueOf(value).length();
-                    if (valueWidth > columnWidths.get(col.name())) {
-                        columnWidths.put(col.name(), valueWidth);
-                    }
+                    columnWidths[i] = Math.max(columnWidths[i], String.valueOf(value).length());
                 }
             }
         }
 
         StringBuilder separator = new StringBuilder();
-        for (Column col : schema) {
+        for (int width : columnWidths) {
             separator.append("+");
-            separator.append("-".repeat(columnWidths.get(col.name()) + 2));
+            separator.append("-".repeat(width + 2));
         }
         separator.append("+");
 
         StringBuilder header = new StringBuilder();
-        for (Column col : schema) {
-            int width = columnWidths.get(col.name());
-            header.append(String.format("| %-" + width + "s ", col.name()));
+        for (int i = 0; i < schema.size(); i++) {
+            header.append(String.format("| %-" + columnWidths[i] + "s ", schema.get(i).name()));
         }
         header.append("|");
 
@@ -44,12 +50,10 @@ public class TableFormatter {
         System.out.println(header);
         System.out.println(separator);
 
-        for (Row row : rows) {
+        for (CompactRow row : rows) {
             StringBuilder rowLine = new StringBuilder();
-            for (Column col : schema) {
-                Object value = row.get(col.name());
-                int width = columnWidths.get(col.name());
-                rowLine.append(String.format("| %-" + width + "s ", value));
+            for (int i = 0; i < schema.size(); i++) {
+                rowLine.append(String.format("| %-" + columnWidths[i] + "s ", row.get(i)));
             }
             rowLine.append("|");
             System.out.println(rowLine);
@@ -57,4 +61,4 @@ public class TableFormatter {
         System.out.println(separator);
         System.out.println(rows.size() + " linha(s) encontradas.");
     }
-}
\ No newline at end of file
+}
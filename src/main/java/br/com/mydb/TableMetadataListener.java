@@ -0,0 +1,9 @@
+package br.com.mydb;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface TableMetadataListener {
+
+    void onMetadataChanged(Table table) throws IOException;
+}
@@ -0,0 +1,190 @@
+package br.com.mydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Log de escrita antecipada com imagens completas de página.
+ *
+ * Cada operação confirmada vira uma sequência de quadros PAGE seguida de um quadro COMMIT, gravados
+ * com uma única escrita sequencial. O fsync é feito em grupo: quem chega ao sync depois de outra
+ * thread já ter sincronizado além da sua posição não precisa sincronizar de novo.
+ */
+public class WriteAheadLog {
+
+    public static final String FILE_SUFFIX = "-wal";
+
+    private static final int FRAME_HEADER_SIZE = 16; // tipo, página, tamanho do conteúdo, crc
+    private static final int PAGE_FRAME = 1;
+    private static final int COMMIT_FRAME = 2;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int pageSize;
+    private final CRC32 crc;
+
+    private volatile long writePosition;
+    private long durablePosition;
+    private final Object syncLock;
+
+    public WriteAheadLog(String databaseFilePath, int pageSize) throws IOException {
+        this.path = Path.of(databaseFilePath + FILE_SUFFIX);
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.crc = new CRC32();
+        this.writePosition = channel.size();
+        this.durablePosition = writePosition;
+        this.syncLock = new Object();
+    }
+
+    public void commit(Collection<Page> pages, int numPages) throws IOException {
+        long commitEnd = append(pages, numPages);
+        sync(commitEnd);
+    }
+
+    private synchronized long append(Collection<Page> pages, int numPages) throws IOException {
+        int frameCount = pages.size() + 1;
+        ByteBuffer frames = ByteBuffer.allocate(pages.size() * (FRAME_HEADER_SIZE + pageSize)
+                + FRAME_HEADER_SIZE + Integer.BYTES);
+
+        for (Page page : pages) {
+            int contentOffset = frames.position() + FRAME_HEADER_SIZE;
+            frames.put(contentOffset, page.getBuffer(), 0, pageSize);
+            writeFrameHeader(frames, PAGE_FRAME, page.getPageNumber(), contentOffset, pageSize);
+            frames.position(contentOffset + pageSize);
+        }
+
+        int contentOffset = frames.position() + FRAME_HEADER_SIZE;
+        frames.putInt(contentOffset, numPages);
+        writeFrameHeader(frames, COMMIT_FRAME, frameCount, contentOffset, Integer.BYTES);
+        frames.position(contentOffset + Integer.BYTES);
+
+        frames.flip();
+        long position = writePosition;
+        while (frames.hasRemaining()) {
+            position += channel.write(frames, position);
+        }
+        writePosition = position;
+        return position;
+    }
+
+    private void writeFrameHeader(ByteBuffer frames, int type, int pageNumber, int contentOffset, int length) {
+        crc.reset();
+        crc.update(frames.slice(contentOffset, length));
+
+        int headerOffset = contentOffset - FRAME_HEADER_SIZE;
+        frames.putInt(headerOffset, type);
+        frames.putInt(headerOffset + 4, pageNumber);
+        frames.putInt(headerOffset + 8, length);
+        frames.putInt(headerOffset + 12, (int) crc.getValue());
+    }
+
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (durablePosition >= position) {
+                return;
+            }
+            long target = writePosition;
+            channel.force(false);
+            durablePosition = target;
+        }
+    }
+
+    /**
+     * Reaplica no arquivo principal as páginas de todas as operações confirmadas que estão no log.
+     * Um quadro incompleto ou com crc inválido marca o fim do log. Retorna o número de páginas do banco
+     * registrado no último commit, ou -1 se não houver nada para reaplicar.
+     */
+    public synchronized int recover(PageStore pageStore) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        int committedNumPages = -1;
+        Map<Integer, byte[]> pendingPages = new LinkedHashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+
+        while (position + FRAME_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            int type = header.getInt(0);
+            int pageNumber = header.getInt(4);
+            int length = header.getInt(8);
+            int checksum = header.getInt(12);
+
+            boolean validLength = (type == PAGE_FRAME && length == pageSize)
+                    || (type == COMMIT_FRAME && length == Integer.BYTES);
+            if (!validLength || position + FRAME_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer content = ByteBuffer.allocate(length);
+            readFully(content, position + FRAME_HEADER_SIZE);
+            crc.reset();
+            crc.update(content.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            position += FRAME_HEADER_SIZE + length;
+
+            if (type == PAGE_FRAME) {
+                pendingPages.put(pageNumber, content.array());
+                continue;
+            }
+
+            for (Map.Entry<Integer, byte[]> entry : pendingPages.entrySet()) {
+                ByteBuffer buffer = pageStore.allocatePage(entry.getKey());
+                buffer.put(0, entry.getValue());
+                pageStore.writePage(new Page(entry.getKey(), buffer));
+            }
+            pendingPages.clear();
+            committedNumPages = content.getInt(0);
+        }
+
+        if (committedNumPages != -1) {
+            pageStore.sync();
+        }
+        reset();
+        return committedNumPages;
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position());
+            if (read < 0) {
+                throw new IOException("Fim inesperado do log em " + position + ".");
+            }
+        }
+    }
+
+    /**
+     * Descarta o conteúdo do log. Só pode ser chamado depois de todas as páginas registradas terem
+     * sido gravadas e sincronizadas no arquivo principal.
+     */
+    public synchronized void reset() throws IOException {
+        synchronized (syncLock) {
+            channel.truncate(0);
+            channel.force(true);
+            writePosition = 0;
+            durablePosition = 0;
+        }
+    }
+
+    public long size() {
+        return writePosition;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        if (Files.size(path) == 0) {
+            Files.delete(path);
+        }
+    }
+}
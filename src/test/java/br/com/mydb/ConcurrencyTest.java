@@ -0,0 +1,218 @@
+package br.com.mydb;
+
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Escritores em faixas de chaves separadas contra leitores que varrem a tabela e o índice ao mesmo
+ * tempo, com um buffer pool pequeno para forçar despejos. No fim a tabela, o índice e o arquivo reaberto
+ * precisam ter exatamente as linhas esperadas: uma linha perdida ou repetida faz o teste falhar.
+ */
+class ConcurrencyTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 3;
+    private static final int KEYS = 8000;
+    private static final int AGES = 50;
+    private static final int CACHE_SIZE_IN_PAGES = 64;
+
+    private static final List<Column> SCHEMA = List.of(
+            new Column("id", DataType.INTEGER, 1),
+            new Column("nome", DataType.VARCHAR, 32),
+            new Column("idade", DataType.INTEGER, 2));
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @EnumSource(StorageBackend.class)
+    @Timeout(120)
+    void writersAndReadersKeepEveryRowExactlyOnce(StorageBackend backend) throws Exception {
+        String path = this.directory.resolve("concorrencia.bd").toString();
+        Database database = new Database(path, backend, CACHE_SIZE_IN_PAGES);
+        database.createTable("t", SCHEMA);
+        database.createIndex("t_idade", "t", "idade");
+        Table table = database.openTable("t");
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(start(failure, () -> write(table, writer)));
+        }
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            int reader = r;
+            readers.add(start(failure, () -> {
+                while (writing.get() && failure.get() == null) {
+                    read(table, reader);
+                }
+            }));
+        }
+
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Falha em uma das threads.", failure.get());
+        }
+
+        assertFinalState(table);
+        database.close(Map.of("t", table));
+
+        Database reopened = new Database(path, backend, CACHE_SIZE_IN_PAGES);
+        Table reopenedTable = reopened.openTable("t");
+        assertFinalState(reopenedTable);
+        reopened.close(Map.of("t", reopenedTable));
+    }
+
+    /**
+     * Cada escritor insere as suas chaves em ordem embaralhada, exclui as múltiplas de 3 e reescreve as
+     * múltiplas de 5 que sobraram, alternando com os outros escritores nas mesmas folhas.
+     */
+    private static void write(Table table, int writer) throws IOException {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = writer; key < KEYS; key += WRITERS) {
+            keys.add(key);
+        }
+        Collections.shuffle(keys, new Random(writer));
+
+        for (int key : keys) {
+            table.insert(key, row(key, "usuario_" + key));
+        }
+        for (int key : keys) {
+            if (key % 3 == 0) {
+                assertTrue(table.delete(key), "chave " + key + " sumiu antes de ser excluída");
+            }
+        }
+        for (int key : keys) {
+            if (key % 3 != 0 && key % 5 == 0) {
+                assertFalse(table.upsert(key, row(key, "alterado_" + key)), "chave " + key + " sumiu antes do upsert");
+            }
+        }
+    }
+
+    /**
+     * Durante as escritas uma varredura não pode ver chaves fora de ordem ou repetidas, nem linhas com
+     * conteúdo de outra chave, e as buscas pelo índice só podem devolver linhas com o valor pedido.
+     */
+    private static void read(Table table, int reader) throws IOException {
+        int previousKey = Integer.MIN_VALUE;
+        try (Cursor cursor = table.start()) {
+            while (!cursor.isEndOfTable()) {
+                int key = cursor.getKey();
+                assertTrue(key > previousKey, "chave " + key + " depois de " + previousKey);
+                assertEquals(key, cursor.getRecord().get("id"));
+                previousKey = key;
+                cursor.advance();
+            }
+        }
+
+        int age = reader * 7 % AGES;
+        try (Cursor cursor = table.getIndex("idade").scanRange(age, age, true, true)) {
+            while (!cursor.isEndOfTable()) {
+                assertEquals(age, cursor.getRecord().get("idade"));
+                cursor.advance();
+            }
+        }
+    }
+
+    private static void assertFinalState(Table table) throws IOException {
+        int expectedKey = 0;
+        int rows = 0;
+        try (Cursor cursor = table.start()) {
+            while (!cursor.isEndOfTable()) {
+                while (expectedKey % 3 == 0) {
+                    expectedKey++;
+                }
+                assertEquals(expectedKey, cursor.getKey(), "linha perdida ou repetida");
+                assertEquals(expectedRow(expectedKey).getValues(), cursor.getRecord().getValues());
+                expectedKey++;
+                rows++;
+                cursor.advance();
+            }
+        }
+        assertEquals(expectedRowCount(), rows);
+
+        for (int key = 0; key < KEYS; key += 3) {
+            assertNull(table.find(key), "chave excluída " + key + " ainda existe");
+        }
+        for (int key = 5; key < KEYS; key += 15) {
+            Row row = table.find(key);
+            assertNotNull(row, "chave " + key + " perdida");
+            assertEquals(expectedRow(key).getValues(), row.getValues());
+        }
+
+        Set<Integer> indexed = new HashSet<>();
+        for (int age = 0; age < AGES; age++) {
+            try (Cursor cursor = table.getIndex("idade").scanRange(age, age, true, true)) {
+                while (!cursor.isEndOfTable()) {
+                    Row row = cursor.getRecord();
+                    int key = (Integer) row.get("id");
+                    assertEquals(age, row.get("idade"));
+                    assertTrue(key % 3 != 0, "índice aponta para a chave excluída " + key);
+                    assertTrue(indexed.add(key), "chave " + key + " repetida no índice");
+                    cursor.advance();
+                }
+            }
+        }
+        assertEquals(expectedRowCount(), indexed.size());
+    }
+
+    private static int expectedRowCount() {
+        return KEYS - (KEYS + 2) / 3;
+    }
+
+    private static Row expectedRow(int key) {
+        return row(key, (key % 5 == 0 ? "alterado_" : "usuario_") + key);
+    }
+
+    private static Row row(int key, String name) {
+        Row row = new Row();
+        row.put("id", key);
+        row.put("nome", name);
+        row.put("idade", key % AGES);
+        return row;
+    }
+
+    private static Thread start(AtomicReference<Throwable> failure, ThrowingRunnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
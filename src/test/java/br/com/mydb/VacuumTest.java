@@ -0,0 +1,139 @@
+package br.com.mydb;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * VACUUM que falha no meio, depois de confirmar o primeiro lote: a tabela reaberta precisa ter cada
+ * linha uma única vez, com os índices certos, aceitar escritas e terminar a compactação no VACUUM seguinte.
+ */
+class VacuumTest {
+
+    private static final int KEYS = 12000;
+    private static final int AGES = 40;
+
+    private static final List<Column> SCHEMA = List.of(
+            new Column("id", DataType.INTEGER, 1),
+            new Column("nome", DataType.VARCHAR, 32),
+            new Column("idade", DataType.INTEGER, 2));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void vacuumThatFailsHalfwayLeavesTheTableConsistent() throws IOException {
+        String path = this.directory.resolve("vacuum.bd").toString();
+        Database database = new Database(path, 64);
+        database.createTable("t", SCHEMA);
+        database.createIndex("t_idade", "t", "idade");
+        Table table = database.openTable("t");
+
+        Set<Integer> keys = new HashSet<>();
+        for (int key = 0; key < KEYS; key++) {
+            table.insert(key, row(key));
+            keys.add(key);
+        }
+        for (int key = 1; key < KEYS; key += 2) {
+            assertTrue(table.delete(key));
+            keys.remove(key);
+        }
+
+        // A linha da chave 10000 é a 5001ª na ordem da chave, já no segundo lote do VACUUM. Com o
+        // registro estragado a decodificação dela falha, depois do commit do primeiro lote.
+        int brokenKey = 10000;
+        assertTrue(keys.contains(brokenKey) && brokenKey / 2 > Table.VACUUM_ROWS_PER_COMMIT);
+        long dataPointer = table.findDataOffset(brokenKey);
+        Page page = table.getPage((int) (dataPointer >> 32));
+        int offset = page.getRecordOffset((int) dataPointer);
+        byte[] original = page.getRecord((int) dataPointer);
+        for (int i = 1; i < original.length; i++) {
+            page.getBuffer().put(offset + i, (byte) 0x80);
+        }
+        table.getPager().flushPage(page);
+        long firstRowPointer = table.findDataOffset(0);
+
+        assertThrows(RuntimeException.class, table::vacuum);
+        assertTrue(table.findDataOffset(0) != firstRowPointer, "o primeiro lote não foi movido");
+
+        // A linha não saiu do lugar, então o registro original pode voltar para a mesma posição.
+        assertEquals(dataPointer, table.findDataOffset(brokenKey));
+        page = table.getPage((int) (dataPointer >> 32));
+        page.getBuffer().put(page.getRecordOffset((int) dataPointer), original);
+        table.getPager().flushPage(page);
+        database.close(Map.of("t", table));
+
+        database = new Database(path, 64);
+        table = database.openTable("t");
+        assertContents(table, keys);
+
+        for (int key = KEYS; key < KEYS + 500; key++) {
+            table.insert(key, row(key));
+            keys.add(key);
+        }
+        for (int key = 0; key < 2000; key += 4) {
+            assertTrue(table.delete(key));
+            keys.remove(key);
+        }
+        assertContents(table, keys);
+
+        assertTrue(table.vacuum() > 0);
+        assertContents(table, keys);
+        database.close(Map.of("t", table));
+
+        database = new Database(path, 64);
+        table = database.openTable("t");
+        assertContents(table, keys);
+        database.close(Map.of("t", table));
+    }
+
+    private static void assertContents(Table table, Set<Integer> keys) throws IOException {
+        int rows = 0;
+        int previousKey = -1;
+        try (Cursor cursor = table.start()) {
+            while (!cursor.isEndOfTable()) {
+                int key = cursor.getKey();
+                assertTrue(key > previousKey, "chave " + key + " depois de " + previousKey);
+                assertTrue(keys.contains(key), "chave excluída " + key + " ainda existe");
+                assertEquals(row(key).getValues(), cursor.getRecord().getValues());
+                previousKey = key;
+                rows++;
+                cursor.advance();
+            }
+        }
+        assertEquals(keys.size(), rows);
+        assertNull(table.find(1));
+
+        Set<Integer> indexed = new HashSet<>();
+        for (int age = 0; age < AGES; age++) {
+            try (Cursor cursor = table.getIndex("idade").scanRange(age, age, true, true)) {
+                while (!cursor.isEndOfTable()) {
+                    Row row = cursor.getRecord();
+                    assertEquals(age, row.get("idade"));
+                    assertTrue(indexed.add((Integer) row.get("id")), "linha repetida no índice: " + row);
+                    cursor.advance();
+                }
+            }
+        }
+        assertEquals(keys, indexed);
+    }
+
+    private static Row row(int key) {
+        Row row = new Row();
+        row.put("id", key);
+        row.put("nome", "usuario_" + key);
+        row.put("idade", key % AGES);
+        return row;
+    }
+}